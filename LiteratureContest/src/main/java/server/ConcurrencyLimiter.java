@@ -0,0 +1,93 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+ * Адаптивный предел одновременно выполняемых запросов (градиентный, по образцу Gradient2): сравнивает
+ * недавнюю задержку обработчиков (короткое скользящее среднее) с обычной (длинное среднее). Пока недавняя
+ * не выше обычной больше чем в {@value #TOLERANCE} раза, предел растёт примерно на √limit; когда выше —
+ * уменьшается пропорционально, но не больше чем вдвое за шаг. Средние, а не минимум, — потому что запросы
+ * разные: /status и выгрузка contest.xlsx отличаются по времени на порядки.
+ *
+ * Сверх предела запросы ждут в очереди пула; запрос не принимается, если по оценке
+ * (очередь × задержка / предел) он прождёт дольше {@link #QUEUE_DEADLINE_MS} — лучше сразу 503
+ * с Retry-After, чем ответ после таймаута клиента.
+ */
+public final class ConcurrencyLimiter {
+    static final int MIN_LIMIT = 4;
+    static final int MAX_LIMIT = 64;
+    static final int INITIAL_LIMIT = 32;
+    static final int MAX_QUEUE = 200;
+    static final long QUEUE_DEADLINE_MS = 1_000;
+    static final double TOLERANCE = 1.5;
+    static final double SMOOTHING = 0.2;
+    static final int SHORT_WINDOW = 10;
+    static final int LONG_WINDOW = 600;
+    static final int MAX_RETRY_AFTER_S = 30;
+
+    private final IntConsumer onChange;
+    private double limit = INITIAL_LIMIT;
+    private int applied = INITIAL_LIMIT;
+    private double shortRtt, longRtt; // нс; 0 — замеров ещё не было
+
+    /** onChange получает новый целый предел (вызывается под блокировкой, должен быть быстрым). */
+    public ConcurrencyLimiter(IntConsumer onChange) {
+        this.onChange = onChange;
+    }
+
+    public synchronized int limit() {
+        return applied;
+    }
+
+    /** Принять ли запрос, если перед ним queued ожидающих. */
+    public synchronized boolean admit(int queued) {
+        if (queued >= MAX_QUEUE) return false;
+        return queued == 0 || expectedWaitNanos(queued) <= TimeUnit.MILLISECONDS.toNanos(QUEUE_DEADLINE_MS);
+    }
+
+    /** Через сколько секунд имеет смысл повторить: за это время очередь примерно разойдётся. */
+    public synchronized int retryAfterSeconds(int queued) {
+        long s = TimeUnit.NANOSECONDS.toSeconds(expectedWaitNanos(queued)) + 1;
+        return (int) Math.min(s, MAX_RETRY_AFTER_S);
+    }
+
+    /**
+     * Замер времени обработчика. inFlight — сколько запросов выполнялось: пока пул загружен меньше
+     * чем наполовину, задержка о пределе ничего не говорит и он не растёт.
+     */
+    public synchronized void sample(long rttNanos, int inFlight) {
+        if (rttNanos <= 0) return;
+        if (longRtt == 0) {
+            shortRtt = longRtt = rttNanos;
+            return;
+        }
+        shortRtt = ewma(shortRtt, rttNanos, SHORT_WINDOW);
+        // при перегрузке обычная задержка подтягивается вверх в десять раз медленнее: иначе за пару
+        // сотен запросов перегрузка стала бы «нормой»; настоящая смена нагрузки всё равно примется
+        boolean overloaded = shortRtt > TOLERANCE * longRtt;
+        longRtt = ewma(longRtt, rttNanos, overloaded ? 10 * LONG_WINDOW : LONG_WINDOW);
+        // после перегрузки обычная задержка успела подрасти — возвращаем её вниз быстрее, чем даёт среднее
+        if (longRtt > 2 * shortRtt) longRtt *= 0.95;
+
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / shortRtt));
+        double next = limit * gradient + Math.sqrt(limit);
+        if (next > limit && inFlight < limit / 2) return;
+        limit = Math.max(MIN_LIMIT, Math.min(MAX_LIMIT, limit * (1 - SMOOTHING) + next * SMOOTHING));
+
+        int rounded = (int) limit;
+        if (rounded != applied) {
+            applied = rounded;
+            onChange.accept(rounded);
+        }
+    }
+
+    private long expectedWaitNanos(int queued) {
+        return (long) (queued * shortRtt / applied);
+    }
+
+    private static double ewma(double avg, double x, int window) {
+        double alpha = 2.0 / (window + 1);
+        return avg + alpha * (x - avg);
+    }
+}
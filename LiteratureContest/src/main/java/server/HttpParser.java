@@ -1,9 +1,11 @@
 package server;
 
 import java.io.*;
+import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Locale;
+import java.util.Map;
 
 public class HttpParser {
     public static HttpRequest parse(InputStream raw) throws IOException {
@@ -14,11 +16,15 @@ public class HttpParser {
         if (start == null || start.isEmpty()) throw new IOException("empty request");
         String[] p = start.split(" ", 3);
         req.method  = p.length > 0 ? p[0] : "";
-        req.path    = p.length > 1 ? p[1] : "/";
+        String target = p.length > 1 ? p[1] : "/";
+        int q = target.indexOf('?');
+        req.path    = q >= 0 ? target.substring(0, q) : target;
+        req.query   = q >= 0 ? target.substring(q + 1) : "";
+        parseQuery(req.query, req.params);
         req.version = p.length > 2 ? p[2] : "HTTP/1.1";
 
         String line;
-        int contentLength = 0;
+        long contentLength = 0;
         while ((line = readLine(in, 32768)) != null && !line.isEmpty()) {
             int k = line.indexOf(':');
             if (k <= 0) continue;
@@ -26,18 +32,34 @@ public class HttpParser {
             String val = line.substring(k+1).trim();
             req.headers.put(key, val);
             if ("content-length".equals(key)) {
-                try { contentLength = Integer.parseInt(val); } catch (NumberFormatException ignore) {}
+                try { contentLength = Long.parseLong(val); } catch (NumberFormatException ignore) {}
             }
         }
 
+        // Тело не буферизуем: обработчик читает его потоком (или целиком через req.body())
+        req.contentLength = Math.max(0, contentLength);
         if (contentLength > 0) {
-            req.body = readN(in, contentLength);
-        } else {
-            req.body = new byte[0];
+            req.rawBody = new BoundedInputStream(in, contentLength);
+            req.bodyIn = req.rawBody;
         }
         return req;
     }
 
+    private static void parseQuery(String query, Map<String,String> into) {
+        if (query.isEmpty()) return;
+        for (String pair : query.split("&")) {
+            if (pair.isEmpty()) continue;
+            int eq = pair.indexOf('=');
+            String k = eq >= 0 ? pair.substring(0, eq) : pair;
+            String v = eq >= 0 ? pair.substring(eq + 1) : "";
+            try {
+                into.putIfAbsent(URLDecoder.decode(k, StandardCharsets.UTF_8), URLDecoder.decode(v, StandardCharsets.UTF_8));
+            } catch (IllegalArgumentException ignore) {
+                // битое %-кодирование — параметр пропускаем
+            }
+        }
+    }
+
     private static String readLine(InputStream in, int max) throws IOException {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         int prev = -1, cur;
@@ -53,13 +75,48 @@ public class HttpParser {
         return new String(arr, StandardCharsets.US_ASCII);
     }
 
-    private static byte[] readN(InputStream in, int n) throws IOException {
-        byte[] buf = new byte[n]; int off=0;
-        while (off<n) {
-            int r = in.read(buf, off, n-off);
-            if (r<0) throw new IOException("unexpected eof");
-            off += r;
+    /** Читает ровно Content-Length байт из соединения и не закрывает его. */
+    static final class BoundedInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int b = in.read();
+            if (b < 0) throw new EOFException("unexpected eof");
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (remaining <= 0) return -1;
+            int r = in.read(b, off, (int) Math.min(len, remaining));
+            if (r < 0) throw new EOFException("unexpected eof");
+            remaining -= r;
+            return r;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        /** Сколько байт тела ещё не прочитано из соединения. */
+        long remaining() {
+            return remaining;
+        }
+
+        @Override
+        public void close() {
+            // соединение закрывает HttpServer
         }
-        return buf;
     }
 }
@@ -1,19 +1,58 @@
 package server;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.function.UnaryOperator;
 
 public class HttpRequest {
     public String method;
     public String path;
     public String version;
+    public String query = "";
+    public Map<String,String> params = new HashMap<>();
     public Map<String,String> headers = new HashMap<>();
-    public byte[] body = new byte[0];
+    public long contentLength;
+    InputStream bodyIn = InputStream.nullInputStream();
+    HttpParser.BoundedInputStream rawBody; // null — тела нет
+    private byte[] body;
+    Socket socket;
+    boolean detached;
 
     public String header(String name) {
         return headers.get(name.toLowerCase(Locale.ROOT));
     }
-    public String bodyAsString() { return new String(body, StandardCharsets.UTF_8); }
+    public String param(String name) { return params.get(name); }
+    /** Тело запроса потоком; читается напрямую из соединения, без буферизации. */
+    public InputStream bodyStream() {
+        return body != null ? new ByteArrayInputStream(body) : bodyIn;
+    }
+    /** Оборачивает поток тела (например, чтобы считать хеш по мере чтения); вызывать до чтения тела. */
+    public void filterBody(UnaryOperator<InputStream> filter) {
+        bodyIn = filter.apply(bodyIn);
+    }
+    /** Тело целиком в памяти — только для небольших запросов. */
+    public byte[] body() throws IOException {
+        if (body == null) body = bodyIn.readAllBytes();
+        return body;
+    }
+    /** Часть тела, которую обработчик не дочитал (ответил раньше); её дочитывает {@link LingeringClose}. */
+    long unreadBody() {
+        return rawBody == null ? 0 : rawBody.remaining();
+    }
+    public String bodyAsString() throws IOException { return new String(body(), StandardCharsets.UTF_8); }
+    /**
+     * Забирает соединение у сервера: после обработчика оно не закрывается, и поток пула освобождается.
+     * Закрыть сокет должен тот, кто его забрал (например, подписка на /events).
+     */
+    public Socket detach() {
+        if (socket == null) throw new IllegalStateException("request is not bound to a socket");
+        detached = true;
+        return socket;
+    }
 }
@@ -2,7 +2,11 @@ package server;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Map;
 
 public class HttpResponses {
@@ -10,7 +14,10 @@ public class HttpResponses {
         json(out, code, json, Map.of());
     }
     public static void json(OutputStream out, int code, String json, Map<String,String> extra) throws IOException {
-        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        json(out, code, json.getBytes(StandardCharsets.UTF_8), extra);
+    }
+    /** Уже закодированный JSON (UTF-8). */
+    public static void json(OutputStream out, int code, byte[] body, Map<String,String> extra) throws IOException {
         StringBuilder sb = new StringBuilder()
                 .append("HTTP/1.1 ").append(code).append(" ").append(reason(code)).append("\r\n")
                 .append("Content-Type: application/json; charset=utf-8\r\n")
@@ -22,6 +29,52 @@ public class HttpResponses {
         out.write(body);
         out.flush();
     }
+    /** Тело ответа, которое пишется прямо в сокет (без Content-Length, граница — закрытие соединения). */
+    @FunctionalInterface
+    public interface BodyWriter {
+        void writeTo(OutputStream body) throws IOException;
+    }
+
+    public static void jsonStream(OutputStream out, int code, BodyWriter body) throws IOException {
+        stream(out, code, "application/json; charset=utf-8", Map.of(), body);
+    }
+    public static void stream(OutputStream out, int code, String contentType, Map<String,String> extra,
+                              BodyWriter body) throws IOException {
+        StringBuilder sb = new StringBuilder()
+                .append("HTTP/1.1 ").append(code).append(" ").append(reason(code)).append("\r\n")
+                .append("Content-Type: ").append(contentType).append("\r\n")
+                .append("Connection: close\r\n");
+        for (var e: extra.entrySet()) sb.append(e.getKey()).append(": ").append(e.getValue()).append("\r\n");
+        sb.append("\r\n");
+        out.write(sb.toString().getBytes(StandardCharsets.US_ASCII));
+        body.writeTo(out);
+        out.flush();
+    }
+    /**
+     * Готовый файл с диска: Content-Length известен заранее, содержимое копируется без буферизации в памяти.
+     * Файл открывается до заголовков: если его тем временем заменят или удалят, клиент всё равно получит
+     * целиком ту версию, размер которой объявлен (а не 200 без тела).
+     */
+    public static void file(OutputStream out, int code, String contentType, Path file, Map<String,String> extra) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            StringBuilder sb = new StringBuilder()
+                    .append("HTTP/1.1 ").append(code).append(" ").append(reason(code)).append("\r\n")
+                    .append("Content-Type: ").append(contentType).append("\r\n")
+                    .append("Content-Length: ").append(ch.size()).append("\r\n")
+                    .append("Connection: close\r\n");
+            for (var e: extra.entrySet()) sb.append(e.getKey()).append(": ").append(e.getValue()).append("\r\n");
+            sb.append("\r\n");
+            out.write(sb.toString().getBytes(StandardCharsets.US_ASCII));
+            Channels.newInputStream(ch).transferTo(out);
+            out.flush();
+        }
+    }
+    /** 304 без тела: у клиента уже актуальная версия. */
+    public static void notModified(OutputStream out, String etag) throws IOException {
+        out.write(("HTTP/1.1 304 Not Modified\r\nETag: " + etag + "\r\nConnection: close\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
     public static void text(OutputStream out, int code, String text) throws IOException {
         byte[] body = text.getBytes(StandardCharsets.UTF_8);
         String head = "HTTP/1.1 "+code+" "+reason(code)+"\r\n"
@@ -35,8 +88,10 @@ public class HttpResponses {
     private static String reason(int c) {
         return switch (c) {
             case 200 -> "OK"; case 201 -> "Created"; case 202 -> "Accepted"; case 204 -> "No Content";
+            case 304 -> "Not Modified";
             case 400 -> "Bad Request"; case 401 -> "Unauthorized"; case 403 -> "Forbidden"; case 404 -> "Not Found";
-            case 409 -> "Conflict"; case 415 -> "Unsupported Media Type"; case 422 -> "Unprocessable Entity";
+            case 405 -> "Method Not Allowed"; case 409 -> "Conflict"; case 413 -> "Payload Too Large"; case 415 -> "Unsupported Media Type"; case 422 -> "Unprocessable Entity";
+            case 500 -> "Internal Server Error"; case 503 -> "Service Unavailable";
             default -> "Status";
         };
     }
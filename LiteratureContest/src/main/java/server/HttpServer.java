@@ -2,67 +2,143 @@
 package server;
 
 import server.handlers.GetHandler;
+import server.handlers.Idempotent;
 import server.handlers.PostHandler;
 import server.handlers.PutHandler;
+import server.logic.ContestService;
+import server.logic.IdempotencyStore;
+import server.logic.MaildirIngester;
 import server.storage.Storage;
+import server.time.ConfigService;
 
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Path;
+import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class HttpServer {
     static final int PORT = 8080;
     static final int READ_TIMEOUT_MS = 15_000;
+    private static final AtomicInteger RUNNING = new AtomicInteger();
 
     public static void main(String[] args) throws Exception {
         Storage.ensure();
-        var getHandler  = new GetHandler();
-        var postHandler = new PostHandler();
-        var putHandler  = new PutHandler();
+        // один экземпляр сервиса на все обработчики: его кэши (рейтинг, владельцы, поисковый индекс) общие
+        var contest = new ContestService();
+        contest.startPhaseScheduler();
+        contest.intake().resume();
+        if (ConfigService.maildir() != null) {
+            new MaildirIngester(contest, Path.of(ConfigService.maildir()), ConfigService.maildirWorkers()).start();
+        }
+        var getHandler  = new GetHandler(contest);
+        var postHandler = new PostHandler(contest);
+        var putHandler  = new PutHandler(contest);
+        // повторы с тем же Idempotency-Key получают сохранённый ответ (общий журнал рядом с реестром)
+        var idempotency = new IdempotencyStore();
         var router = new Router()
                 .registerGET("/status", getHandler)
                 .registerGET("/assignments", getHandler)
                 .registerGET("/assignments.xlsx", getHandler)
                 .registerGET("/assignments.zip", getHandler)
                 .registerGET("/results", getHandler)
-                .registerPOST("/submit", postHandler)
-                .registerPOST("/mail", postHandler)
-                .registerPUT("/submission", putHandler)
-                .registerPUT("/reviews",    putHandler);
+                .registerGET("/results/top", getHandler)
+                .registerGET("/results/rank", getHandler)
+                .registerGET("/export/contest.xlsx", getHandler)
+                .registerGET("/export/jury.zip", getHandler)
+                .registerGET("/search", getHandler)
+                .registerGET("/duplicates", getHandler)
+                .registerGET("/events", getHandler)
+                .registerGET("/submission/*", getHandler)
+                .registerPOST("/submit", Idempotent.wrap(postHandler, idempotency))
+                .registerPOST("/mail", Idempotent.wrap(postHandler, idempotency))
+                .registerPOST("/upload", postHandler)
+                .registerPOST("/mail/batch", postHandler)
+                .registerPUT("/submission", Idempotent.wrap(putHandler, idempotency))
+                .registerPUT("/reviews",    Idempotent.wrap(putHandler, idempotency))
+                .registerPATCH("/reviews",  Idempotent.wrap(putHandler, idempotency));
 
-        var queue = new ArrayBlockingQueue<Runnable>(200);
-        var pool = new ThreadPoolExecutor(32, 64, 60, TimeUnit.SECONDS, queue,
-                new ThreadPoolExecutor.AbortPolicy());
+        // потоков пула ровно столько, сколько сейчас разрешает limiter; лишние запросы ждут в очереди,
+        // а те, кому ждать дольше QUEUE_DEADLINE_MS, получают 503 сразу
+        var queue = new LinkedBlockingQueue<Runnable>(ConcurrencyLimiter.MAX_QUEUE);
+        var pool = new ThreadPoolExecutor(ConcurrencyLimiter.INITIAL_LIMIT, ConcurrencyLimiter.INITIAL_LIMIT,
+                60, TimeUnit.SECONDS, queue, new ThreadPoolExecutor.AbortPolicy());
+        var limiter = new ConcurrencyLimiter(n -> resize(pool, n));
 
         try (ServerSocket server = new ServerSocket(PORT, 500)) {
             System.out.println("Server started on :" + PORT);
             while (true) {
                 Socket s = server.accept();
                 s.setSoTimeout(READ_TIMEOUT_MS);
+                int queued = queue.size();
+                if (!limiter.admit(queued)) {
+                    send503AndClose(s, limiter.retryAfterSeconds(queued));
+                    continue;
+                }
+                long acceptedAt = System.nanoTime();
                 try {
-                    pool.execute(() -> handleOne(router, s));
+                    pool.execute(() -> handleOne(router, limiter, s, acceptedAt));
                 } catch (RejectedExecutionException ex) {
-                    send503AndClose(s);
+                    send503AndClose(s, limiter.retryAfterSeconds(queue.size()));
                 }
             }
         }
     }
 
-    static void handleOne(Router router, Socket s) {
-        try (s; InputStream in = s.getInputStream(); OutputStream out = s.getOutputStream()) {
-            HttpRequest req = HttpParser.parse(in);
+    static void handleOne(Router router, ConcurrencyLimiter limiter, Socket s, long acceptedAt) {
+        // оценка при приёме ошиблась (очередь шла медленнее) — клиент, скорее всего, уже не ждёт
+        if (System.nanoTime() - acceptedAt > TimeUnit.MILLISECONDS.toNanos(ConcurrencyLimiter.QUEUE_DEADLINE_MS)) {
+            send503AndClose(s, limiter.retryAfterSeconds(0));
+            return;
+        }
+        HttpRequest req = null;
+        long started = 0;
+        int inFlight = RUNNING.incrementAndGet();
+        try {
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+            req = HttpParser.parse(in);
+            req.socket = s;
+            // время считается с разобранных заголовков: медленный клиент — не нагрузка сервера
+            started = System.nanoTime();
             var h = router.resolve(req.method, req.path);
             if (h != null) h.handle(req, out);
             else HttpResponses.text(out, 404, "Not Found");
         } catch (Exception e) {
             try { HttpResponses.text(s.getOutputStream(), 500, "Internal Server Error"); } catch (Exception ignore) {}
+        } finally {
+            RUNNING.decrementAndGet();
+            // отвязанные (long-poll, SSE) держат соединение, а не поток — их время о нагрузке не говорит
+            if (started != 0 && !req.detached) limiter.sample(System.nanoTime() - started, inFlight);
+            // соединение, которое обработчик забрал себе (SSE), закрывает его новый владелец;
+            // клиент, которому ответили, не дочитав тело, ещё шлёт его — такое закрывается без RST
+            if (req != null && !req.detached && req.unreadBody() == 0) {
+                try { s.close(); } catch (IOException ignore) {}
+            } else if (req == null || !req.detached) {
+                LingeringClose.close(s);
+            }
         }
     }
 
-    static void send503AndClose(Socket s) {
-        try (var out = s.getOutputStream()) { HttpResponses.text(out, 503, "Service Unavailable"); }
-        catch (Exception ignore) {}
-        try { s.close(); } catch (Exception ignore) {}
+    static void send503AndClose(Socket s, int retryAfterSeconds) {
+        try {
+            HttpResponses.json(s.getOutputStream(), 503, "{\"error\":\"server is overloaded, retry later\"}",
+                    Map.of("Retry-After", String.valueOf(retryAfterSeconds)));
+        } catch (Exception ignore) {}
+        // запрос не читали вовсе: тело, если оно есть, дочитывается перед закрытием
+        LingeringClose.close(s);
+    }
+
+    // при росте сначала максимум, при уменьшении сначала ядро: core не может превышать max
+    private static void resize(ThreadPoolExecutor pool, int n) {
+        if (n > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(n);
+            pool.setCorePoolSize(n);
+        } else {
+            pool.setCorePoolSize(n);
+            pool.setMaximumPoolSize(n);
+        }
     }
 }
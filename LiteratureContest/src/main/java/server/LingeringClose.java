@@ -0,0 +1,71 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Закрытие соединения, в котором клиент ещё досылает тело запроса (ранний ответ 401/403/413/415/422/503).
+ * Если закрыть сокет с непрочитанными байтами, ядро отправит RST, и клиент может потерять уже отправленный
+ * ему ответ. Поэтому сначала закрывается только запись (ответ уходит целиком, за ним FIN), затем остаток
+ * тела читается и выбрасывается — не больше {@value #DRAIN_BYTES} байт и {@value #DRAIN_MS} мс.
+ *
+ * Дочитывание идёт в небольшом отдельном пуле: ни поток приёма соединений, ни пул обработчиков им
+ * не заняты. Если пул переполнен, соединение закрывается сразу.
+ */
+final class LingeringClose {
+    private LingeringClose() {}
+
+    static final long DRAIN_BYTES = 1024 * 1024;
+    static final int DRAIN_MS = 1_000;
+    static final int THREADS = 8;
+    static final int MAX_PENDING = 512;
+
+    private static final ThreadPoolExecutor POOL = pool();
+
+    static void close(Socket s) {
+        try {
+            POOL.execute(() -> drainAndClose(s));
+        } catch (RejectedExecutionException e) {
+            closeQuietly(s);
+        }
+    }
+
+    private static void drainAndClose(Socket s) {
+        try {
+            s.shutdownOutput();
+            s.setSoTimeout(DRAIN_MS);
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_MS);
+            InputStream in = s.getInputStream();
+            byte[] buf = new byte[16 * 1024];
+            long total = 0;
+            int n;
+            while (total < DRAIN_BYTES && System.nanoTime() < deadline && (n = in.read(buf)) > 0) {
+                total += n;
+            }
+        } catch (IOException ignore) {
+            // таймаут или клиент уже закрыл соединение — дальше ждать нечего
+        } finally {
+            closeQuietly(s);
+        }
+    }
+
+    private static void closeQuietly(Socket s) {
+        try { s.close(); } catch (IOException ignore) {}
+    }
+
+    private static ThreadPoolExecutor pool() {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(MAX_PENDING), r -> {
+            Thread t = new Thread(r, "lingering-close");
+            t.setDaemon(true);
+            return t;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
@@ -0,0 +1,292 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Потоковый разбор письма RFC 822 / MIME (RFC 2045–2047): заголовки письма и вложения любой
+ * вложенности multipart/*. Письмо целиком не буферизуется — части режет {@link MultipartReader},
+ * а тело каждого вложения декодируется (base64, quoted-printable) по мере чтения.
+ *
+ * <pre>
+ *   Map&lt;String, String&gt; headers = MailReader.read(in, (fileName, contentType, body) -&gt; ... body ...);
+ * </pre>
+ *
+ * Письма из Maildir обычно хранятся с голыми LF — они приводятся к CRLF на лету.
+ */
+public final class MailReader {
+    private static final int MAX_HEADER_BYTES = 64 * 1024;
+    private static final int MAX_DEPTH = 8;
+    private static final Pattern ENCODED_WORD = Pattern.compile("=\\?([^?\\s]+)\\?([BbQq])\\?([^?\\s]*)\\?=");
+
+    private MailReader() {}
+
+    /** Вложение: тело уже раскодировано из Content-Transfer-Encoding и действительно только внутри вызова. */
+    @FunctionalInterface
+    public interface AttachmentHandler {
+        void attachment(String fileName, String contentType, InputStream body) throws IOException;
+    }
+
+    /**
+     * Читает письмо, отдавая каждую часть с именем файла в handler. Возвращает заголовки письма:
+     * имена в нижнем регистре, значения с раскодированными encoded-word (RFC 2047).
+     */
+    public static Map<String, String> read(InputStream raw, AttachmentHandler handler) throws IOException {
+        InputStream in = new CrlfInputStream(new BufferedInputStream(raw));
+        Map<String, String> headers = readHeaders(in);
+        walk(headers, in, handler, 0);
+        Map<String, String> decoded = new HashMap<>();
+        for (var e : headers.entrySet()) decoded.put(e.getKey(), decodeWords(e.getValue()));
+        return decoded;
+    }
+
+    /** Адрес из заголовка From ("Имя &lt;a@b.org&gt;" → "a@b.org") в нижнем регистре или null. */
+    public static String address(String from) {
+        if (from == null) return null;
+        String s = from.replaceAll("\\([^()]*\\)", " ");
+        int lt = s.lastIndexOf('<'), gt = s.lastIndexOf('>');
+        if (lt >= 0 && gt > lt) s = s.substring(lt + 1, gt);
+        int comma = s.indexOf(',');
+        if (comma >= 0) s = s.substring(0, comma);
+        s = s.trim().toLowerCase(Locale.ROOT);
+        int at = s.indexOf('@');
+        return at > 0 && at < s.length() - 1 && !s.contains(" ") ? s : null;
+    }
+
+    private static void walk(Map<String, String> headers, InputStream body, AttachmentHandler handler, int depth) throws IOException {
+        String ct = headers.getOrDefault("content-type", "text/plain");
+        if (ct.toLowerCase(Locale.ROOT).startsWith("multipart/")) {
+            String boundary = MultipartReader.boundary(ct);
+            if (boundary == null) throw new MultipartReader.MalformedMultipartException("multipart without boundary");
+            if (depth >= MAX_DEPTH) throw new MultipartReader.MalformedMultipartException("multipart nested too deep");
+            var multipart = new MultipartReader(body, boundary);
+            for (var part = multipart.nextPart(); part != null; part = multipart.nextPart()) {
+                walk(part.headers(), part.body(), handler, depth + 1);
+            }
+            return;
+        }
+
+        String fileName = fileName(headers);
+        if (fileName == null) return; // текст письма, не вложение
+        int semi = ct.indexOf(';');
+        String type = (semi < 0 ? ct : ct.substring(0, semi)).trim().toLowerCase(Locale.ROOT);
+        handler.attachment(fileName, type, decode(headers.get("content-transfer-encoding"), body));
+    }
+
+    // filename из Content-Disposition (в том числе filename*), иначе устаревший name из Content-Type
+    private static String fileName(Map<String, String> headers) {
+        Map<String, String> cd = MultipartReader.params(headers.getOrDefault("content-disposition", ""));
+        Map<String, String> ct = MultipartReader.params(headers.getOrDefault("content-type", ""));
+        String name = param(cd, "filename");
+        return name != null ? name : param(ct, "name");
+    }
+
+    private static String param(Map<String, String> params, String key) {
+        String ext = params.get(key + "*");
+        if (ext != null) return MultipartReader.decodeExtValue(ext);
+        String v = params.get(key);
+        return v == null || v.isBlank() ? null : decodeWords(v);
+    }
+
+    private static InputStream decode(String transferEncoding, InputStream body) {
+        String te = transferEncoding == null ? "" : transferEncoding.trim().toLowerCase(Locale.ROOT);
+        InputStream buffered = new BufferedInputStream(body);
+        return switch (te) {
+            case "base64" -> Base64.getMimeDecoder().wrap(buffered);
+            case "quoted-printable" -> new QuotedPrintableInputStream(buffered);
+            default -> buffered; // 7bit, 8bit, binary
+        };
+    }
+
+    private static Map<String, String> readHeaders(InputStream in) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int total = 0;
+        String lastKey = null;
+        while (true) {
+            line.reset();
+            int prev = -1, cur;
+            while (true) {
+                cur = in.read();
+                if (cur < 0) {
+                    if (prev < 0 && line.size() == 0) return headers; // письмо без тела
+                    throw new EOFException("mail headers truncated");
+                }
+                if (++total > MAX_HEADER_BYTES) throw new MultipartReader.MalformedMultipartException("mail headers too large");
+                if (prev == '\r' && cur == '\n') break;
+                if (prev >= 0) line.write(prev);
+                prev = cur;
+            }
+            if (line.size() == 0) return headers;
+            String h = line.toString(StandardCharsets.UTF_8);
+            if ((h.charAt(0) == ' ' || h.charAt(0) == '\t') && lastKey != null) {
+                headers.merge(lastKey, " " + h.trim(), String::concat); // продолжение (folding)
+                continue;
+            }
+            int k = h.indexOf(':');
+            if (k <= 0) continue;
+            lastKey = h.substring(0, k).trim().toLowerCase(Locale.ROOT);
+            headers.putIfAbsent(lastKey, h.substring(k + 1).trim());
+        }
+    }
+
+    // RFC 2047: "=?UTF-8?B?0KDQsNGB0YHQutCw0Lc=?=" → строка; пробелы между соседними encoded-word опускаются
+    static String decodeWords(String v) {
+        if (v == null || !v.contains("=?")) return v;
+        Matcher m = ENCODED_WORD.matcher(v);
+        StringBuilder sb = new StringBuilder();
+        int last = 0;
+        boolean prevEncoded = false;
+        while (m.find()) {
+            String gap = v.substring(last, m.start());
+            if (!(prevEncoded && gap.isBlank())) sb.append(gap);
+            String word;
+            try {
+                String charset = m.group(1);
+                int star = charset.indexOf('*'); // RFC 2231: charset*язык
+                Charset cs = Charset.forName(star < 0 ? charset : charset.substring(0, star));
+                byte[] bytes = m.group(2).equalsIgnoreCase("B")
+                        ? Base64.getMimeDecoder().decode(m.group(3))
+                        : qDecode(m.group(3));
+                word = new String(bytes, cs);
+            } catch (IllegalArgumentException e) {
+                word = m.group();
+            }
+            sb.append(word);
+            last = m.end();
+            prevEncoded = true;
+        }
+        return sb.append(v.substring(last)).toString();
+    }
+
+    private static byte[] qDecode(String s) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '_') out.write(' ');
+            else if (c == '=' && i + 2 < s.length() && hex(s.charAt(i + 1)) >= 0 && hex(s.charAt(i + 2)) >= 0) {
+                out.write(hex(s.charAt(i + 1)) << 4 | hex(s.charAt(i + 2)));
+                i += 2;
+            } else out.write(c);
+        }
+        return out.toByteArray();
+    }
+
+    private static int hex(int c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        return -1;
+    }
+
+    /* ===================== потоки ===================== */
+
+    // голый LF → CRLF; уже правильные CRLF не трогаются
+    private static final class CrlfInputStream extends InputStream {
+        private final InputStream in;
+        private final byte[] chunk = new byte[8192];
+        private final byte[] one = new byte[1];
+        private int pos, len;
+        private boolean prevCr, pendingLf, eof;
+
+        CrlfInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int n) throws IOException {
+            if (n == 0) return 0;
+            int w = 0;
+            while (w < n) {
+                if (pendingLf) {
+                    b[off + w++] = '\n';
+                    pendingLf = false;
+                    prevCr = false;
+                    continue;
+                }
+                if (pos == len) {
+                    if (w > 0 || eof) break; // не блокируемся, если уже есть что отдать
+                    len = in.read(chunk);
+                    pos = 0;
+                    if (len < 0) { len = 0; eof = true; break; }
+                    continue;
+                }
+                byte c = chunk[pos++];
+                if (c == '\n' && !prevCr) {
+                    b[off + w++] = '\r';
+                    pendingLf = true;
+                    continue;
+                }
+                b[off + w++] = c;
+                prevCr = c == '\r';
+            }
+            return w == 0 && eof ? -1 : w;
+        }
+    }
+
+    // quoted-printable (RFC 2045, 6.7): "=XX" — байт, "=" в конце строки — мягкий перенос
+    private static final class QuotedPrintableInputStream extends InputStream {
+        private final InputStream in;
+        private int pushBack = -2, peeked = -2; // -2 — пусто
+
+        QuotedPrintableInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (true) {
+                int c = next();
+                if (c != '=') return c;
+                int h1 = next();
+                if (h1 == '\r') {
+                    int lf = next();
+                    if (lf != '\n') peeked = lf;
+                    continue;
+                }
+                if (h1 == '\n') continue;
+                int h2 = next();
+                if (hex(h1) >= 0 && hex(h2) >= 0) return hex(h1) << 4 | hex(h2);
+                // не escape — отдаём как есть, лишний символ вернём следующим чтением
+                peeked = h2;
+                pushBack = h1;
+                return '=';
+            }
+        }
+
+        private int next() throws IOException {
+            if (pushBack != -2) { int c = pushBack; pushBack = -2; return c; }
+            if (peeked != -2) { int c = peeked; peeked = -2; return c; }
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            int n = 0;
+            while (n < len) {
+                int c = read();
+                if (c < 0) return n == 0 ? -1 : n;
+                b[off + n++] = (byte) c;
+                if (in.available() == 0 && pushBack == -2 && peeked == -2) break;
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Потоковый разбор multipart/form-data (RFC 7578) и вообще multipart/* (RFC 2046).
+ * Тело не буферизуется: граница ищется в скользящем окне, а содержимое каждой части
+ * отдаётся через {@link Part#body()} по мере чтения из соединения.
+ *
+ * <pre>
+ *   var mr = new MultipartReader(req.bodyStream(), MultipartReader.boundary(ct));
+ *   for (var part = mr.nextPart(); part != null; part = mr.nextPart()) { ... part.body() ... }
+ * </pre>
+ */
+public final class MultipartReader {
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+
+    /** Нарушен формат multipart или превышен лимит. */
+    public static final class MalformedMultipartException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public MalformedMultipartException(String message) { super(message); }
+    }
+
+    public final class Part {
+        private final Map<String, String> headers;
+        private final String name;
+        private final String fileName;
+
+        private Part(Map<String, String> headers) {
+            this.headers = headers;
+            Map<String, String> cd = params(headers.getOrDefault("content-disposition", ""));
+            this.name = cd.get("name");
+            String fn = cd.get("filename*");
+            this.fileName = fn != null ? decodeExtValue(fn) : cd.get("filename");
+        }
+
+        public String header(String name) { return headers.get(name.toLowerCase(Locale.ROOT)); }
+        public Map<String, String> headers() { return Collections.unmodifiableMap(headers); }
+        /** Имя поля формы (параметр name в Content-Disposition). */
+        public String name() { return name; }
+        /** Имя файла, если часть — файл; иначе null. */
+        public String fileName() { return fileName; }
+        public String contentType() { return headers.get("content-type"); }
+
+        /** Содержимое части потоком; действительно до следующего {@link #nextPart()}. */
+        public InputStream body() { return partStream; }
+
+        /** Небольшое текстовое поле целиком; длиннее maxBytes — ошибка формата. */
+        public String bodyAsString(int maxBytes) throws IOException {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] tmp = new byte[Math.min(maxBytes + 1, 8192)];
+            int r;
+            while ((r = partStream.read(tmp, 0, tmp.length)) > 0) {
+                bos.write(tmp, 0, r);
+                if (bos.size() > maxBytes) throw new MalformedMultipartException("field '" + name + "' is too long");
+            }
+            return bos.toString(StandardCharsets.UTF_8);
+        }
+    }
+
+    private final InputStream in;
+    private final byte[] delimiter; // CRLF "--" boundary
+    private final byte[] buf;
+    private int pos, limit;
+    private boolean eof;
+
+    private boolean started;
+    private boolean finished;
+    private boolean partDone = true;
+    private final PartStream partStream = new PartStream();
+
+    public MultipartReader(InputStream in, String boundary) {
+        if (boundary == null || boundary.isEmpty() || boundary.length() > 70) {
+            throw new IllegalArgumentException("bad multipart boundary");
+        }
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.buf = new byte[Math.max(16 * 1024, delimiter.length * 4)];
+        // первая граница идёт без предшествующего CRLF — подставляем его, чтобы искать единообразно
+        buf[0] = '\r';
+        buf[1] = '\n';
+        limit = 2;
+    }
+
+    /** Параметр boundary из заголовка Content-Type или null. */
+    public static String boundary(String contentType) {
+        if (contentType == null) return null;
+        return params(contentType).get("boundary");
+    }
+
+    /** Следующая часть или null после закрывающей границы. Непрочитанный остаток предыдущей части пропускается. */
+    public Part nextPart() throws IOException {
+        if (finished) return null;
+        if (!started) {
+            started = true;
+            partDone = false; // преамбула до первой границы
+        }
+        partStream.skipRest();
+
+        // после границы: "--" — конец, иначе (возможно после пробелов) CRLF и заголовки части
+        int c1 = readByte(), c2 = readByte();
+        if (c1 == '-' && c2 == '-') {
+            finished = true;
+            return null;
+        }
+        while (c1 == ' ' || c1 == '\t') { c1 = c2; c2 = readByte(); }
+        if (c1 != '\r' || c2 != '\n') throw new MalformedMultipartException("bad boundary line");
+
+        Map<String, String> headers = readHeaders();
+        partDone = false;
+        return new Part(headers);
+    }
+
+    private Map<String, String> readHeaders() throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int total = 0;
+        String lastKey = null;
+        while (true) {
+            line.reset();
+            int prev = -1, cur;
+            while (true) {
+                cur = readByte();
+                if (cur < 0) throw new EOFException("multipart headers truncated");
+                if (++total > MAX_HEADER_BYTES) throw new MalformedMultipartException("part headers too large");
+                if (prev == '\r' && cur == '\n') break;
+                if (prev >= 0) line.write(prev);
+                prev = cur;
+            }
+            if (line.size() == 0) return headers;
+            String h = line.toString(StandardCharsets.UTF_8);
+            if ((h.charAt(0) == ' ' || h.charAt(0) == '\t') && lastKey != null) {
+                headers.merge(lastKey, " " + h.trim(), String::concat); // продолжение (folding)
+                continue;
+            }
+            int k = h.indexOf(':');
+            if (k <= 0) continue;
+            lastKey = h.substring(0, k).trim().toLowerCase(Locale.ROOT);
+            headers.put(lastKey, h.substring(k + 1).trim());
+        }
+    }
+
+    /* ===================== поток содержимого части ===================== */
+
+    private final class PartStream extends InputStream {
+        private final byte[] one = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (partDone) return -1;
+            if (len == 0) return 0;
+            ensure(delimiter.length);
+            if (limit - pos < delimiter.length) {
+                throw new EOFException("multipart body ended without closing boundary");
+            }
+            int idx = indexOfDelimiter();
+            if (idx == pos) {
+                pos += delimiter.length;
+                partDone = true;
+                return -1;
+            }
+            // без найденной границы отдаём всё, кроме хвоста, в котором может начинаться граница
+            int end = idx >= 0 ? idx : limit - delimiter.length + 1;
+            int n = Math.min(len, end - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        void skipRest() throws IOException {
+            byte[] skip = new byte[8192];
+            while (read(skip, 0, skip.length) >= 0) {
+                // пропускаем
+            }
+        }
+    }
+
+    private int indexOfDelimiter() {
+        byte first = delimiter[0];
+        int last = limit - delimiter.length;
+        outer:
+        for (int i = pos; i <= last; i++) {
+            if (buf[i] != first) continue;
+            for (int j = 1; j < delimiter.length; j++) {
+                if (buf[i + j] != delimiter[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private int readByte() throws IOException {
+        ensure(1);
+        return pos < limit ? buf[pos++] & 0xFF : -1;
+    }
+
+    // гарантирует как минимум n доступных байт в буфере (если поток не кончился)
+    private void ensure(int n) throws IOException {
+        if (limit - pos >= n || eof) return;
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        while (limit - pos < n) {
+            int r = in.read(buf, limit, buf.length - limit);
+            if (r < 0) { eof = true; return; }
+            limit += r;
+        }
+    }
+
+    /* ===================== заголовки ===================== */
+
+    // "form-data; name=\"file\"; filename=\"a.docx\"" → {name=file, filename=a.docx}
+    static Map<String, String> params(String header) {
+        Map<String, String> res = new HashMap<>();
+        int i = header.indexOf(';');
+        while (i >= 0 && i < header.length()) {
+            i++;
+            while (i < header.length() && header.charAt(i) == ' ') i++;
+            int eq = header.indexOf('=', i);
+            if (eq < 0) break;
+            String key = header.substring(i, eq).trim().toLowerCase(Locale.ROOT);
+            int j = eq + 1;
+            String value;
+            if (j < header.length() && header.charAt(j) == '"') {
+                StringBuilder sb = new StringBuilder();
+                j++;
+                while (j < header.length() && header.charAt(j) != '"') {
+                    char c = header.charAt(j++);
+                    if (c == '\\' && j < header.length()) c = header.charAt(j++);
+                    sb.append(c);
+                }
+                value = sb.toString();
+                i = header.indexOf(';', j);
+            } else {
+                int semi = header.indexOf(';', j);
+                value = (semi < 0 ? header.substring(j) : header.substring(j, semi)).trim();
+                i = semi;
+            }
+            res.putIfAbsent(key, value);
+        }
+        return res;
+    }
+
+    // RFC 5987: UTF-8''%D0%BE%D0%BF... → строка
+    static String decodeExtValue(String v) {
+        int q = v.indexOf("''");
+        if (q < 0) return v;
+        try {
+            return URLDecoder.decode(v.substring(q + 2).replace("+", "%2B"), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return v;
+        }
+    }
+}
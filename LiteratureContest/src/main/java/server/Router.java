@@ -5,21 +5,30 @@ import server.handlers.Handler;
 import java.util.HashMap;
 import java.util.Map;
 
+/** Точное совпадение пути; путь вида "/submission/*" — префикс (обработчик сам разбирает хвост). */
 public class Router {
     private final Map<String, Handler> get  = new HashMap<>();
     private final Map<String, Handler> post = new HashMap<>();
     private final Map<String, Handler> put  = new HashMap<>();
+    private final Map<String, Handler> patch = new HashMap<>();
 
     public Router registerGET (String path, Handler h){ get.put(path, h);  return this; }
     public Router registerPOST(String path, Handler h){ post.put(path, h); return this; }
     public Router registerPUT (String path, Handler h){ put.put(path, h);  return this; }
+    public Router registerPATCH(String path, Handler h){ patch.put(path, h); return this; }
 
     public Handler resolve(String method, String path) {
-        return switch (method) {
-            case "GET"  -> get.get(path);
-            case "POST" -> post.get(path);
-            case "PUT"  -> put.get(path);
+        Map<String, Handler> routes = switch (method) {
+            case "GET"  -> get;
+            case "POST" -> post;
+            case "PUT"  -> put;
+            case "PATCH" -> patch;
             default     -> null;
         };
+        if (routes == null) return null;
+        Handler h = routes.get(path);
+        if (h != null) return h;
+        int slash = path.lastIndexOf('/');
+        return slash > 0 && slash < path.length() - 1 ? routes.get(path.substring(0, slash + 1) + "*") : null;
     }
 }
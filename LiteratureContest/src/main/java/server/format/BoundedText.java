@@ -0,0 +1,86 @@
+package server.format;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Текст рассказа, декодируемый потоком с подсчётом кодовых точек.
+ * Как только длина достигает maxChars (допустимо только chars &lt; maxChars), разбор прерывается
+ * {@link TooLongException} — остаток входа (тела запроса, DOCX) уже не читается.
+ */
+public final class BoundedText implements DocxUtil.TextSink {
+
+    /** Текст длиннее допустимого; разбор остановлен досрочно. */
+    public static final class TooLongException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxChars;
+
+        public TooLongException(int maxChars) {
+            super("text reached " + maxChars + " characters");
+            this.maxChars = maxChars;
+        }
+
+        public int maxChars() { return maxChars; }
+    }
+
+    private final int maxChars;
+    private final StringBuilder text = new StringBuilder();
+    private int codePoints;
+
+    public BoundedText(int maxChars) {
+        this.maxChars = maxChars;
+    }
+
+    @Override
+    public void append(char[] chars, int start, int length) throws IOException {
+        int n = 0;
+        for (int i = start; i < start + length; i++) {
+            if (!Character.isLowSurrogate(chars[i])) n++;
+        }
+        codePoints += n;
+        if (codePoints >= maxChars) throw new TooLongException(maxChars);
+        text.append(chars, start, length);
+    }
+
+    public int codePoints() { return codePoints; }
+
+    public String text() { return text.toString(); }
+
+    /* ===================== источники ===================== */
+
+    /** UTF-8 (битые последовательности заменяются, как в new String(bytes, UTF_8)). */
+    public static BoundedText decodeUtf8(InputStream in, int maxChars) throws IOException {
+        BoundedText res = new BoundedText(maxChars);
+        Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+        char[] buf = new char[4096];
+        int r;
+        while ((r = reader.read(buf)) > 0) res.append(buf, 0, r);
+        return res;
+    }
+
+    public static BoundedText fromDocx(InputStream docx, int maxChars) throws IOException {
+        BoundedText res = new BoundedText(maxChars);
+        DocxUtil.extractText(docx, res);
+        return res;
+    }
+
+    public static BoundedText fromDocx(Path docx, int maxChars) throws IOException {
+        BoundedText res = new BoundedText(maxChars);
+        DocxUtil.extractText(docx, res);
+        return res;
+    }
+
+    /** Загруженный файл: DOCX разбирается, всё остальное читается как UTF-8. */
+    public static BoundedText fromFile(String ext, Path file, int maxChars) throws IOException {
+        if (ext.toLowerCase().contains("doc")) return fromDocx(file, maxChars);
+        try (InputStream in = Files.newInputStream(file)) {
+            return decodeUtf8(in, maxChars);
+        }
+    }
+}
@@ -1,94 +1,247 @@
 package server.format;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
+import java.nio.CharBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.text.Normalizer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
 
 public final class DocxUtil {
     private DocxUtil() {}
 
 
+    /**
+     * Пишет нормализованный DOCX: document.xml формируется за один проход по тексту прямо в запись ZIP,
+     * статические части берутся из заранее закодированных массивов байт.
+     * CRC32 готового файла считается попутно и кэшируется для {@link ZipBuilder}.
+     */
     public static void writeNormalizedDocx(String title, String text, Path target) throws IOException {
         Files.createDirectories(target.getParent());
-        try (var out = Files.newOutputStream(target); var zip = new ZipOutputStream(out)) {
-            // [Content_Types].xml
-            zip.putNextEntry(new ZipEntry("[Content_Types].xml"));
-            zip.write(CONTENT_TYPES.getBytes(StandardCharsets.UTF_8));
-            zip.closeEntry();
+        CheckedOutputStream checked = new CheckedOutputStream(Files.newOutputStream(target), new CRC32());
+        try (var zip = new ZipOutputStream(checked)) {
+            putEntry(zip, "[Content_Types].xml", CONTENT_TYPES);
+            putEntry(zip, "_rels/.rels", RELS);
+            putEntry(zip, "word/_rels/.rels", WORD_RELS);
 
-            // _rels/.rels
-            zip.putNextEntry(new ZipEntry("_rels/.rels"));
-            zip.write(RELS.getBytes(StandardCharsets.UTF_8));
+            zip.putNextEntry(new ZipEntry("word/document.xml"));
+            writeDocumentXml(title, text, new XmlOut(zip));
             zip.closeEntry();
 
-            // word/_rels/.rels
-            zip.putNextEntry(new ZipEntry("word/_rels/.rels"));
-            zip.write(WORD_RELS.getBytes(StandardCharsets.UTF_8));
-            zip.closeEntry();
+            putEntry(zip, "word/styles.xml", STYLES);
+        }
+        ZipBuilder.saveCrc(target, checked.getChecksum().getValue(), Files.size(target));
+    }
 
-            // word/document.xml
-            zip.putNextEntry(new ZipEntry("word/document.xml"));
-            zip.write(buildDocumentXml(title, text).getBytes(StandardCharsets.UTF_8));
-            zip.closeEntry();
+    private static void putEntry(ZipOutputStream zip, String name, byte[] content) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(content);
+        zip.closeEntry();
+    }
 
-            // word/styles.xml
-            zip.putNextEntry(new ZipEntry("word/styles.xml"));
-            zip.write(STYLES.getBytes(StandardCharsets.UTF_8));
-            zip.closeEntry();
+    /** Приёмник текста при потоковом извлечении (куски текста без копирования в String). */
+    @FunctionalInterface
+    public interface TextSink {
+        void append(char[] chars, int start, int length) throws IOException;
+    }
+
+    /** Текст DOCX, читаемый прямо из файла на диске (через центральный каталог ZIP, без загрузки файла в память). */
+    public static String extractPlainText(Path docx) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        extractText(docx, sb::append);
+        return sb.toString();
+    }
+
+    /**
+     * Потоково извлекает текст из DOCX-пакета: только содержимое w:t (плюс w:tab/w:br),
+     * абзацы w:p разделяются '\n', пустые абзацы в начале и в конце отбрасываются.
+     * @return количество кодовых точек, переданных в sink
+     */
+    public static long extractText(InputStream docx, TextSink sink) throws IOException {
+        ZipInputStream zip = new ZipInputStream(docx);
+        ZipEntry e;
+        while ((e = zip.getNextEntry()) != null) {
+            if ("word/document.xml".equalsIgnoreCase(e.getName())) {
+                return extractFromDocumentXml(zip, sink);
+            }
         }
+        return 0;
     }
 
-    public static String extractPlainText(byte[] docxBytes) throws IOException {
-        try (InputStream in = new ByteArrayInputStream(docxBytes); ZipInputStream zip = new ZipInputStream(in)) {
-            ZipEntry e;
-            while ((e = zip.getNextEntry()) != null) {
+    public static long extractText(Path docx, TextSink sink) throws IOException {
+        try (ZipFile zip = new ZipFile(docx.toFile())) {
+            var it = zip.entries();
+            while (it.hasMoreElements()) {
+                ZipEntry e = it.nextElement();
                 if ("word/document.xml".equalsIgnoreCase(e.getName())) {
-                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                    zip.transferTo(bos);
-                    String xml = bos.toString(StandardCharsets.UTF_8);
-                    return xml.replaceAll("<[^>]+>", " ")
-                            .replaceAll("\\s+", " ")
-                            .trim();
+                    try (InputStream in = zip.getInputStream(e)) {
+                        return extractFromDocumentXml(in, sink);
+                    }
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static final String W_NS = "http://schemas.openxmlformats.org/wordprocessingml/2006/main";
+    private static final char[] NEWLINE = {'\n'};
+    private static final char[] TAB = {'\t'};
+    private static final XMLInputFactory XML = newXmlFactory();
+
+    private static XMLInputFactory newXmlFactory() {
+        XMLInputFactory f = XMLInputFactory.newFactory();
+        f.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        f.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        f.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        f.setProperty(XMLInputFactory.IS_COALESCING, false);
+        return f;
+    }
+
+    private static long extractFromDocumentXml(InputStream xml, TextSink sink) throws IOException {
+        long codePoints = 0;
+        boolean inText = false;
+        boolean anyText = false;
+        int pendingBreaks = 0; // переводы строк выдаём лениво, чтобы не было хвостовых пустых абзацев
+        XMLStreamReader r = null;
+        try {
+            r = XML.createXMLStreamReader(xml);
+            while (r.hasNext()) {
+                int ev = r.next();
+                if (ev == XMLStreamConstants.START_ELEMENT) {
+                    if (!W_NS.equals(r.getNamespaceURI())) continue;
+                    switch (r.getLocalName()) {
+                        case "t" -> inText = true;
+                        case "p" -> { if (anyText) pendingBreaks++; }
+                        case "br", "cr" -> { if (anyText) pendingBreaks++; }
+                        case "tab" -> {
+                            codePoints += flushBreaks(sink, pendingBreaks);
+                            pendingBreaks = 0;
+                            sink.append(TAB, 0, 1);
+                            codePoints++;
+                            anyText = true;
+                        }
+                        default -> { }
+                    }
+                } else if (ev == XMLStreamConstants.END_ELEMENT) {
+                    if (inText && "t".equals(r.getLocalName()) && W_NS.equals(r.getNamespaceURI())) inText = false;
+                } else if (inText && (ev == XMLStreamConstants.CHARACTERS || ev == XMLStreamConstants.CDATA
+                        || ev == XMLStreamConstants.SPACE)) {
+                    int len = r.getTextLength();
+                    if (len == 0) continue;
+                    char[] chars = r.getTextCharacters();
+                    int start = r.getTextStart();
+                    codePoints += flushBreaks(sink, pendingBreaks);
+                    pendingBreaks = 0;
+                    sink.append(chars, start, len);
+                    int lowSurrogates = 0;
+                    for (int i = start; i < start + len; i++) {
+                        if (Character.isLowSurrogate(chars[i])) lowSurrogates++;
+                    }
+                    codePoints += len - lowSurrogates;
+                    anyText = true;
                 }
             }
+        } catch (XMLStreamException e) {
+            throw new IOException("malformed word/document.xml: " + e.getMessage(), e);
+        } finally {
+            if (r != null) {
+                try { r.close(); } catch (XMLStreamException ignore) {}
+            }
         }
-        return "";
+        return codePoints;
+    }
+
+    private static int flushBreaks(TextSink sink, int n) throws IOException {
+        for (int i = 0; i < n; i++) sink.append(NEWLINE, 0, 1);
+        return n;
     }
 
-    private static String buildDocumentXml(String title, String body) {
-        String safeTitle = escapeXml(title);
-        String safeBody  = escapeXml(body).replace("\n", "</w:t></w:r></w:p><w:p><w:r><w:t>");
-        return """
-                <?xml version="1.0" encoding="UTF-8" standalone="yes"?>
-                <w:document xmlns:wpc="http://schemas.microsoft.com/office/word/2010/wordprocessingCanvas" xmlns:mc="http://schemas.openxmlformats.org/markup-compatibility/2006" xmlns:o="urn:schemas-microsoft-com:office:office" xmlns:r="http://schemas.openxmlformats.org/officeDocument/2006/relationships" xmlns:m="http://schemas.openxmlformats.org/officeDocument/2006/math" xmlns:v="urn:schemas-microsoft-com:vml" xmlns:wp14="http://schemas.microsoft.com/office/word/2010/wordprocessingDrawing" xmlns:wp="http://schemas.openxmlformats.org/drawingml/2006/wordprocessingDrawing" xmlns:w10="urn:schemas-microsoft-com:office:word" xmlns:w="http://schemas.openxmlformats.org/wordprocessingml/2006/main" xmlns:w14="http://schemas.microsoft.com/office/2010/wordml" xmlns:wpg="http://schemas.microsoft.com/office/word/2010/wordprocessingGroup" xmlns:wpi="http://schemas.microsoft.com/office/word/2010/wordprocessingInk" xmlns:wne="http://schemas.microsoft.com/office/2006/wordml" xmlns:wps="http://schemas.microsoft.com/office/word/2010/wordprocessingShape" mc:Ignorable="w14 wp14">
-                  <w:body>
-                    <w:p>
-                      <w:pPr><w:pStyle w:val="Title"/></w:pPr>
-                      <w:r><w:t>%s</w:t></w:r>
-                    </w:p>
-                    <w:p>
-                      <w:r><w:t>%s</w:t></w:r>
-                    </w:p>
-                    <w:sectPr><w:pgSz w:w=11906 w:h=16838/><w:pgMar w:top="1440" w:right="1440" w:bottom="1440" w:left="1440" w:header="708" w:footer="708" w:gutter="0"/></w:sectPr>
-                  </w:body>
-                </w:document>
-                """.formatted(safeTitle, safeBody);
+    /**
+     * document.xml: абзац-заголовок и по абзацу на строку текста. Нормализация — по правилам
+     * TextCheck.normalize, но в том же проходе, что и запись: BOM в начале отбрасывается,
+     * \r\n и \r считаются переводом строки, каждая строка приводится к NFC, подряд идущие
+     * пустые строки схлопываются в одну, пробельные символы по краям текста обрезаются.
+     */
+    private static void writeDocumentXml(String title, String text, XmlOut xml) throws IOException {
+        xml.raw(DOCUMENT_HEAD).text(title).raw(DOCUMENT_TITLE_END);
+
+        String s = text == null ? "" : text;
+        int from = 0, to = s.length();
+        if (from < to && s.charAt(from) == '\uFEFF') from++;
+        while (from < to && s.charAt(from) <= ' ') from++;
+        while (to > from && s.charAt(to - 1) <= ' ') to--;
+
+        if (from == to) {
+            xml.raw(PARAGRAPH_START).raw(PARAGRAPH_END);
+        }
+        boolean blankPending = false;
+        int i = from;
+        while (i < to) {
+            int eol = i;
+            while (eol < to && s.charAt(eol) != '\n' && s.charAt(eol) != '\r') eol++;
+            if (eol == i) {
+                blankPending = true; // после обрезки края текста непустые, так что пустая строка всегда внутри
+            } else {
+                if (blankPending) {
+                    xml.raw(PARAGRAPH_START).raw(PARAGRAPH_END);
+                    blankPending = false;
+                }
+                xml.raw(PARAGRAPH_START);
+                writeNfc(s, i, eol, xml);
+                xml.raw(PARAGRAPH_END);
+            }
+            i = eol;
+            if (i < to && s.charAt(i) == '\r' && i + 1 < to && s.charAt(i + 1) == '\n') i++;
+            i++;
+        }
+
+        xml.raw(DOCUMENT_TAIL);
+        xml.flush();
     }
 
-    private static String escapeXml(String s) {
-        return s == null ? "" : s.replace("&", "&amp;").replace("<", "&lt;")
-                .replace(">", "&gt;").replace("\"", "&quot;").replace("'", "&apos;");
+    // NFC не действует через перевод строки, поэтому строки нормализуются по отдельности;
+    // символы до U+0300 заведомо в NFC и не комбинируются — для них Normalizer не вызывается
+    private static void writeNfc(String s, int from, int to, XmlOut xml) throws IOException {
+        boolean simple = true;
+        for (int k = from; k < to && simple; k++) simple = s.charAt(k) < 0x300;
+        if (simple) {
+            xml.text(s, from, to);
+            return;
+        }
+        CharSequence line = CharBuffer.wrap(s, from, to);
+        if (Normalizer.isNormalized(line, Normalizer.Form.NFC)) xml.text(s, from, to);
+        else xml.text(Normalizer.normalize(line, Normalizer.Form.NFC));
     }
 
-    private static final String CONTENT_TYPES = """
+    private static final byte[] DOCUMENT_HEAD = XmlOut.utf8("""
+            <?xml version="1.0" encoding="UTF-8" standalone="yes"?>
+            <w:document xmlns:wpc="http://schemas.microsoft.com/office/word/2010/wordprocessingCanvas" xmlns:mc="http://schemas.openxmlformats.org/markup-compatibility/2006" xmlns:o="urn:schemas-microsoft-com:office:office" xmlns:r="http://schemas.openxmlformats.org/officeDocument/2006/relationships" xmlns:m="http://schemas.openxmlformats.org/officeDocument/2006/math" xmlns:v="urn:schemas-microsoft-com:vml" xmlns:wp14="http://schemas.microsoft.com/office/word/2010/wordprocessingDrawing" xmlns:wp="http://schemas.openxmlformats.org/drawingml/2006/wordprocessingDrawing" xmlns:w10="urn:schemas-microsoft-com:office:word" xmlns:w="http://schemas.openxmlformats.org/wordprocessingml/2006/main" xmlns:w14="http://schemas.microsoft.com/office/2010/wordml" xmlns:wpg="http://schemas.microsoft.com/office/word/2010/wordprocessingGroup" xmlns:wpi="http://schemas.microsoft.com/office/word/2010/wordprocessingInk" xmlns:wne="http://schemas.microsoft.com/office/2006/wordml" xmlns:wps="http://schemas.microsoft.com/office/word/2010/wordprocessingShape" mc:Ignorable="w14 wp14">
+              <w:body>
+                <w:p>
+                  <w:pPr><w:pStyle w:val="Title"/></w:pPr>
+                  <w:r><w:t>""");
+    private static final byte[] DOCUMENT_TITLE_END = XmlOut.utf8("</w:t></w:r>\n    </w:p>\n");
+    private static final byte[] PARAGRAPH_START = XmlOut.utf8("    <w:p><w:r><w:t xml:space=\"preserve\">");
+    private static final byte[] PARAGRAPH_END = XmlOut.utf8("</w:t></w:r></w:p>\n");
+    private static final byte[] DOCUMENT_TAIL = XmlOut.utf8("""
+                <w:sectPr><w:pgSz w:w="11906" w:h="16838"/><w:pgMar w:top="1440" w:right="1440" w:bottom="1440" w:left="1440" w:header="708" w:footer="708" w:gutter="0"/></w:sectPr>
+              </w:body>
+            </w:document>
+            """);
+
+    private static final byte[] CONTENT_TYPES = XmlOut.utf8("""
             <?xml version="1.0" encoding="UTF-8"?>
             <Types xmlns="http://schemas.openxmlformats.org/package/2006/content-types">
                 <Default Extension="rels" ContentType="application/vnd.openxmlformats-package.relationships+xml"/>
@@ -96,22 +249,22 @@ public final class DocxUtil {
                 <Override PartName="/word/document.xml" ContentType="application/vnd.openxmlformats-officedocument.wordprocessingml.document.main+xml"/>
                 <Override PartName="/word/styles.xml" ContentType="application/vnd.openxmlformats-officedocument.wordprocessingml.styles+xml"/>
             </Types>
-            """;
+            """);
 
-    private static final String RELS = """
+    private static final byte[] RELS = XmlOut.utf8("""
             <?xml version="1.0" encoding="UTF-8"?>
             <Relationships xmlns="http://schemas.openxmlformats.org/package/2006/relationships">
                 <Relationship Id="rId1" Type="http://schemas.openxmlformats.org/officeDocument/2006/relationships/officeDocument" Target="word/document.xml"/>
             </Relationships>
-            """;
+            """);
 
-    private static final String WORD_RELS = """
+    private static final byte[] WORD_RELS = XmlOut.utf8("""
             <?xml version="1.0" encoding="UTF-8"?>
             <Relationships xmlns="http://schemas.openxmlformats.org/package/2006/relationships">
             </Relationships>
-            """;
+            """);
 
-    private static final String STYLES = """
+    private static final byte[] STYLES = XmlOut.utf8("""
             <?xml version="1.0" encoding="UTF-8" standalone="yes"?>
             <w:styles xmlns:w="http://schemas.openxmlformats.org/wordprocessingml/2006/main">
               <w:style w:type="paragraph" w:styleId="Title">
@@ -127,5 +280,5 @@ public final class DocxUtil {
                 <w:rPr><w:sz w:val="24"/></w:rPr>
               </w:style>
             </w:styles>
-            """;
+            """);
 }
@@ -0,0 +1,266 @@
+package server.format;
+
+import server.storage.Storage;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Потоковая запись XLSX (SpreadsheetML): строки пишутся прямо в запись ZIP текущего листа,
+ * листов может быть несколько. Строковые значения попадают в таблицу общих строк (sharedStrings),
+ * повторяющиеся (авторы, названия) хранятся в ней один раз.
+ *
+ * Память не зависит от числа строк: таблица общих строк по ходу дописывается во временный файл,
+ * а в памяти держится только словарь для дедупликации, ограниченный {@link #MAX_DEDUP} значениями
+ * (дальше новые строки просто добавляются в таблицу без поиска повторов).
+ *
+ * <pre>
+ *   try (XlsxWriter x = new XlsxWriter(out)) {
+ *       x.sheet("Ranking").row("Rank", "Story ID", "Score");
+ *       x.row(1, "a1b2", 4.5);
+ *   }
+ * </pre>
+ *
+ * close() дописывает пакет и удаляет временный файл общих строк (в том числе после ошибки посреди записи),
+ * но сам поток out не закрывает — он принадлежит вызывающему коду.
+ */
+public final class XlsxWriter implements Closeable {
+    static final int MAX_DEDUP = 50_000;
+    private static final int MAX_COLUMNS = 16_384;
+
+    private final ZipOutputStream zip;
+    private final XmlOut xml;
+    private final List<String> sheetNames = new ArrayList<>();
+    private boolean inSheet;
+    private int rowIndex;
+    private final List<String> columnNames = new ArrayList<>();
+
+    private final Path sstFile;
+    private final OutputStream sstOut;
+    private final XmlOut sst;
+    private final Map<String, Integer> shared = new HashMap<>();
+    private int uniqueCount;
+    private long totalCount;
+    private boolean finished;
+
+    public XlsxWriter(OutputStream out) throws IOException {
+        this.zip = new ZipOutputStream(new Unclosable(out));
+        this.xml = new XmlOut(zip);
+        this.sstFile = Storage.newTempFile(".sst");
+        this.sstOut = Files.newOutputStream(sstFile);
+        this.sst = new XmlOut(sstOut);
+    }
+
+    /** Начинает новый лист; предыдущий закрывается. */
+    public XlsxWriter sheet(String name) throws IOException {
+        endSheet();
+        sheetNames.add(sheetName(name, sheetNames.size() + 1));
+        zip.putNextEntry(new ZipEntry("xl/worksheets/sheet" + sheetNames.size() + ".xml"));
+        xml.raw(SHEET_HEAD);
+        inSheet = true;
+        rowIndex = 0;
+        return this;
+    }
+
+    /** Строка листа: String — общая строка, Number — число, Boolean — логическое, null — пустая ячейка. */
+    public XlsxWriter row(Object... cells) throws IOException {
+        return row(java.util.Arrays.asList(cells));
+    }
+
+    public XlsxWriter row(List<?> cells) throws IOException {
+        if (!inSheet) throw new IllegalStateException("sheet() must be called before row()");
+        if (cells.size() > MAX_COLUMNS) throw new IllegalArgumentException("too many columns: " + cells.size());
+        int r = ++rowIndex;
+        xml.ascii("<row r=\"").ascii(r).ascii("\">");
+        for (int i = 0; i < cells.size(); i++) {
+            Object v = cells.get(i);
+            if (v == null) continue;
+            xml.ascii("<c r=\"").ascii(column(i)).ascii(r);
+            if (v instanceof Number n) {
+                double d = n.doubleValue();
+                if (Double.isNaN(d) || Double.isInfinite(d)) { xml.ascii("\"/>"); continue; }
+                String num = (n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte)
+                        ? Long.toString(n.longValue()) : Double.toString(d);
+                xml.ascii("\"><v>").ascii(num).ascii("</v></c>");
+            } else if (v instanceof Boolean b) {
+                xml.ascii("\" t=\"b\"><v>").ascii(b ? "1" : "0").ascii("</v></c>");
+            } else {
+                xml.ascii("\" t=\"s\"><v>").ascii(sharedIndex(v.toString())).ascii("</v></c>");
+            }
+        }
+        xml.ascii("</row>");
+        return this;
+    }
+
+    /** Дописывает служебные части пакета; поток, переданный в конструктор, остаётся открытым. */
+    public void finish() throws IOException {
+        if (finished) return;
+        finished = true;
+        try {
+            if (sheetNames.isEmpty()) sheet("Sheet1");
+            endSheet();
+            sst.flush();
+            sstOut.close();
+
+            zip.putNextEntry(new ZipEntry("xl/sharedStrings.xml"));
+            xml.raw(SST_HEAD).ascii(" count=\"").ascii(totalCount).ascii("\" uniqueCount=\"").ascii(uniqueCount)
+                    .ascii("\">");
+            xml.flush();
+            Files.copy(sstFile, zip);
+            xml.ascii("</sst>").flush();
+            zip.closeEntry();
+
+            zip.putNextEntry(new ZipEntry("xl/workbook.xml"));
+            xml.raw(WORKBOOK_HEAD);
+            for (int i = 1; i <= sheetNames.size(); i++) {
+                xml.ascii("<sheet name=\"").text(sheetNames.get(i - 1)).ascii("\" sheetId=\"").ascii(i)
+                        .ascii("\" r:id=\"rId").ascii(i).ascii("\"/>");
+            }
+            xml.raw(WORKBOOK_TAIL).flush();
+            zip.closeEntry();
+
+            zip.putNextEntry(new ZipEntry("xl/_rels/workbook.xml.rels"));
+            xml.raw(RELS_HEAD);
+            for (int i = 1; i <= sheetNames.size(); i++) {
+                xml.ascii("<Relationship Id=\"rId").ascii(i).ascii("\" Type=\"")
+                        .ascii("http://schemas.openxmlformats.org/officeDocument/2006/relationships/worksheet")
+                        .ascii("\" Target=\"worksheets/sheet").ascii(i).ascii(".xml\"/>");
+            }
+            int sstId = sheetNames.size() + 1;
+            xml.ascii("<Relationship Id=\"rId").ascii(sstId).ascii("\" Type=\"")
+                    .ascii("http://schemas.openxmlformats.org/officeDocument/2006/relationships/sharedStrings")
+                    .ascii("\" Target=\"sharedStrings.xml\"/>");
+            xml.raw(RELS_TAIL).flush();
+            zip.closeEntry();
+
+            zip.putNextEntry(new ZipEntry("_rels/.rels"));
+            xml.raw(ROOT_RELS).flush();
+            zip.closeEntry();
+
+            zip.putNextEntry(new ZipEntry("[Content_Types].xml"));
+            xml.raw(CONTENT_TYPES_HEAD);
+            for (int i = 1; i <= sheetNames.size(); i++) {
+                xml.ascii("<Override PartName=\"/xl/worksheets/sheet").ascii(i).ascii(".xml\" ContentType=\"")
+                        .ascii("application/vnd.openxmlformats-officedocument.spreadsheetml.worksheet+xml\"/>");
+            }
+            xml.raw(CONTENT_TYPES_TAIL).flush();
+            zip.closeEntry();
+            zip.finish();
+        } finally {
+            sstOut.close();
+            Files.deleteIfExists(sstFile);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            zip.close();
+        }
+    }
+
+    /* ===================== internals ===================== */
+
+    private static final class Unclosable extends FilterOutputStream {
+        Unclosable(OutputStream out) { super(out); }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException { out.write(b, off, len); }
+
+        @Override
+        public void close() throws IOException { out.flush(); }
+    }
+
+    private void endSheet() throws IOException {
+        if (!inSheet) return;
+        xml.raw(SHEET_TAIL).flush();
+        zip.closeEntry();
+        inSheet = false;
+    }
+
+    private int sharedIndex(String s) throws IOException {
+        totalCount++;
+        Integer idx = shared.get(s);
+        if (idx != null) return idx;
+        int i = uniqueCount++;
+        if (shared.size() < MAX_DEDUP) shared.put(s, i);
+        // пробелы по краям значимы, иначе Excel их отбросит
+        boolean preserve = !s.isEmpty() && (s.charAt(0) <= ' ' || s.charAt(s.length() - 1) <= ' ');
+        sst.raw(preserve ? SI_START_PRESERVE : SI_START).text(s).raw(SI_END);
+        return i;
+    }
+
+    // 0 → A, 25 → Z, 26 → AA ...
+    private String column(int i) {
+        while (columnNames.size() <= i) {
+            int n = columnNames.size() + 1;
+            StringBuilder sb = new StringBuilder();
+            while (n > 0) {
+                n--;
+                sb.append((char) ('A' + n % 26));
+                n /= 26;
+            }
+            columnNames.add(sb.reverse().toString());
+        }
+        return columnNames.get(i);
+    }
+
+    // Excel: не длиннее 31 символа, без []:*?/\ и уникальное в книге
+    private String sheetName(String name, int index) {
+        String n = name == null ? "" : name.replaceAll("[\\[\\]:*?/\\\\]", "_").strip();
+        if (n.length() > 31) n = n.substring(0, 31);
+        if (n.isEmpty() || sheetNames.contains(n)) n = "Sheet" + index;
+        return n;
+    }
+
+    private static final byte[] SHEET_HEAD = XmlOut.utf8("""
+            <?xml version="1.0" encoding="UTF-8" standalone="yes"?>
+            <worksheet xmlns="http://schemas.openxmlformats.org/spreadsheetml/2006/main" xmlns:r="http://schemas.openxmlformats.org/officeDocument/2006/relationships"><sheetData>""");
+    private static final byte[] SHEET_TAIL = XmlOut.utf8("</sheetData></worksheet>\n");
+
+    private static final byte[] SST_HEAD = XmlOut.utf8("""
+            <?xml version="1.0" encoding="UTF-8" standalone="yes"?>
+            <sst xmlns="http://schemas.openxmlformats.org/spreadsheetml/2006/main\"""");
+    private static final byte[] SI_START = XmlOut.utf8("<si><t>");
+    private static final byte[] SI_START_PRESERVE = XmlOut.utf8("<si><t xml:space=\"preserve\">");
+    private static final byte[] SI_END = XmlOut.utf8("</t></si>");
+
+    private static final byte[] WORKBOOK_HEAD = XmlOut.utf8("""
+            <?xml version="1.0" encoding="UTF-8" standalone="yes"?>
+            <workbook xmlns="http://schemas.openxmlformats.org/spreadsheetml/2006/main" xmlns:r="http://schemas.openxmlformats.org/officeDocument/2006/relationships"><sheets>""");
+    private static final byte[] WORKBOOK_TAIL = XmlOut.utf8("</sheets></workbook>\n");
+
+    private static final byte[] RELS_HEAD = XmlOut.utf8("""
+            <?xml version="1.0" encoding="UTF-8" standalone="yes"?>
+            <Relationships xmlns="http://schemas.openxmlformats.org/package/2006/relationships">""");
+    private static final byte[] RELS_TAIL = XmlOut.utf8("</Relationships>\n");
+
+    private static final byte[] ROOT_RELS = XmlOut.utf8("""
+            <?xml version="1.0" encoding="UTF-8" standalone="yes"?>
+            <Relationships xmlns="http://schemas.openxmlformats.org/package/2006/relationships">
+              <Relationship Id="rId1" Type="http://schemas.openxmlformats.org/officeDocument/2006/relationships/officeDocument" Target="xl/workbook.xml"/>
+            </Relationships>
+            """);
+
+    private static final byte[] CONTENT_TYPES_HEAD = XmlOut.utf8("""
+            <?xml version="1.0" encoding="UTF-8" standalone="yes"?>
+            <Types xmlns="http://schemas.openxmlformats.org/package/2006/content-types">
+              <Default Extension="rels" ContentType="application/vnd.openxmlformats-package.relationships+xml"/>
+              <Default Extension="xml" ContentType="application/xml"/>
+              <Override PartName="/xl/workbook.xml" ContentType="application/vnd.openxmlformats-officedocument.spreadsheetml.sheet.main+xml"/>
+              <Override PartName="/xl/sharedStrings.xml" ContentType="application/vnd.openxmlformats-officedocument.spreadsheetml.sharedStrings+xml"/>
+            """);
+    private static final byte[] CONTENT_TYPES_TAIL = XmlOut.utf8("</Types>\n");
+}
@@ -0,0 +1,109 @@
+package server.format;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Буферизованная запись XML-частей OOXML прямо в поток (обычно — в запись ZipOutputStream).
+ * Текст экранируется и кодируется в UTF-8 за один проход по символам, без промежуточных String.
+ * Символы, недопустимые в XML 1.0 (управляющие, кроме \t и \n, и одиночные суррогаты), отбрасываются.
+ */
+final class XmlOut {
+    private final OutputStream out;
+    private final byte[] buf = new byte[8192];
+    private int len;
+
+    XmlOut(OutputStream out) {
+        this.out = out;
+    }
+
+    /** Заранее закодированный фрагмент разметки. */
+    XmlOut raw(byte[] bytes) throws IOException {
+        if (bytes.length > buf.length - len) {
+            flushBuffer();
+            if (bytes.length > buf.length) { out.write(bytes); return this; }
+        }
+        System.arraycopy(bytes, 0, buf, len, bytes.length);
+        len += bytes.length;
+        return this;
+    }
+
+    /** ASCII-разметка (имена тегов, числа) без экранирования. */
+    XmlOut ascii(String s) throws IOException {
+        if (s.length() > buf.length - len) flushBuffer();
+        for (int i = 0; i < s.length(); i++) buf[len++] = (byte) s.charAt(i);
+        return this;
+    }
+
+    XmlOut ascii(long v) throws IOException {
+        return ascii(Long.toString(v));
+    }
+
+    XmlOut text(CharSequence s) throws IOException {
+        return s == null ? this : text(s, 0, s.length());
+    }
+
+    /** Экранированный текст s[from, to). */
+    XmlOut text(CharSequence s, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            if (len + 8 > buf.length) flushBuffer();
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                switch (c) {
+                    case '&' -> put(AMP);
+                    case '<' -> put(LT);
+                    case '>' -> put(GT);
+                    case '"' -> put(QUOT);
+                    case '\'' -> put(APOS);
+                    default -> {
+                        if (c >= 0x20 || c == '\t' || c == '\n') buf[len++] = (byte) c;
+                    }
+                }
+            } else if (c < 0x800) {
+                buf[len++] = (byte) (0xC0 | (c >> 6));
+                buf[len++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c)) {
+                if (i + 1 < to && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buf[len++] = (byte) (0xF0 | (cp >> 18));
+                    buf[len++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    buf[len++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    buf[len++] = (byte) (0x80 | (cp & 0x3F));
+                }
+            } else if (!Character.isLowSurrogate(c) && c != '\uFFFE' && c != '\uFFFF') {
+                buf[len++] = (byte) (0xE0 | (c >> 12));
+                buf[len++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[len++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return this;
+    }
+
+    /** Сбрасывает буфер в поток, сам поток не закрывает (запись ZIP закрывает вызывающий код). */
+    void flush() throws IOException {
+        flushBuffer();
+    }
+
+    static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static final byte[] AMP = utf8("&amp;");
+    private static final byte[] LT = utf8("&lt;");
+    private static final byte[] GT = utf8("&gt;");
+    private static final byte[] QUOT = utf8("&quot;");
+    private static final byte[] APOS = utf8("&apos;");
+
+    private void put(byte[] entity) {
+        System.arraycopy(entity, 0, buf, len, entity.length);
+        len += entity.length;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (len > 0) {
+            out.write(buf, 0, len);
+            len = 0;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package server.format;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Сборка ZIP из STORED-записей (без сжатия) для файлов, которые уже сжаты сами по себе (DOCX).
+ * CRC32 и размер известны заранее (см. {@link #crcOf(Path)}), поэтому содержимое переносится
+ * в архив простым копированием через FileChannel.transferTo, без прохода через Deflater и CRC.
+ *
+ * Сжимаемые файлы добавляются через {@link #addDeflated(String, Path)}: содержимое режется на блоки,
+ * блоки сжимаются параллельно в ForkJoinPool и склеиваются в один deflate-поток.
+ *
+ * <pre>
+ *   try (ZipBuilder zip = ZipBuilder.create(target)) {
+ *       zip.addStored(id + ".docx", normalizedDocx);
+ *   }
+ * </pre>
+ */
+public final class ZipBuilder implements Closeable {
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIR = 0x06054b50;
+    private static final int DATA_DESCRIPTOR = 0x08074b50;
+    private static final short VERSION = 10;           // 1.0: STORED без расширений
+    private static final short VERSION_DEFLATE = 20;   // 2.0: DEFLATED и дескриптор данных
+    private static final short FLAG_UTF8_NAMES = 0x0800;
+    private static final short FLAG_DATA_DESCRIPTOR = 0x0008;
+    private static final short STORED = 0;
+    private static final short DEFLATED = 8;
+    private static final String CRC_SUFFIX = ".crc";
+
+    private static final int BLOCK = 128 * 1024;
+    private static final int DICTIONARY = 32 * 1024;  // окно deflate: столько истории нужно следующему блоку
+
+    private record Entry(byte[] name, short version, short flags, short method, long crc,
+                         long compressedSize, long size, int dosTime, long offset) {}
+
+    private final WritableByteChannel out;
+    private final List<Entry> entries = new ArrayList<>();
+    private long written;
+    private boolean finished;
+
+    public ZipBuilder(WritableByteChannel out) {
+        this.out = out;
+    }
+
+    public static ZipBuilder create(Path target) throws IOException {
+        return new ZipBuilder(FileChannel.open(target, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+    }
+
+    /** Добавляет файл как есть; CRC берётся из кэша рядом с файлом. */
+    public void addStored(String name, Path file) throws IOException {
+        long crc = crcOf(file);
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = in.size();
+            if (size > 0xFFFFFFFFL) throw new IOException("ZIP64 is not supported");
+            Entry e = new Entry(name.getBytes(StandardCharsets.UTF_8), VERSION, FLAG_UTF8_NAMES, STORED,
+                    crc, size, size, dosTime(Files.getLastModifiedTime(file).toMillis()), written);
+            writeLocalHeader(e);
+
+            long pos = 0;
+            while (pos < size) {
+                long n = in.transferTo(pos, size - pos, out);
+                if (n <= 0) throw new IOException("short copy of " + file);
+                pos += n;
+            }
+            written += size;
+            entries.add(e);
+        }
+    }
+
+    /**
+     * Добавляет файл со сжатием. Блоки по 128 КБ сжимаются параллельно (каждый — своим Deflater,
+     * со словарём из последних 32 КБ предыдущего блока и SYNC_FLUSH в конце), затем пишутся по порядку:
+     * склейка таких кусков — корректный deflate-поток. Размеры заранее неизвестны, поэтому
+     * после данных идёт дескриптор (CRC и размеры).
+     */
+    public void addDeflated(String name, Path file) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int time = dosTime(Files.getLastModifiedTime(file).toMillis());
+        short flags = FLAG_UTF8_NAMES | FLAG_DATA_DESCRIPTOR;
+        long offset = written;
+        writeLocalHeader(new Entry(nameBytes, VERSION_DEFLATE, flags, DEFLATED, 0, 0, 0, time, offset));
+
+        CRC32 crc = new CRC32();
+        long size = 0, compressed = 0;
+        int window = 2 * ForkJoinPool.getCommonPoolParallelism() + 1;
+        List<ForkJoinTask<byte[]>> pending = new ArrayList<>(window);
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] prev = null;
+            byte[] block = in.readNBytes(BLOCK);
+            do {
+                // окно из нескольких блоков: сжимаются параллельно, в памяти не больше окна
+                pending.clear();
+                while (pending.size() < window) {
+                    byte[] next = block.length < BLOCK ? new byte[0] : in.readNBytes(BLOCK);
+                    boolean last = next.length == 0;
+                    crc.update(block);
+                    size += block.length;
+                    byte[] data = block, dict = prev == null ? null : tail(prev);
+                    pending.add(ForkJoinPool.commonPool().submit(() -> deflateBlock(data, dict, last)));
+                    prev = block;
+                    block = next;
+                    if (last) break;
+                }
+                for (ForkJoinTask<byte[]> t : pending) {
+                    byte[] chunk = t.join();
+                    writeFully(ByteBuffer.wrap(chunk));
+                    compressed += chunk.length;
+                }
+            } while (block.length > 0);
+        }
+        if (size > 0xFFFFFFFFL || compressed > 0xFFFFFFFFL) throw new IOException("ZIP64 is not supported");
+
+        ByteBuffer d = header(16);
+        d.putInt(DATA_DESCRIPTOR).putInt((int) crc.getValue()).putInt((int) compressed).putInt((int) size);
+        writeFully(d.flip());
+        entries.add(new Entry(nameBytes, VERSION_DEFLATE, flags, DEFLATED, crc.getValue(), compressed, size, time, offset));
+    }
+
+    /** Дописывает центральный каталог; канал остаётся открытым (например, сокет HTTP-ответа). */
+    public void finish() throws IOException {
+        if (finished) return;
+        finished = true;
+        long cdStart = written;
+        for (Entry e : entries) {
+            ByteBuffer h = header(46 + e.name().length);
+            h.putInt(CENTRAL_HEADER).putShort(VERSION_DEFLATE).putShort(e.version()).putShort(e.flags())
+                    .putShort(e.method()).putInt(e.dosTime()).putInt((int) e.crc())
+                    .putInt((int) e.compressedSize()).putInt((int) e.size())
+                    .putShort((short) e.name().length).putShort((short) 0).putShort((short) 0)
+                    .putShort((short) 0).putShort((short) 0).putInt(0).putInt((int) e.offset())
+                    .put(e.name());
+            writeFully(h.flip());
+        }
+        long cdSize = written - cdStart;
+        if (cdStart > 0xFFFFFFFFL) throw new IOException("ZIP64 is not supported");
+        ByteBuffer end = header(22);
+        end.putInt(END_OF_CENTRAL_DIR).putShort((short) 0).putShort((short) 0)
+                .putShort((short) entries.size()).putShort((short) entries.size())
+                .putInt((int) cdSize).putInt((int) cdStart).putShort((short) 0);
+        writeFully(end.flip());
+    }
+
+    /** Дописывает центральный каталог и закрывает канал. */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    /* ===================== кэш CRC ===================== */
+
+    /**
+     * CRC32 файла из соседнего &lt;file&gt;.crc ("crc-hex size"); если кэша нет или размер
+     * не совпадает — считается по содержимому и сохраняется.
+     */
+    public static long crcOf(Path file) throws IOException {
+        Path sidecar = sidecar(file);
+        long size = Files.size(file);
+        if (Files.exists(sidecar)) {
+            String[] p = Files.readString(sidecar, StandardCharsets.US_ASCII).trim().split(" ");
+            try {
+                if (p.length == 2 && Long.parseLong(p[1]) == size) return Long.parseLong(p[0], 16);
+            } catch (NumberFormatException ignore) {
+                // битый кэш — пересчитываем
+            }
+        }
+        CRC32 crc = new CRC32();
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buf = new byte[8192];
+            int r;
+            while ((r = in.read(buf)) > 0) crc.update(buf, 0, r);
+        }
+        saveCrc(file, crc.getValue(), size);
+        return crc.getValue();
+    }
+
+    /** Запоминает CRC32 только что записанного файла (вызывается при нормализации). */
+    public static void saveCrc(Path file, long crc, long size) throws IOException {
+        Files.writeString(sidecar(file), Long.toHexString(crc) + " " + size + "\n", StandardCharsets.US_ASCII);
+    }
+
+    private static Path sidecar(Path file) {
+        return file.resolveSibling(file.getFileName() + CRC_SUFFIX);
+    }
+
+    /* ===================== internals ===================== */
+
+    private void writeLocalHeader(Entry e) throws IOException {
+        if (written > 0xFFFFFFFFL) throw new IOException("ZIP64 is not supported");
+        if (entries.size() == 0xFFFF) throw new IOException("too many ZIP entries");
+        ByteBuffer h = header(30 + e.name().length);
+        h.putInt(LOCAL_HEADER).putShort(e.version()).putShort(e.flags()).putShort(e.method())
+                .putInt(e.dosTime()).putInt((int) e.crc()).putInt((int) e.compressedSize()).putInt((int) e.size())
+                .putShort((short) e.name().length).putShort((short) 0).put(e.name());
+        writeFully(h.flip());
+    }
+
+    private static byte[] tail(byte[] block) {
+        return block.length <= DICTIONARY ? block : Arrays.copyOfRange(block, block.length - DICTIONARY, block.length);
+    }
+
+    private static byte[] deflateBlock(byte[] data, byte[] dictionary, boolean last) {
+        Deflater d = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            if (dictionary != null) d.setDictionary(dictionary);
+            d.setInput(data);
+            ByteArrayOutputStream res = new ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] buf = new byte[16 * 1024];
+            if (last) {
+                d.finish();
+                while (!d.finished()) res.write(buf, 0, d.deflate(buf));
+            } else {
+                // SYNC_FLUSH выравнивает блок по байту и не ставит признак конца — следующий кусок продолжает поток
+                int n;
+                do {
+                    n = d.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                    res.write(buf, 0, n);
+                } while (n == buf.length);
+            }
+            return res.toByteArray();
+        } finally {
+            d.end();
+        }
+    }
+
+    private static ByteBuffer header(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void writeFully(ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) written += out.write(b);
+    }
+
+    // время в формате MS-DOS: дата в старших 16 битах, время (с точностью 2 с) — в младших
+    private static int dosTime(long millis) {
+        LocalDateTime t = LocalDateTime.ofInstant(java.time.Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if (t.getYear() < 1980) return (1 << 21) | (1 << 16);
+        return (t.getYear() - 1980) << 25 | t.getMonthValue() << 21 | t.getDayOfMonth() << 16
+                | t.getHour() << 11 | t.getMinute() << 5 | t.getSecond() >> 1;
+    }
+}
@@ -0,0 +1,32 @@
+package server.handlers;
+
+import server.HttpRequest;
+import server.HttpResponses;
+import server.time.ConfigService;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/** Проверка доступа к служебным эндпоинтам (выгрузки, диагностика) по заголовку X-Admin-Token. */
+final class AdminAuth {
+    private AdminAuth() {}
+
+    /** true — доступ разрешён; иначе ответ с ошибкой уже отправлен. */
+    static boolean check(HttpRequest req, OutputStream out) throws IOException {
+        String expected = ConfigService.adminToken();
+        if (expected == null || expected.isBlank()) {
+            HttpResponses.json(out, 403, "{\"error\":\"admin endpoints are disabled\"}");
+            return false;
+        }
+        String given = req.header("x-admin-token");
+        // сравнение за постоянное время, чтобы не подсказывать токен по задержке
+        if (given == null || !MessageDigest.isEqual(
+                given.getBytes(StandardCharsets.UTF_8), expected.getBytes(StandardCharsets.UTF_8))) {
+            HttpResponses.json(out, 401, "{\"error\":\"invalid X-Admin-Token\"}");
+            return false;
+        }
+        return true;
+    }
+}
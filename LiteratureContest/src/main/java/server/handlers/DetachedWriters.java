@@ -0,0 +1,31 @@
+package server.handlers;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Небольшой общий пул записи в соединения, отвязанные от пула сервера ({@link EventStream}, {@link LongPoll}):
+ * диспетчер шины событий сам в сеть не пишет. Потоки — демоны и без нагрузки завершаются.
+ */
+final class DetachedWriters {
+    private DetachedWriters() {}
+
+    static final int THREADS = 16;
+
+    private static final ThreadPoolExecutor POOL = pool();
+
+    static void execute(Runnable task) {
+        POOL.execute(task);
+    }
+
+    private static ThreadPoolExecutor pool() {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "detached-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
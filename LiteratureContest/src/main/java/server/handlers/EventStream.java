@@ -0,0 +1,122 @@
+package server.handlers;
+
+import server.logic.EventBus;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * Одно соединение GET /events (text/event-stream). Соединение отвязано от потока пула
+ * (см. {@link server.HttpRequest#detach()}).
+ *
+ * Диспетчер {@link EventBus} в сокет не пишет: кадры складываются в очередь соединения (не больше
+ * {@value #MAX_PENDING_BYTES} байт — с запасом на досылку всей истории шины переподключившемуся клиенту),
+ * а пишет их общий пул {@link DetachedWriters}. Клиент, который перестал читать, не задерживает остальных:
+ * переполненная очередь или запись дольше {@value #WRITE_TIMEOUT_MS} мс (проверяется на heartbeat)
+ * закрывают соединение.
+ */
+final class EventStream implements EventBus.Subscriber {
+    private static final int RETRY_MS = 5_000;
+    static final int MAX_PENDING_BYTES = 1024 * 1024;
+    static final long WRITE_TIMEOUT_MS = 30_000;
+    private static final byte[] PING = ": ping\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final ArrayDeque<byte[]> outbox = new ArrayDeque<>();
+    private int pendingBytes;
+    private boolean closed;
+    private boolean draining;
+    private volatile long writingSince; // 0 — запись не идёт
+
+    EventStream(Socket socket, OutputStream out) {
+        this.socket = socket;
+        this.out = out;
+    }
+
+    /** Заголовки ответа и первое событие — текущее состояние окон конкурса. */
+    boolean open(String phaseJson) {
+        String head = "HTTP/1.1 200 OK\r\n"
+                + "Content-Type: text/event-stream; charset=utf-8\r\n"
+                + "Cache-Control: no-cache\r\n"
+                + "Connection: keep-alive\r\n"
+                + "X-Accel-Buffering: no\r\n\r\n"
+                + "retry: " + RETRY_MS + "\n\n";
+        return enqueue(frame(head + "event: phase\ndata: " + phaseJson + "\n\n"));
+    }
+
+    // data — однострочный JSON, поэтому поле data: одно
+    @Override
+    public boolean send(EventBus.Event e) {
+        return enqueue(frame("id: " + e.id() + "\nevent: " + e.type() + "\ndata: " + e.data() + "\n\n"));
+    }
+
+    @Override
+    public boolean heartbeat() {
+        long since = writingSince;
+        if (since != 0 && System.currentTimeMillis() - since > WRITE_TIMEOUT_MS) {
+            close(); // запись висит: клиент не читает, буфер отправки полон
+            return false;
+        }
+        return enqueue(PING);
+    }
+
+    void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            outbox.clear();
+            pendingBytes = 0;
+        }
+        // закрытие сокета прерывает и зависшую запись в потоке пула
+        try { socket.close(); } catch (IOException ignore) {}
+    }
+
+    private boolean enqueue(byte[] frame) {
+        synchronized (this) {
+            if (closed) return false;
+            if (pendingBytes + frame.length <= MAX_PENDING_BYTES) {
+                outbox.addLast(frame);
+                pendingBytes += frame.length;
+                if (!draining) {
+                    draining = true;
+                    DetachedWriters.execute(this::drain);
+                }
+                return true;
+            }
+        }
+        close(); // клиент отстал больше чем на MAX_PENDING_BYTES
+        return false;
+    }
+
+    // пишет очередь до конца; монитор на время записи не держится, чтобы send() не ждал сеть
+    private void drain() {
+        while (true) {
+            byte[] frame;
+            synchronized (this) {
+                frame = closed ? null : outbox.pollFirst();
+                if (frame == null) {
+                    draining = false;
+                    return;
+                }
+                pendingBytes -= frame.length;
+            }
+            writingSince = System.currentTimeMillis();
+            try {
+                out.write(frame);
+                out.flush();
+            } catch (IOException e) {
+                close();
+            } finally {
+                writingSince = 0;
+            }
+        }
+    }
+
+    private static byte[] frame(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
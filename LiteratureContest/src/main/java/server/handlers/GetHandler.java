@@ -3,20 +3,35 @@ package server.handlers;
 import server.HttpRequest;
 import server.HttpResponses;
 import server.logic.ContestService;
+import server.logic.DuplicateDetector;
+import server.logic.EventBus;
+import server.logic.ScoreStats;
+import server.logic.SearchIndex;
 import server.time.ConfigService;
 import server.time.TimeUtil;
+import server.util.JsonWriter;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.time.Instant;
 import java.time.ZoneId;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
 
 public class GetHandler implements Handler {
 
     private final ContestService contest;
 
     public GetHandler() throws IOException {
-        this.contest = new ContestService();
+        this(new ContestService());
+    }
+
+    public GetHandler(ContestService contest) {
+        this.contest = contest;
     }
 
     @Override
@@ -29,8 +44,24 @@ public class GetHandler implements Handler {
             assignmentsWorkbook(req, out);
         } else if ("/assignments.zip".equals(req.path)) {
             assignmentsArchive(req, out);
+        } else if ("/export/contest.xlsx".equals(req.path)) {
+            contestWorkbook(req, out);
+        } else if ("/export/jury.zip".equals(req.path)) {
+            juryArchive(req, out);
+        } else if ("/search".equals(req.path)) {
+            search(req, out);
+        } else if ("/duplicates".equals(req.path)) {
+            duplicates(req, out);
+        } else if ("/events".equals(req.path)) {
+            events(req, out);
+        } else if (req.path.startsWith("/submission/")) {
+            submissionStatus(req, out);
         } else if ("/results".equals(req.path)) {
-            results(out);
+            results(req, out);
+        } else if ("/results/top".equals(req.path)) {
+            resultsTop(req, out);
+        } else if ("/results/rank".equals(req.path)) {
+            resultsRank(req, out);
         } else {
             HttpResponses.text(out, 404, "Not Found");
         }
@@ -80,12 +111,47 @@ public class GetHandler implements Handler {
             HttpResponses.json(out, 401, "{\"error\":\"missing X-Client-Id\"}");
             return;
         }
+        if (req.param("waitVersion") != null) {
+            longPoll(req, out, clientId, Set.of("assignments"),
+                    () -> ContestService.assignmentVersion(contest.assignmentsFor(clientId)),
+                    (r, o) -> sendAssignments(clientId, o));
+            return;
+        }
+        sendAssignments(clientId, out);
+    }
 
+    private void sendAssignments(String clientId, OutputStream out) throws IOException {
         var assignment = contest.assignmentsFor(clientId);
-        String json = """
-        {"clientId":"%s","stories":%s}
-        """.formatted(escape(clientId), toJsonArray(assignment.submissionIds()));
-        HttpResponses.json(out, 200, json);
+        String version = ContestService.assignmentVersion(assignment);
+        HttpResponses.stream(out, 200, "application/json; charset=utf-8", Map.of("ETag", "\"" + version + "\""), body -> {
+            var w = new JsonWriter(body);
+            w.beginObject()
+                    .name("clientId").value(clientId)
+                    .name("version").value(version)
+                    .name("stories").stringArray(assignment.submissionIds())
+                    .endObject();
+            w.flush();
+        });
+    }
+
+    /**
+     * ?waitVersion=V&amp;timeout=30s: пока версия ресурса равна V, запрос ждёт событий wakeOn,
+     * не занимая поток пула (см. {@link LongPoll}); затем — обычный ответ или 304 по таймауту.
+     */
+    private void longPoll(HttpRequest req, OutputStream out, String clientId, Set<String> wakeOn,
+                          LongPoll.Version version, Handler respond) throws IOException {
+        String wait = req.param("waitVersion");
+        // версия возвращается в заголовке ETag — только безопасные символы
+        if (!wait.matches("[0-9A-Za-z_-]{0,64}")) {
+            HttpResponses.json(out, 400, "{\"error\":\"invalid waitVersion\"}");
+            return;
+        }
+        Long timeout = LongPoll.parseTimeout(req.param("timeout"));
+        if (timeout == null) {
+            HttpResponses.json(out, 400, "{\"error\":\"timeout must be 1ms.." + LongPoll.MAX_TIMEOUT_MS / 1000 + "s\"}");
+            return;
+        }
+        LongPoll.park(contest.events(), req, out, clientId, wakeOn, wait, timeout, version, respond);
     }
 
     private void assignmentsWorkbook(HttpRequest req, OutputStream out) throws IOException {
@@ -94,12 +160,8 @@ public class GetHandler implements Handler {
             HttpResponses.json(out, 401, "{\"error\":\"missing X-Client-Id\"}");
             return;
         }
-        byte[] workbook = contest.assignmentsWorkbook(clientId);
-        out.write(("HTTP/1.1 200 OK\r\n" +
-                "Content-Type: application/vnd.openxmlformats-officedocument.spreadsheetml.sheet\r\n" +
-                "Content-Length: " + workbook.length + "\r\n" +
-                "Content-Disposition: attachment; filename=assignments.xlsx\r\n\r\n").getBytes());
-        out.write(workbook);
+        sendPackFile(req, out, clientId, ContestService.Pack::workbook,
+                "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet", "assignments.xlsx");
     }
 
     private void assignmentsArchive(HttpRequest req, OutputStream out) throws IOException {
@@ -108,55 +170,307 @@ public class GetHandler implements Handler {
             HttpResponses.json(out, 401, "{\"error\":\"missing X-Client-Id\"}");
             return;
         }
-        byte[] zip = contest.assignmentsArchive(clientId);
-        out.write(("HTTP/1.1 200 OK\r\n" +
-                "Content-Type: application/zip\r\n" +
-                "Content-Length: " + zip.length + "\r\n" +
-                "Content-Disposition: attachment; filename=assignments.zip\r\n\r\n").getBytes());
-        out.write(zip);
+        sendPackFile(req, out, clientId, ContestService.Pack::archive, "application/zip", "assignments.zip");
+    }
+
+    // файл пакета отдаётся с диска; версия назначения служит ETag, повторное скачивание — 304
+    private void sendPackFile(HttpRequest req, OutputStream out, String clientId, Function<ContestService.Pack, Path> file,
+                              String contentType, String downloadName) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            var pack = contest.packFor(clientId);
+            String etag = "\"" + pack.version() + "\"";
+            if (etag.equals(req.header("if-none-match"))) {
+                HttpResponses.notModified(out, etag);
+                return;
+            }
+            try {
+                HttpResponses.file(out, 200, contentType, file.apply(pack), Map.of(
+                        "ETag", etag,
+                        "Content-Disposition", "attachment; filename=" + downloadName));
+                return;
+            } catch (NoSuchFileException e) {
+                // пакет пересобрали между packFor и открытием файла (заголовки ещё не ушли) — берём новый
+                if (attempt >= 2) throw e;
+            }
+        }
+    }
+
+    private void contestWorkbook(HttpRequest req, OutputStream out) throws IOException {
+        if (!AdminAuth.check(req, out)) return;
+        HttpResponses.stream(out, 200, "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet",
+                Map.of("Content-Disposition", "attachment; filename=contest.xlsx"),
+                contest::writeContestWorkbook);
+    }
+
+    private void juryArchive(HttpRequest req, OutputStream out) throws IOException {
+        if (!AdminAuth.check(req, out)) return;
+        HttpResponses.stream(out, 200, "application/zip",
+                Map.of("Content-Disposition", "attachment; filename=jury.zip"),
+                contest::writeJuryArchive);
+    }
+
+    private void search(HttpRequest req, OutputStream out) throws IOException {
+        if (!AdminAuth.check(req, out)) return;
+        String q = req.param("q");
+        if (q == null || q.isBlank()) {
+            HttpResponses.json(out, 400, "{\"error\":\"missing q\"}");
+            return;
+        }
+        Integer limit = intParam(req, "limit", DEFAULT_PAGE, 0, MAX_PAGE);
+        if (limit == null) {
+            HttpResponses.json(out, 400, "{\"error\":\"limit must be 0.." + MAX_PAGE + "\"}");
+            return;
+        }
+        ContestService.SearchResult found;
+        try {
+            found = contest.search(q, limit);
+        } catch (SearchIndex.QueryException e) {
+            HttpResponses.jsonStream(out, 400, body -> {
+                JsonWriter w = new JsonWriter(body);
+                w.beginObject().name("error").value("bad query").name("detail").value(e.getMessage()).endObject();
+                w.flush();
+            });
+            return;
+        }
+        HttpResponses.jsonStream(out, 200, body -> {
+            JsonWriter w = new JsonWriter(body);
+            w.beginObject().name("query").value(q).name("total").value(found.total()).name("items").beginArray();
+            for (var s : found.items()) {
+                w.beginObject()
+                        .name("storyId").value(s.submissionId())
+                        .name("title").value(s.title())
+                        .name("author").value(s.clientId())
+                        .endObject();
+            }
+            w.endArray().endObject();
+            w.flush();
+        });
+    }
+
+    // GET /submission/{ticket} — итог обработки рассказа, принятого в очередь (202)
+    private void submissionStatus(HttpRequest req, OutputStream out) throws IOException {
+        String clientId = req.header("x-client-id");
+        if (clientId == null || clientId.isBlank()) {
+            HttpResponses.json(out, 401, "{\"error\":\"missing X-Client-Id\"}");
+            return;
+        }
+        var status = contest.intake().status(req.path.substring("/submission/".length()));
+        // чужой билет не отличается от несуществующего
+        if (status == null || !status.clientId().equals(clientId)) {
+            HttpResponses.json(out, 404, "{\"error\":\"unknown ticket\"}");
+            return;
+        }
+        HttpResponses.jsonStream(out, 200, body -> {
+            JsonWriter w = new JsonWriter(body);
+            w.beginObject()
+                    .name("ticket").value(status.ticket())
+                    .name("status").value(status.state())
+                    .name("receivedAt").value(Instant.ofEpochMilli(status.spooledAt()).toString());
+            if (status.submissionId() != null) w.name("submissionId").value(status.submissionId());
+            if (status.error() != null) w.name("error").value(status.error());
+            w.endObject();
+            w.flush();
+        });
+    }
+
+    // GET /events — поток Server-Sent Events вместо опроса /status и /assignments
+    private void events(HttpRequest req, OutputStream out) throws IOException {
+        String clientId = req.header("x-client-id");
+        if (clientId == null || clientId.isBlank()) clientId = req.param("clientId"); // EventSource не умеет заголовки
+        if (clientId != null && clientId.isBlank()) clientId = null;
+        var bus = contest.events();
+        if (bus.subscribers() >= EventBus.MAX_SUBSCRIBERS) {
+            HttpResponses.json(out, 503, "{\"error\":\"too many subscribers\"}", Map.of("Retry-After", "30"));
+            return;
+        }
+        long lastEventId = 0;
+        String last = req.header("last-event-id");
+        if (last == null) last = req.param("lastEventId");
+        if (last != null) {
+            try { lastEventId = Long.parseLong(last.trim()); } catch (NumberFormatException ignore) {}
+        }
+
+        var stream = new EventStream(req.detach(), out);
+        if (!stream.open(ContestService.phaseJson(Instant.now())) || bus.subscribe(clientId, stream, lastEventId) == null) {
+            stream.close();
+        }
+    }
+
+    // GET /duplicates — группы почти одинаковых историй
+    private void duplicates(HttpRequest req, OutputStream out) throws IOException {
+        if (!AdminAuth.check(req, out)) return;
+        var clusters = contest.duplicateClusters();
+        HttpResponses.jsonStream(out, 200, body -> {
+            JsonWriter w = new JsonWriter(body);
+            w.beginObject().name("threshold").value(DuplicateDetector.THRESHOLD, 2)
+                    .name("clusters").beginArray();
+            for (var c : clusters) {
+                w.beginObject().name("maxSimilarity").value(c.maxSimilarity(), 2).name("stories").beginArray();
+                for (var s : c.stories()) {
+                    w.beginObject()
+                            .name("storyId").value(s.submissionId())
+                            .name("title").value(s.title())
+                            .name("author").value(s.clientId())
+                            .endObject();
+                }
+                w.endArray().name("pairs").beginArray();
+                for (var p : c.pairs()) {
+                    w.beginObject()
+                            .name("a").value(p.a())
+                            .name("b").value(p.b())
+                            .name("similarity").value(p.similarity(), 2)
+                            .endObject();
+                }
+                w.endArray().endObject();
+            }
+            w.endArray().endObject();
+            w.flush();
+        });
     }
 
-    private void results(OutputStream out) throws IOException {
+    private void results(HttpRequest req, OutputStream out) throws IOException {
+        if (req.param("waitVersion") != null) {
+            // до публикации ждём события "phase" о её наступлении
+            longPoll(req, out, null, Set.of("phase", "results"),
+                    () -> Instant.now().isBefore(ConfigService.resultsAt()) ? null : contest.resultsVersion(),
+                    this::sendResults);
+            return;
+        }
+        sendResults(req, out);
+    }
+
+    private void sendResults(HttpRequest req, OutputStream out) throws IOException {
         if (Instant.now().isBefore(ConfigService.resultsAt())) {
             HttpResponses.json(out, 403, "{\"error\":\"results are not ready yet\"}");
             return;
         }
-        var results = contest.generateResults();
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\"generatedAt\":").append(results.generatedAtUtc()).append(",\"disqualified\":[");
-        for (int i = 0; i < results.disqualified().size(); i++) {
-            if (i > 0) sb.append(',');
-            sb.append('\"').append(escape(results.disqualified().get(i))).append('\"');
-        }
-        sb.append("],\"protocol\":{")
-                .append("\"totalSubmissions\":").append(results.protocol().totalSubmissions()).append(',')
-                .append("\"totalReviewers\":").append(results.protocol().totalReviewers()).append(',')
-                .append("\"requiredReviews\":").append(results.protocol().requiredReviews()).append(',')
-                .append("\"submittedReviews\":").append(results.protocol().submittedReviews()).append(',')
-                .append("\"insufficientStories\":").append(toJsonArray(results.protocol().insufficientStories())).append(',')
-                .append("\"disqualifiedAuthors\":").append(toJsonArray(results.protocol().disqualifiedAuthors()))
-                .append("},\"items\":[");
-        for (int i = 0; i < results.items().size(); i++) {
-            var it = results.items().get(i);
-            if (i > 0) sb.append(',');
-            sb.append("{\"storyId\":\"").append(escape(it.storyId())).append("\",")
-                    .append("\"title\":\"").append(escape(it.title())).append("\",")
-                    .append("\"avg\":").append(String.format(java.util.Locale.US, "%.2f", it.avgScore())).append(',')
-                    .append("\"count\":").append(it.reviewsCount()).append(',')
-                    .append("\"insufficientReviews\":").append(it.insufficientReviews()).append('}');
-        }
-        sb.append("]}");
-        HttpResponses.json(out, 200, sb.toString());
-    }
-
-    private static String escape(String s) { return s.replace("\\", "\\\\").replace("\"", "\\\""); }
-    private static String toJsonArray(java.util.List<String> ids) {
-        StringBuilder sb = new StringBuilder("[");
-        for (int i = 0; i < ids.size(); i++) {
-            if (i > 0) sb.append(',');
-            sb.append('\"').append(escape(ids.get(i))).append('\"');
-        }
-        sb.append(']');
-        return sb.toString();
+        if (req.param("limit") != null || req.param("offset") != null || req.param("metric") != null) {
+            resultsPage(req, out);
+            return;
+        }
+        String etag = "\"" + contest.resultsVersion() + "\"";
+        HttpResponses.file(out, 200, "application/json; charset=utf-8", contest.resultsJsonFile(), Map.of("ETag", etag));
+    }
+
+    // GET /results?limit=&offset=&metric=
+    private void resultsPage(HttpRequest req, OutputStream out) throws IOException {
+        Integer limit  = intParam(req, "limit", DEFAULT_PAGE, 0, MAX_PAGE);
+        Integer offset = intParam(req, "offset", 0, 0, Integer.MAX_VALUE);
+        if (limit == null || offset == null) {
+            HttpResponses.json(out, 400, "{\"error\":\"limit must be 0.." + MAX_PAGE + ", offset must be >= 0\"}");
+            return;
+        }
+        ScoreStats.Metric metric = metricParam(req, out);
+        if (metric == null) return;
+        var ranking = contest.currentRanking(metric);
+        var page = ranking.page(offset, limit);
+        String etag = "\"" + contest.resultsVersion() + "-" + metric.id() + "\"";
+        HttpResponses.stream(out, 200, "application/json; charset=utf-8", Map.of("ETag", etag), body -> {
+            var w = new JsonWriter(body);
+            w.beginObject()
+                    .name("generatedAt").value(ranking.generatedAtUtc())
+                    .name("metric").value(metric.id())
+                    .name("total").value(ranking.size())
+                    .name("offset").value(offset)
+                    .name("limit").value(limit)
+                    .name("items").beginArray();
+            for (int i = 0; i < page.size(); i++) {
+                ContestService.writeJson(page.get(i), offset + i + 1, w);
+            }
+            w.endArray().endObject();
+            w.flush();
+        });
+    }
+
+    // GET /results/top?k=
+    private void resultsTop(HttpRequest req, OutputStream out) throws IOException {
+        if (Instant.now().isBefore(ConfigService.resultsAt())) {
+            HttpResponses.json(out, 403, "{\"error\":\"results are not ready yet\"}");
+            return;
+        }
+        Integer k = intParam(req, "k", 3, 0, MAX_PAGE);
+        if (k == null) {
+            HttpResponses.json(out, 400, "{\"error\":\"k must be 0.." + MAX_PAGE + "\"}");
+            return;
+        }
+        ScoreStats.Metric metric = metricParam(req, out);
+        if (metric == null) return;
+        var ranking = contest.currentRanking(metric);
+        var top = ranking.top(k);
+        HttpResponses.jsonStream(out, 200, body -> {
+            var w = new JsonWriter(body);
+            w.beginObject()
+                    .name("generatedAt").value(ranking.generatedAtUtc())
+                    .name("metric").value(metric.id())
+                    .name("total").value(ranking.size())
+                    .name("k").value(k)
+                    .name("items").beginArray();
+            for (int i = 0; i < top.size(); i++) {
+                ContestService.writeJson(top.get(i), i + 1, w);
+            }
+            w.endArray().endObject();
+            w.flush();
+        });
+    }
+
+    // GET /results/rank?storyId=
+    private void resultsRank(HttpRequest req, OutputStream out) throws IOException {
+        if (Instant.now().isBefore(ConfigService.resultsAt())) {
+            HttpResponses.json(out, 403, "{\"error\":\"results are not ready yet\"}");
+            return;
+        }
+        String storyId = req.param("storyId");
+        if (storyId == null || storyId.isBlank()) {
+            HttpResponses.json(out, 400, "{\"error\":\"storyId is required\"}");
+            return;
+        }
+        ScoreStats.Metric metric = metricParam(req, out);
+        if (metric == null) return;
+        var ranking = contest.currentRanking(metric);
+        int rank = ranking.rankOf(storyId);
+        var item = ranking.item(storyId);
+        if (rank < 0 || item == null) {
+            HttpResponses.json(out, 404, "{\"error\":\"story is not ranked\"}");
+            return;
+        }
+        HttpResponses.jsonStream(out, 200, body -> {
+            var w = new JsonWriter(body);
+            w.beginObject()
+                    .name("generatedAt").value(ranking.generatedAtUtc())
+                    .name("metric").value(metric.id())
+                    .name("total").value(ranking.size())
+                    .name("item");
+            ContestService.writeJson(item, rank, w);
+            w.endObject();
+            w.flush();
+        });
+    }
+
+    // ?metric= (по умолчанию — метрика конкурса); null — неизвестная метрика, 400 уже отправлен
+    private static ScoreStats.Metric metricParam(HttpRequest req, OutputStream out) throws IOException {
+        String v = req.param("metric");
+        if (v == null || v.isBlank()) return ContestService.rankingMetric();
+        ScoreStats.Metric m = ScoreStats.Metric.parse(v);
+        if (m == null) {
+            StringBuilder ids = new StringBuilder();
+            for (ScoreStats.Metric x : ScoreStats.Metric.values()) ids.append(ids.length() > 0 ? ", " : "").append(x.id());
+            HttpResponses.json(out, 400, "{\"error\":\"metric must be one of " + ids + "\"}");
+        }
+        return m;
+    }
+
+    private static final int DEFAULT_PAGE = 50;
+    private static final int MAX_PAGE = 1000;
+
+    // null — параметр задан, но не число или вне диапазона
+    private static Integer intParam(HttpRequest req, String name, int def, int min, int max) {
+        String v = req.param(name);
+        if (v == null || v.isBlank()) return def;
+        try {
+            int n = Integer.parseInt(v.trim());
+            return n < min || n > max ? null : n;
+        } catch (NumberFormatException e) {
+            return null;
+        }
     }
 }
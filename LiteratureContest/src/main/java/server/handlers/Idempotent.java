@@ -0,0 +1,175 @@
+package server.handlers;
+
+import server.HttpRequest;
+import server.HttpResponses;
+import server.logic.IdempotencyStore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+
+/**
+ * Обёртка обработчика для заголовка Idempotency-Key: первый запрос выполняется, а его ответ запоминается
+ * в {@link IdempotencyStore}; повтор с тем же ключом (того же клиента, на тот же метод и путь) получает
+ * тот же ответ побайтно, с заголовком Idempotent-Replayed: true, и ничего не делает заново.
+ *
+ * Ключ, повторно использованный с другим телом, — 422; повтор, пока первый запрос ещё идёт, — 409.
+ * Ответы 5xx и слишком большие ответы не запоминаются: такой повтор выполняется заново.
+ */
+public final class Idempotent implements Handler {
+    static final int MAX_KEY_LENGTH = 255;
+    static final int MAX_RESPONSE_BYTES = 16 * 1024;
+
+    private final Handler inner;
+    private final IdempotencyStore store;
+
+    private Idempotent(Handler inner, IdempotencyStore store) {
+        this.inner = inner;
+        this.store = store;
+    }
+
+    public static Handler wrap(Handler inner, IdempotencyStore store) {
+        return new Idempotent(inner, store);
+    }
+
+    @Override
+    public void handle(HttpRequest req, OutputStream out) throws IOException {
+        String key = req.header("idempotency-key");
+        if (key == null) {
+            inner.handle(req, out);
+            return;
+        }
+        if (!validKey(key)) {
+            HttpResponses.json(out, 400, "{\"error\":\"Idempotency-Key must be 1.." + MAX_KEY_LENGTH + " printable ASCII characters\"}");
+            return;
+        }
+
+        String clientId = req.header("x-client-id");
+        String scope = (clientId == null ? "" : clientId) + " " + req.method + " " + req.path;
+        MessageDigest digest = sha256();
+        req.filterBody(in -> new DigestInputStream(in, digest));
+
+        IdempotencyStore.Claim claim = store.begin(scope, key);
+        if (claim.state() == IdempotencyStore.State.IN_PROGRESS) {
+            HttpResponses.json(out, 409, "{\"error\":\"a request with this Idempotency-Key is still in progress\"}",
+                    Map.of("Retry-After", "1"));
+            return;
+        }
+        if (claim.state() == IdempotencyStore.State.DONE) {
+            if (!fingerprint(req, digest).equals(claim.entry().fingerprint())) {
+                HttpResponses.json(out, 422, "{\"error\":\"Idempotency-Key was already used for a different request\"}");
+                return;
+            }
+            out.write(replayed(claim.entry().response()));
+            out.flush();
+            return;
+        }
+
+        Capture capture = new Capture(out);
+        boolean completed = false;
+        try {
+            inner.handle(req, capture);
+            int status = capture.status();
+            if (!capture.overflow && status > 0 && status < 500) {
+                store.complete(scope, key, fingerprint(req, digest), capture.copy.toByteArray());
+                completed = true;
+            }
+        } finally {
+            if (!completed) store.abandon(scope, key);
+        }
+    }
+
+    // хеш всего тела: дочитывается то, что обработчик не прочёл (например, при раннем отказе)
+    private static String fingerprint(HttpRequest req, MessageDigest digest) throws IOException {
+        req.bodyStream().transferTo(OutputStream.nullOutputStream());
+        String ct = req.header("content-type");
+        digest.update(("\n" + (ct == null ? "" : ct) + "\n" + req.query).getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static byte[] replayed(byte[] response) {
+        int eol = indexOfCrlf(response);
+        if (eol < 0) return response;
+        byte[] header = "Idempotent-Replayed: true\r\n".getBytes(StandardCharsets.US_ASCII);
+        byte[] res = new byte[response.length + header.length];
+        System.arraycopy(response, 0, res, 0, eol + 2);
+        System.arraycopy(header, 0, res, eol + 2, header.length);
+        System.arraycopy(response, eol + 2, res, eol + 2 + header.length, response.length - eol - 2);
+        return res;
+    }
+
+    private static int indexOfCrlf(byte[] b) {
+        for (int i = 0; i + 1 < b.length; i++) if (b[i] == '\r' && b[i + 1] == '\n') return i;
+        return -1;
+    }
+
+    private static boolean validKey(String key) {
+        if (key.isEmpty() || key.length() > MAX_KEY_LENGTH) return false;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c < 0x21 || c > 0x7e) return false;
+        }
+        return true;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // ответ уходит клиенту как обычно и параллельно копируется, пока не превысит MAX_RESPONSE_BYTES
+    private static final class Capture extends OutputStream {
+        private final OutputStream out;
+        final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        boolean overflow;
+
+        Capture(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (keep(1)) copy.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (keep(len)) copy.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        private boolean keep(int n) {
+            if (!overflow && copy.size() + n > MAX_RESPONSE_BYTES) {
+                overflow = true;
+                copy.reset();
+            }
+            return !overflow;
+        }
+
+        // "HTTP/1.1 201 Created" → 201; 0 — ответа нет
+        int status() {
+            byte[] b = copy.toByteArray();
+            if (b.length < 12) return 0;
+            try {
+                return Integer.parseInt(new String(b, 9, 3, StandardCharsets.US_ASCII));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+    }
+}
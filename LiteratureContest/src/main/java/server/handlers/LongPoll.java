@@ -0,0 +1,132 @@
+package server.handlers;
+
+import server.HttpRequest;
+import server.HttpResponses;
+import server.logic.EventBus;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Long-poll ожидание (?waitVersion=V&amp;timeout=30s): пока версия ресурса равна V, запрос не занимает
+ * поток пула — соединение отвязано от сервера и подписано на {@link EventBus}. На подходящее событие
+ * версия перепроверяется; изменилась — отправляется обычный ответ, истёк таймаут — 304 Not Modified.
+ *
+ * Ответы пишутся общим пулом {@link DetachedWriters}, а не диспетчером шины: медленный клиент не задерживает
+ * доставку остальным.
+ */
+final class LongPoll implements EventBus.Subscriber {
+    static final long DEFAULT_TIMEOUT_MS = 30_000;
+    static final long MAX_TIMEOUT_MS = 120_000;
+
+    /** Текущая версия ресурса; null — отдавать пока нечего (например, результаты ещё закрыты). */
+    @FunctionalInterface
+    interface Version {
+        String get() throws IOException;
+    }
+
+    private final EventBus bus;
+    private final HttpRequest req;
+    private final OutputStream out;
+    private final Socket socket;
+    private final Set<String> wakeOn;
+    private final String waitVersion;
+    private final Version version;
+    private final Handler respond;
+    private final AtomicBoolean done = new AtomicBoolean();
+    private volatile EventBus.Subscription subscription;
+    private volatile ScheduledFuture<?> timeout;
+
+    private LongPoll(EventBus bus, HttpRequest req, OutputStream out, Set<String> wakeOn,
+                     String waitVersion, Version version, Handler respond) {
+        this.bus = bus;
+        this.req = req;
+        this.out = out;
+        this.socket = req.detach();
+        this.wakeOn = wakeOn;
+        this.waitVersion = waitVersion;
+        this.version = version;
+        this.respond = respond;
+    }
+
+    /**
+     * Забирает запрос: отвечает сразу, если версия уже другая (или ждущих слишком много),
+     * иначе ждёт событий из wakeOn для clientId (null — только общие события).
+     */
+    static void park(EventBus bus, HttpRequest req, OutputStream out, String clientId, Set<String> wakeOn,
+                     String waitVersion, long timeoutMs, Version version, Handler respond) {
+        LongPoll p = new LongPoll(bus, req, out, wakeOn, waitVersion, version, respond);
+        p.subscription = bus.subscribe(clientId, p, 0);
+        if (p.subscription == null) {
+            p.finish(false);
+            return;
+        }
+        // подписка раньше проверки: изменение между ними не потеряется
+        p.timeout = bus.schedule(() -> DetachedWriters.execute(() -> p.finish(true)), timeoutMs);
+        p.recheck();
+    }
+
+    /** "30s", "30", "1500ms"; null — значение вне 1 мс..{@value #MAX_TIMEOUT_MS} мс или не число. */
+    static Long parseTimeout(String v) {
+        if (v == null || v.isBlank()) return DEFAULT_TIMEOUT_MS;
+        String s = v.trim().toLowerCase(Locale.ROOT);
+        long unit = 1000;
+        if (s.endsWith("ms")) { s = s.substring(0, s.length() - 2); unit = 1; }
+        else if (s.endsWith("s")) s = s.substring(0, s.length() - 1);
+        try {
+            long ms = Math.multiplyExact(Long.parseLong(s), unit);
+            return ms < 1 || ms > MAX_TIMEOUT_MS ? null : ms;
+        } catch (NumberFormatException | ArithmeticException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean send(EventBus.Event e) {
+        if (done.get()) return false;
+        if (wakeOn.contains(e.type())) DetachedWriters.execute(this::recheck);
+        return true;
+    }
+
+    @Override
+    public boolean heartbeat() {
+        return !done.get();
+    }
+
+    private void recheck() {
+        if (done.get()) return;
+        try {
+            String v = version.get();
+            if (v != null && !v.equals(waitVersion)) finish(false);
+        } catch (IOException | RuntimeException e) {
+            finish(false);
+        }
+    }
+
+    // ровно один ответ: событие, таймаут и первая проверка могут сработать одновременно
+    private void finish(boolean timedOut) {
+        if (!done.compareAndSet(false, true)) return;
+        // подписка ещё не записана, если событие пришло прямо из subscribe: тогда её снимет send/heartbeat
+        EventBus.Subscription sub = subscription;
+        if (sub != null) bus.unsubscribe(sub);
+        ScheduledFuture<?> t = timeout;
+        if (t != null) t.cancel(false);
+        try {
+            String v = timedOut ? version.get() : null;
+            if (timedOut && (v == null || v.equals(waitVersion))) {
+                HttpResponses.notModified(out, "\"" + waitVersion + "\"");
+            } else {
+                respond.handle(req, out);
+            }
+        } catch (Exception e) {
+            try { HttpResponses.text(out, 500, "Internal Server Error"); } catch (Exception ignore) {}
+        } finally {
+            try { socket.close(); } catch (IOException ignore) {}
+        }
+    }
+}
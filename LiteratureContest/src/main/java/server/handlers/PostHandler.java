@@ -3,20 +3,37 @@ package server.handlers;
 
 import server.HttpRequest;
 import server.HttpResponses;
+import server.MultipartReader;
+import server.format.BoundedText;
 import server.logic.ContestService;
+import server.logic.IntakeSpool;
+import server.storage.Storage;
 import server.time.ConfigService;
+import server.util.Base64Input;
+import server.util.JsonReader;
+import server.util.JsonWriter;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Instant;
-import java.util.Base64;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class PostHandler implements Handler {
 
     private final ContestService contest;
 
     public PostHandler() throws IOException {
-        this.contest = new ContestService();
+        this(new ContestService());
+    }
+
+    public PostHandler(ContestService contest) {
+        this.contest = contest;
     }
 
     @Override
@@ -25,6 +42,10 @@ public class PostHandler implements Handler {
             submit(req, out);
         } else if ("/mail".equals(req.path)) {
             mail(req, out);
+        } else if ("/upload".equals(req.path)) {
+            upload(req, out);
+        } else if ("/mail/batch".equals(req.path)) {
+            mailBatch(req, out);
         } else {
             HttpResponses.text(out, 404, "Not Found");
         }
@@ -51,18 +72,37 @@ public class PostHandler implements Handler {
             return;
         }
 
-        // 4) Разбор JSON (минимально: ищем "title" и "text")
-        String body = req.bodyAsString().trim();
-        String title = extractJsonString(body, "title");
-        String text  = extractJsonString(body, "text");
+        // Режим очереди: тело сохраняется как есть, разбор и проверка — в фоне (итог — GET /submission/{ticket})
+        if (ConfigService.spoolIntake()) {
+            Spooled.accept(contest, req, out, IntakeSpool.Kind.JSON, clientId, null, ".txt");
+            return;
+        }
+
+        // 4) Разбор JSON потоком прямо из тела запроса: берём "title" и "text", остальное пропускаем.
+        //    Длина "text" считается по ходу декодирования: на maxChars разбор прерывается, хвост не читается.
+        int A = ConfigService.minChars(), B = ConfigService.maxChars();
+        String title, text;
+        int chars;
+        try {
+            var parsed = IntakeSpool.parseSubmitJson(req.bodyStream(), B);
+            title = parsed.title();
+            text = parsed.text();
+            chars = parsed.chars();
+        } catch (JsonReader.MalformedJsonException e) {
+            HttpResponses.json(out, 400, "{\"error\":\"malformed JSON\"}");
+            return;
+        } catch (BoundedText.TooLongException e) {
+            HttpResponses.json(out, 422,
+                    ("{\"error\":\"length must be between %d and %d, got at least %d\"}")
+                            .formatted(A, B, e.maxChars()));
+            return;
+        }
         if (title == null || title.isBlank() || text == null || text.isBlank()) {
             HttpResponses.json(out, 422, "{\"error\":\"title and text are required\"}");
             return;
         }
 
-        // 5) Валидация длины
-        int chars = text.codePointCount(0, text.length());
-        int A = ConfigService.minChars(), B = ConfigService.maxChars();
+        // 5) Валидация длины (верхняя граница уже проверена при разборе)
         if (chars <= A || chars >= B) {
             HttpResponses.json(out, 422,
                     ("{\"error\":\"length must be between %d and %d, got %d\"}")
@@ -97,61 +137,264 @@ public class PostHandler implements Handler {
             return;
         }
 
-        String body = req.bodyAsString().trim();
-        String subject      = extractJsonString(body, "subject");
-        String fileName     = extractJsonString(body, "fileName");
-        String contentType  = extractJsonString(body, "contentType");
-        String base64       = extractJsonString(body, "content");
+        // Один проход по телу: base64 в "content" декодируется по мере чтения прямо во временный файл storage/tmp
+        Path upload = null;
+        try {
+            String subject = null, fileName = null, contentType = null;
+            try {
+                JsonReader json = new JsonReader(req.bodyStream());
+                if (json.next() != JsonReader.Token.BEGIN_OBJECT) {
+                    throw new JsonReader.MalformedJsonException("JSON root is not object");
+                }
+                while (json.next() == JsonReader.Token.NAME) {
+                    if (json.nameEquals("subject")) subject = json.nextString();
+                    else if (json.nameEquals("fileName")) fileName = json.nextString();
+                    else if (json.nameEquals("contentType")) contentType = json.nextString();
+                    else if (json.nameEquals("content")) {
+                        if (json.next() != JsonReader.Token.STRING) throw new JsonReader.MalformedJsonException("content must be a string");
+                        if (upload != null) Files.deleteIfExists(upload);
+                        upload = Storage.newTempFile(".part");
+                        try (InputStream b64 = new Base64Input(json.stringStream());
+                             OutputStream file = Files.newOutputStream(upload)) {
+                            b64.transferTo(file);
+                        } catch (Base64Input.MalformedBase64Exception e) {
+                            HttpResponses.json(out, 422, "{\"error\":\"content must be valid base64\"}");
+                            return;
+                        }
+                    }
+                    else json.skipValue();
+                }
+            } catch (JsonReader.MalformedJsonException e) {
+                HttpResponses.json(out, 400, "{\"error\":\"malformed JSON\"}");
+                return;
+            }
+
+            if (fileName == null || fileName.isBlank() || upload == null || Files.size(upload) == 0) {
+                HttpResponses.json(out, 422, "{\"error\":\"fileName and content are required\"}");
+                return;
+            }
+
+            String ext = ".bin";
+            int dot = fileName.lastIndexOf('.');
+            if (dot >= 0 && dot < fileName.length() - 1) {
+                ext = fileName.substring(dot);
+            }
+
+            String title = (subject == null || subject.isBlank()) ? "Mail submission" : subject;
+            var submission = contest.registerUploadedSubmission(clientId, title, ext, upload);
+
+            String mailResponseJson = """
+                {"status":"accepted","submissionId":"%s","title":"%s","fileName":"%s","contentType":"%s","receivedAt":"%s"}
+                """.formatted(
+                    submission.submissionId(),
+                    escape(submission.title()),
+                    escape(fileName),
+                    contentType == null ? "" : escape(contentType),
+                    Instant.ofEpochMilli(submission.receivedAtUtc())
+            );
+
+            HttpResponses.json(out, 201, mailResponseJson);
+        } finally {
+            // после успешной регистрации файл уже перенесён, и удалять нечего
+            if (upload != null) Files.deleteIfExists(upload);
+        }
+    }
 
-        if (fileName == null || fileName.isBlank() || base64 == null || base64.isBlank()) {
-            HttpResponses.json(out, 422, "{\"error\":\"fileName and content are required\"}");
+    /*
+     * POST /upload — multipart/form-data: поле "title", файл в поле "file" (.txt или .docx),
+     * любые другие текстовые поля считаются метаданными и возвращаются в ответе.
+     * Каждая часть читается потоком, файл пишется сразу в storage/tmp.
+     */
+    private void upload(HttpRequest req, OutputStream out) throws IOException {
+        String clientId = req.header("x-client-id");
+        if (clientId == null || clientId.isBlank()) {
+            HttpResponses.json(out, 401, "{\"error\":\"missing X-Client-Id\"}");
             return;
         }
 
-        byte[] decoded;
-        try {
-            decoded = Base64.getDecoder().decode(base64);
-        } catch (IllegalArgumentException e) {
-            HttpResponses.json(out, 422, "{\"error\":\"content must be valid base64\"}");
+        if (!ConfigService.isSubmitOpenNow()) {
+            HttpResponses.json(out, 403, "{\"error\":\"submission window closed\"}");
             return;
         }
 
-        String ext = ".bin";
-        int dot = fileName.lastIndexOf('.');
-        if (dot >= 0 && dot < fileName.length() - 1) {
-            ext = fileName.substring(dot);
+        String ct = req.header("content-type");
+        String boundary = MultipartReader.boundary(ct);
+        if (ct == null || !ct.toLowerCase().startsWith("multipart/form-data") || boundary == null) {
+            HttpResponses.json(out, 415, "{\"error\":\"Content-Type must be multipart/form-data with boundary\"}");
+            return;
         }
 
-        String title = (subject == null || subject.isBlank()) ? "Mail submission" : subject;
-        var submission = contest.registerBinarySubmission(clientId, title, ext, decoded);
+        Path upload = null;
+        try {
+            String title = null, fileName = null;
+            Map<String, String> metadata = new LinkedHashMap<>();
+            try {
+                var multipart = new MultipartReader(req.bodyStream(), boundary);
+                for (var part = multipart.nextPart(); part != null; part = multipart.nextPart()) {
+                    if ("file".equals(part.name()) && part.fileName() != null) {
+                        if (upload != null) {
+                            HttpResponses.json(out, 422, "{\"error\":\"only one file per upload\"}");
+                            return;
+                        }
+                        fileName = part.fileName();
+                        upload = Storage.newTempFile(".part");
+                        try (OutputStream file = Files.newOutputStream(upload)) {
+                            part.body().transferTo(file);
+                        }
+                    } else if ("title".equals(part.name())) {
+                        title = part.bodyAsString(MAX_FIELD_BYTES);
+                    } else if (part.name() != null && part.fileName() == null) {
+                        if (metadata.size() >= MAX_METADATA_FIELDS) {
+                            HttpResponses.json(out, 422, "{\"error\":\"too many form fields\"}");
+                            return;
+                        }
+                        metadata.put(part.name(), part.bodyAsString(MAX_FIELD_BYTES));
+                    }
+                }
+            } catch (MultipartReader.MalformedMultipartException | IllegalArgumentException e) {
+                HttpResponses.json(out, 400, "{\"error\":\"malformed multipart body\"}");
+                return;
+            }
+
+            if (upload == null || Files.size(upload) == 0) {
+                HttpResponses.json(out, 422, "{\"error\":\"file part is required\"}");
+                return;
+            }
+            String lower = fileName.toLowerCase();
+            String ext;
+            if (lower.endsWith(".txt")) ext = ".txt";
+            else if (lower.endsWith(".docx")) ext = ".docx";
+            else {
+                HttpResponses.json(out, 415, "{\"error\":\"file must be .txt or .docx\"}");
+                return;
+            }
 
-        String mailResponseJson = """
-            {"status":"accepted","submissionId":"%s","title":"%s","fileName":"%s","contentType":"%s","receivedAt":"%s"}
-            """.formatted(
-                submission.submissionId(),
-                escape(submission.title()),
-                escape(fileName),
-                contentType == null ? "" : escape(contentType),
-                Instant.ofEpochMilli(submission.receivedAtUtc())
-        );
+            int A = ConfigService.minChars(), B = ConfigService.maxChars();
+            BoundedText text;
+            try {
+                text = BoundedText.fromFile(ext, upload, B);
+            } catch (BoundedText.TooLongException e) {
+                HttpResponses.json(out, 422,
+                        ("{\"error\":\"length must be between %d and %d, got at least %d\"}")
+                                .formatted(A, B, e.maxChars()));
+                return;
+            } catch (IOException e) {
+                HttpResponses.json(out, 422, "{\"error\":\"cannot read file text\"}");
+                return;
+            }
+            int chars = text.codePoints();
+            if (chars <= A || chars >= B) {
+                HttpResponses.json(out, 422,
+                        ("{\"error\":\"length must be between %d and %d, got %d\"}")
+                                .formatted(A, B, chars));
+                return;
+            }
 
-        HttpResponses.json(out, 201, mailResponseJson);
+            if (title == null || title.isBlank()) {
+                int dot = fileName.lastIndexOf('.');
+                title = dot > 0 ? fileName.substring(0, dot) : fileName;
+            }
+            var submission = contest.registerUploadedSubmission(clientId, title, ext, upload, text.text());
+            String savedName = fileName;
+            HttpResponses.stream(out, 201, "application/json; charset=utf-8", Map.of(), body -> {
+                var w = new JsonWriter(body);
+                w.beginObject()
+                        .name("status").value("accepted")
+                        .name("submissionId").value(submission.submissionId())
+                        .name("title").value(submission.title())
+                        .name("fileName").value(savedName)
+                        .name("receivedAt").value(Instant.ofEpochMilli(submission.receivedAtUtc()).toString())
+                        .name("metadata").beginObject();
+                for (var e : metadata.entrySet()) w.name(e.getKey()).value(e.getValue());
+                w.endObject().endObject();
+                w.flush();
+            });
+        } finally {
+            if (upload != null) Files.deleteIfExists(upload);
+        }
     }
 
-    // Очень простой парсер "key":"value" (без экранирования внутри value, на первое время хватит)
-    private String extractJsonString(String json, String key) {
-        String needle = "\"" + key + "\"";
-        int i = json.indexOf(needle);
-        if (i < 0) return null;
-        int colon = json.indexOf(':', i + needle.length());
-        if (colon < 0) return null;
-        int q1 = json.indexOf('\"', colon + 1);
-        if (q1 < 0) return null;
-        int q2 = json.indexOf('\"', q1 + 1);
-        if (q2 < 0) return null;
-        return json.substring(q1 + 1, q2);
+    /*
+     * POST /mail/batch — письмо с несколькими вложениями: multipart/form-data, поле "subject"
+     * и любое число файловых частей (.txt, .doc, .docx). Части пишутся потоком в storage/tmp,
+     * разбор вложений идёт параллельно в ContestService.ingestMail, реестр пишется один раз на пачку.
+     * Ответ 201, если принято хотя бы одно вложение (ошибки остальных — в "errors"), иначе 422.
+     */
+    private void mailBatch(HttpRequest req, OutputStream out) throws IOException {
+        String clientId = req.header("x-client-id");
+        if (clientId == null || clientId.isBlank()) {
+            HttpResponses.json(out, 401, "{\"error\":\"missing X-Client-Id\"}");
+            return;
+        }
+
+        // окно приёма проверяется до чтения тела: вложения не пишутся в storage/tmp зря
+        if (!ConfigService.isSubmitOpenNow()) {
+            HttpResponses.json(out, 403, "{\"error\":\"submission window closed\"}");
+            return;
+        }
+
+        String ct = req.header("content-type");
+        String boundary = MultipartReader.boundary(ct);
+        if (ct == null || !ct.toLowerCase().startsWith("multipart/form-data") || boundary == null) {
+            HttpResponses.json(out, 415, "{\"error\":\"Content-Type must be multipart/form-data with boundary\"}");
+            return;
+        }
+
+        Instant receivedAt = Instant.now();
+        List<ContestService.Attachment> attachments = new ArrayList<>();
+        try {
+            String subject = null;
+            try {
+                var multipart = new MultipartReader(req.bodyStream(), boundary);
+                for (var part = multipart.nextPart(); part != null; part = multipart.nextPart()) {
+                    if (part.fileName() != null) {
+                        if (attachments.size() >= MAX_BATCH_ATTACHMENTS) {
+                            HttpResponses.json(out, 422, "{\"error\":\"at most " + MAX_BATCH_ATTACHMENTS + " attachments per batch\"}");
+                            return;
+                        }
+                        Path file = Storage.newTempFile(".part");
+                        attachments.add(new ContestService.Attachment(part.fileName(), part.contentType(), file));
+                        try (OutputStream f = Files.newOutputStream(file)) {
+                            part.body().transferTo(f);
+                        }
+                    } else if ("subject".equals(part.name())) {
+                        subject = part.bodyAsString(MAX_FIELD_BYTES);
+                    }
+                }
+            } catch (MultipartReader.MalformedMultipartException | IllegalArgumentException e) {
+                HttpResponses.json(out, 400, "{\"error\":\"malformed multipart body\"}");
+                return;
+            }
+
+            if (attachments.isEmpty()) {
+                HttpResponses.json(out, 422, "{\"error\":\"at least one attachment is required\"}");
+                return;
+            }
+
+            var result = contest.ingestMail(clientId, subject, receivedAt, attachments);
+            HttpResponses.stream(out, result.accepted().isEmpty() ? 422 : 201, "application/json; charset=utf-8", Map.of(), body -> {
+                var w = new JsonWriter(body);
+                w.beginObject().name("accepted").beginArray();
+                for (var sub : result.accepted()) {
+                    w.beginObject()
+                            .name("submissionId").value(sub.submissionId())
+                            .name("title").value(sub.title())
+                            .name("receivedAt").value(Instant.ofEpochMilli(sub.receivedAtUtc()).toString())
+                            .endObject();
+                }
+                w.endArray().name("errors").stringArray(result.errors()).endObject();
+                w.flush();
+            });
+        } finally {
+            // принятые файлы уже перенесены в submissions
+            for (var a : attachments) Files.deleteIfExists(a.file());
+        }
     }
 
+    private static final int MAX_FIELD_BYTES = 4096;
+    private static final int MAX_METADATA_FIELDS = 32;
+    private static final int MAX_BATCH_ATTACHMENTS = 100;
+
     private static String escape(String s) {
         return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\\n", " ").replace("\\r", " ");
     }
@@ -3,16 +3,23 @@ package server.handlers;
 import server.HttpRequest;
 import server.HttpResponses;
 import server.logic.ContestService;
-import server.format.DocxUtil;
+import server.logic.IntakeSpool;
+import server.format.BoundedText;
+import server.storage.Storage;
 import server.time.ConfigService;
+import server.util.CsvReader;
+import server.util.TeeInputStream;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * PUT /submission  - обновление/замена оповідання клиента
@@ -22,6 +29,10 @@ import java.util.List;
  * PUT /reviews    - загрузка оценок в CSV
  *   Headers: X-Client-Id, Content-Type: text/csv
  *   Body:    строки вида: storyId,score\n ...
+ *
+ * PATCH /reviews  - точечное изменение оценок (остальные оценки рецензента не трогаются)
+ *   Headers: X-Client-Id, Content-Type: text/csv
+ *   Body:    storyId,score — поставить или заменить оценку; storyId,delete — удалить её
  */
 public class PutHandler implements Handler {
 
@@ -29,17 +40,25 @@ public class PutHandler implements Handler {
     private final ContestService contest;
 
     public PutHandler() throws IOException {
-        this.contest = new ContestService();
+        this(new ContestService());
+    }
+
+    public PutHandler(ContestService contest) {
+        this.contest = contest;
     }
 
     @Override
     public void handle(HttpRequest req, OutputStream out) throws IOException {
+        String path = req.path;
+        if ("PATCH".equalsIgnoreCase(req.method) && "/reviews".equals(path)) {
+            patchReviews(req, out);
+            return;
+        }
         if (!"PUT".equalsIgnoreCase(req.method)) {
             HttpResponses.text(out, 405, "Method Not Allowed");
             return;
         }
 
-        String path = req.path;
         if ("/submission".equals(path)) {
             putSubmission(req, out);
         } else if ("/reviews".equals(path)) {
@@ -63,8 +82,7 @@ public class PutHandler implements Handler {
             return;
         }
 
-        byte[] body = req.body;
-        if (body == null || body.length == 0) {
+        if (req.contentLength == 0) {
             HttpResponses.json(out, 422, "{\"error\":\"empty body\"}");
             return;
         }
@@ -74,39 +92,65 @@ public class PutHandler implements Handler {
         ct = ct.toLowerCase();
 
         String ext;
-        String text;
         if (ct.startsWith("text/plain")) {
             ext = ".txt";
-            text = new String(body, java.nio.charset.StandardCharsets.UTF_8);
         } else if (ct.startsWith("application/vnd.openxmlformats-officedocument.wordprocessingml.document")) {
             ext = ".docx";
-            try {
-                text = DocxUtil.extractPlainText(body);
-            } catch (Exception e) {
-                HttpResponses.json(out, 422, "{\"error\":\"cannot read docx text\"}");
-                return;
-            }
         } else {
             HttpResponses.json(out, 415, "{\"error\":\"Content-Type must be text/plain or docx\"}");
             return;
         }
 
-        int chars = text.codePointCount(0, text.length());
-        int min = ConfigService.minChars();
-        int max = ConfigService.maxChars();
-        if (chars <= min || chars >= max) {
-            HttpResponses.json(out, 422, ("{\"error\":\"length must be between %d and %d, got %d\"}").formatted(min, max, chars));
+        String title = header(req, "x-story-title");
+        if (title == null || title.isBlank()) title = "Untitled";
+
+        // Режим очереди: тело сохраняется как есть, разбор и проверка — в фоне (итог — GET /submission/{ticket})
+        if (ConfigService.spoolIntake()) {
+            Spooled.accept(contest, req, out, IntakeSpool.Kind.FILE, clientId, title, ext);
             return;
         }
 
-        String title = header(req, "x-story-title");
-        if (title == null || title.isBlank()) title = "Untitled";
+        // Тело читается один раз: копия пишется во временный файл, текст декодируется с подсчётом длины.
+        // Как только длина достигла maxChars, чтение прерывается — остаток тела не принимается.
+        int min = ConfigService.minChars();
+        int max = ConfigService.maxChars();
+        Path upload = Storage.newTempFile(".part");
+        try {
+            BoundedText text;
+            try (OutputStream copy = Files.newOutputStream(upload)) {
+                TeeInputStream tee = new TeeInputStream(req.bodyStream(), copy);
+                if (".txt".equals(ext)) {
+                    text = BoundedText.decodeUtf8(tee, max);
+                } else {
+                    try {
+                        text = BoundedText.fromDocx(tee, max);
+                    } catch (BoundedText.TooLongException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        HttpResponses.json(out, 422, "{\"error\":\"cannot read docx text\"}");
+                        return;
+                    }
+                }
+                tee.drain(); // ZIP-разбор мог не дочитать хвост архива (central directory)
+            } catch (BoundedText.TooLongException e) {
+                HttpResponses.json(out, 422, ("{\"error\":\"length must be between %d and %d, got at least %d\"}").formatted(min, max, e.maxChars()));
+                return;
+            }
 
-        var submission = contest.registerBinarySubmission(clientId, title, ext, body);
+            int chars = text.codePoints();
+            if (chars <= min || chars >= max) {
+                HttpResponses.json(out, 422, ("{\"error\":\"length must be between %d and %d, got %d\"}").formatted(min, max, chars));
+                return;
+            }
+
+            var submission = contest.registerUploadedSubmission(clientId, title, ext, upload, text.text());
 
-        HttpResponses.json(out, 201,
-                ("{\"status\":\"replaced\",\"clientId\":\"%s\",\"file\":\"%s\"}")
-                        .formatted(escape(clientId), submission.fileName()));
+            HttpResponses.json(out, 201,
+                    ("{\"status\":\"replaced\",\"clientId\":\"%s\",\"file\":\"%s\"}")
+                            .formatted(escape(clientId), submission.fileName()));
+        } finally {
+            Files.deleteIfExists(upload);
+        }
     }
 
     /* =================== PUT /reviews =================== */
@@ -132,62 +176,86 @@ public class PutHandler implements Handler {
             return;
         }
 
-        String csv = req.bodyAsString();
-        if (csv.isBlank()) {
-            HttpResponses.json(out, 422, "{\"error\":\"CSV is empty\"}");
-            return;
-        }
-
-        List<String> normalized = new ArrayList<>();
-        List<String> errors = new ArrayList<>();
+        // CSV читается потоком и проверяется построчно по снимкам «свои истории» и «назначенные»;
+        // в памяти — не больше строк, чем историй в назначении, и образец ошибок
+        ErrorSample errors = new ErrorSample(ERROR_SAMPLE_SIZE);
+        Set<String> own = contest.storiesOf(clientId);
+        Set<String> assigned = new HashSet<>(contest.assignmentsFor(clientId).submissionIds());
+        Set<String> taken = new HashSet<>();
+        boolean rejected = false; // чужие или повторные истории отклоняют весь набор, как в acceptReviews
         List<ContestService.Review> reviewEntries = new ArrayList<>();
-        var myStories = contest.loadSubmissions().stream()
-                .filter(s -> s.clientId().equalsIgnoreCase(clientId))
-                .map(ContestService.Submission::submissionId)
-                .collect(java.util.stream.Collectors.toSet());
-
-        int lineNo = 0;
-        for (String line : csv.split("\\R")) {
-            lineNo++;
-            if (line.isBlank()) continue;
-
-            String[] p = line.split(",", -1);
-            if (p.length != 2) {
-                errors.add("line " + lineNo + ": expect storyId,score");
-                continue;
-            }
-            String storyId = p[0].trim();
-            String scoreStr = p[1].trim();
-
-            int score;
-            try {
-                score = Integer.parseInt(scoreStr);
-            } catch (NumberFormatException e) {
-                errors.add("line " + lineNo + ": score is not integer");
-                continue;
-            }
-            if (score < 1 || score > 10) {
-                errors.add("line " + lineNo + ": score out of range 1..10");
-                continue;
-            }
-            // Простейшая защита от самооценки: если story принадлежит тому же клиенту
-            if (myStories.contains(storyId)) {
-                errors.add("line " + lineNo + ": self-review is not allowed");
-                continue;
-            }
-            normalized.add(storyId + "," + score);
-            reviewEntries.add(new ContestService.Review(clientId, storyId, score, java.time.Instant.now().toEpochMilli()));
-        }
+        long receivedAt = java.time.Instant.now().toEpochMilli();
 
-        // Сохраняем как storage/reviews/<clientId>.csv (перезапись)
-        // сначала сохраняем исходный CSV
+        // Сохраняем как storage/reviews/<clientId>.csv (перезапись): пишем во временный файл и переносим
         Path dir = base.resolve("reviews");
         Files.createDirectories(dir);
         Path file = dir.resolve(safe(clientId) + ".csv");
-        Files.writeString(file, String.join("\n", normalized) + (normalized.isEmpty() ? "" : "\n"));
+        Path tmp = Storage.newTempFile(".csv");
+        int rows = 0;
+        try {
+            try (var normalized = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                CsvReader csv = new CsvReader(req.bodyStream());
+                while (csv.nextRow()) {
+                    if (csv.isBlank()) continue;
+                    rows++;
+                    int lineNo = csv.lineNumber();
+                    if (csv.fieldCount() != 2) {
+                        errors.add("line " + lineNo + ": expect storyId,score");
+                        continue;
+                    }
+                    String storyId = csv.field(0);
+
+                    int score;
+                    try {
+                        score = csv.intField(1);
+                    } catch (NumberFormatException e) {
+                        errors.add("line " + lineNo + ": score is not integer");
+                        continue;
+                    }
+                    if (score < 1 || score > 10) {
+                        errors.add("line " + lineNo + ": score out of range 1..10");
+                        continue;
+                    }
+                    // Простейшая защита от самооценки: если story принадлежит тому же клиенту
+                    if (own.contains(storyId)) {
+                        errors.add("line " + lineNo + ": self-review is not allowed");
+                        continue;
+                    }
+                    if (!assigned.contains(storyId)) {
+                        errors.add("line " + lineNo + ": story " + storyId + " is not assigned to " + clientId);
+                        rejected = true;
+                        continue;
+                    }
+                    if (!taken.add(storyId)) {
+                        errors.add("line " + lineNo + ": duplicate review for story " + storyId);
+                        rejected = true;
+                        continue;
+                    }
+                    normalized.write(storyId);
+                    normalized.write(',');
+                    normalized.write(Integer.toString(score));
+                    normalized.write('\n');
+                    reviewEntries.add(new ContestService.Review(clientId, storyId, score, receivedAt));
+                }
+            } catch (CsvReader.MalformedCsvException e) {
+                HttpResponses.json(out, 422, "{\"error\":\"" + escape(e.getMessage()) + "\"}");
+                return;
+            }
+            if (rows == 0) {
+                HttpResponses.json(out, 422, "{\"error\":\"CSV is empty\"}");
+                return;
+            }
+            Storage.moveAtomically(tmp, file);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
 
-        var result = contest.acceptReviews(clientId, reviewEntries);
-        errors.addAll(result.errors());
+        int saved = 0;
+        if (!rejected) {
+            var result = contest.acceptReviews(clientId, reviewEntries);
+            result.errors().forEach(errors::add);
+            saved = result.saved();
+        }
 
         String json = """
         {
@@ -199,12 +267,102 @@ public class PutHandler implements Handler {
         }
         """.formatted(
                 escape(clientId),
-                result.saved(),
-                errors.size(),
-                toJsonArraySample(errors, 5)
+                saved,
+                errors.total(),
+                toJsonArraySample(errors)
         );
 
-        HttpResponses.json(out, errors.isEmpty() ? 201 : 422, json);
+        HttpResponses.json(out, errors.total() == 0 ? 201 : 422, json);
+    }
+
+    /* =================== PATCH /reviews =================== */
+
+    private void patchReviews(HttpRequest req, OutputStream out) throws IOException {
+        String clientId = header(req, "x-client-id");
+        if (clientId == null || clientId.isBlank()) {
+            HttpResponses.json(out, 401, "{\"error\":\"missing X-Client-Id\"}");
+            return;
+        }
+
+        var now = java.time.Instant.now();
+        if (now.isBefore(ConfigService.reviewFrom()) || now.isAfter(ConfigService.reviewTo())) {
+            HttpResponses.json(out, 403, "{\"error\":\"review window closed\"}");
+            return;
+        }
+
+        String ct = header(req, "content-type");
+        if (ct == null || !ct.toLowerCase().startsWith("text/csv")) {
+            HttpResponses.json(out, 415, "{\"error\":\"Content-Type must be text/csv\"}");
+            return;
+        }
+
+        ErrorSample errors = new ErrorSample(ERROR_SAMPLE_SIZE);
+        List<ContestService.ReviewChange> changes = new ArrayList<>();
+        Set<String> own = contest.storiesOf(clientId);
+        try {
+            CsvReader csv = new CsvReader(req.bodyStream());
+            while (csv.nextRow()) {
+                if (csv.isBlank()) continue;
+                int lineNo = csv.lineNumber();
+                if (csv.fieldCount() != 2) {
+                    errors.add("line " + lineNo + ": expect storyId,score or storyId,delete");
+                    continue;
+                }
+                String storyId = csv.field(0);
+                if ("delete".equalsIgnoreCase(csv.field(1).trim())) {
+                    changes.add(new ContestService.ReviewChange(storyId, null));
+                    continue;
+                }
+                int score;
+                try {
+                    score = csv.intField(1);
+                } catch (NumberFormatException e) {
+                    errors.add("line " + lineNo + ": score is not integer");
+                    continue;
+                }
+                if (score < 1 || score > 10) {
+                    errors.add("line " + lineNo + ": score out of range 1..10");
+                    continue;
+                }
+                if (own.contains(storyId)) {
+                    errors.add("line " + lineNo + ": self-review is not allowed");
+                    continue;
+                }
+                changes.add(new ContestService.ReviewChange(storyId, score));
+            }
+        } catch (CsvReader.MalformedCsvException e) {
+            HttpResponses.json(out, 422, "{\"error\":\"" + escape(e.getMessage()) + "\"}");
+            return;
+        }
+        if (changes.isEmpty() && errors.total() == 0) {
+            HttpResponses.json(out, 422, "{\"error\":\"CSV is empty\"}");
+            return;
+        }
+
+        // ошибки разбора — без записи: патч применяется целиком или никак
+        var result = errors.total() == 0
+                ? contest.patchReviews(clientId, changes, now.toEpochMilli())
+                : new ContestService.ReviewPatchResult(0, 0, List.of());
+        result.errors().forEach(errors::add);
+
+        String json = """
+        {
+          "status":"%s",
+          "clientId":"%s",
+          "upserted":%d,
+          "deleted":%d,
+          "errors":%d,
+          "errorsSample":%s
+        }
+        """.formatted(
+                errors.total() == 0 ? "applied" : "rejected",
+                escape(clientId),
+                result.upserted(),
+                result.deleted(),
+                errors.total(),
+                toJsonArraySample(errors)
+        );
+        HttpResponses.json(out, errors.total() == 0 ? 200 : 422, json);
     }
 
     /* =================== helpers =================== */
@@ -221,16 +379,33 @@ public class PutHandler implements Handler {
         return s.replace("\\", "\\\\").replace("\"", "\\\"");
     }
 
-    private static String toJsonArraySample(List<String> list, int max) {
+    private static final int ERROR_SAMPLE_SIZE = 5;
+
+    // Счётчик ошибок с первыми N сообщениями — память не растёт с размером файла
+    private static final class ErrorSample {
+        private final int max;
+        private final List<String> sample = new ArrayList<>();
+        private int total;
+
+        ErrorSample(int max) { this.max = max; }
+
+        void add(String error) {
+            if (sample.size() < max) sample.add(error);
+            total++;
+        }
+
+        int total() { return total; }
+    }
+
+    private static String toJsonArraySample(ErrorSample errors) {
         StringBuilder sb = new StringBuilder("[");
-        int n = Math.min(max, list.size());
-        for (int i = 0; i < n; i++) {
+        for (int i = 0; i < errors.sample.size(); i++) {
             if (i > 0) sb.append(',');
-            sb.append('\"').append(escape(list.get(i))).append('\"');
+            sb.append('\"').append(escape(errors.sample.get(i))).append('\"');
         }
-        if (list.size() > max) {
-            if (n > 0) sb.append(',');
-            sb.append('\"').append("... +" + (list.size() - max) + " more").append('\"');
+        if (errors.total > errors.sample.size()) {
+            if (!errors.sample.isEmpty()) sb.append(',');
+            sb.append('\"').append("... +" + (errors.total - errors.sample.size()) + " more").append('\"');
         }
         sb.append(']');
         return sb.toString();
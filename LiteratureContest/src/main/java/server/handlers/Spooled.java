@@ -0,0 +1,36 @@
+package server.handlers;
+
+import server.HttpRequest;
+import server.HttpResponses;
+import server.logic.ContestService;
+import server.logic.IntakeSpool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.util.Map;
+
+/** Приём в очередь (режим CONTEST_SPOOL_INTAKE): тело сохранено на диск, ответ 202 с билетом. */
+final class Spooled {
+    private Spooled() {}
+
+    static void accept(ContestService contest, HttpRequest req, OutputStream out, IntakeSpool.Kind kind,
+                       String clientId, String title, String ext) throws IOException {
+        if (req.contentLength > IntakeSpool.MAX_BODY_BYTES) {
+            HttpResponses.json(out, 413, "{\"error\":\"body exceeds " + IntakeSpool.MAX_BODY_BYTES + " bytes\"}");
+            return;
+        }
+        IntakeSpool.Ticket ticket;
+        try {
+            ticket = contest.intake().enqueue(kind, clientId, title, ext, req.bodyStream());
+        } catch (IntakeSpool.TooLargeException e) {
+            HttpResponses.json(out, 413, "{\"error\":\"body exceeds " + IntakeSpool.MAX_BODY_BYTES + " bytes\"}");
+            return;
+        }
+        String statusUrl = "/submission/" + ticket.id();
+        HttpResponses.json(out, 202, """
+                {"status":"queued","ticket":"%s","statusUrl":"%s","receivedAt":"%s"}
+                """.formatted(ticket.id(), statusUrl, Instant.ofEpochMilli(ticket.spooledAt())),
+                Map.of("Location", statusUrl));
+    }
+}
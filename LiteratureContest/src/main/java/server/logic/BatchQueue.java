@@ -0,0 +1,90 @@
+package server.logic;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * Очередь фоновой записи в реестр пачками: один поток-демон забирает всё накопившееся (до {@value #BATCH})
+ * и отдаёт обработчику, так что на пачку приходится одна запись реестра и один пересчёт назначений.
+ * Поток создаётся при первом элементе. Общая часть {@link IntakeSpool} и {@link MaildirIngester}.
+ */
+final class BatchQueue<T> {
+    static final int BATCH = 64;
+
+    /** Запись пачки; результаты — по порядку элементов. */
+    @FunctionalInterface
+    interface Commit<T, R> {
+        List<R> commit(List<T> items) throws IOException;
+    }
+
+    private final String name;
+    private final Consumer<List<T>> process;
+    private final LinkedBlockingQueue<T> queue = new LinkedBlockingQueue<>();
+    private Thread worker;
+
+    /** process получает непустую пачку в потоке name; исключение пачки только пишется в лог. */
+    BatchQueue(String name, Consumer<List<T>> process) {
+        this.name = name;
+        this.process = process;
+    }
+
+    void add(T item) {
+        queue.add(item);
+        startWorker();
+    }
+
+    void addAll(Collection<? extends T> items) {
+        if (items.isEmpty()) return;
+        queue.addAll(items);
+        startWorker();
+    }
+
+    /**
+     * Пишет пачку одним вызовом commit; если она целиком не записалась — по одному, чтобы сбойный
+     * элемент не утянул остальные. Результаты по порядку items; null — элемент так и не записан.
+     */
+    static <T, R> List<R> commitEach(String what, List<T> items, Commit<T, R> commit) {
+        if (items.isEmpty()) return List.of();
+        try {
+            return commit.commit(items);
+        } catch (IOException | RuntimeException e) {
+            System.err.println(what + " batch of " + items.size() + " failed, retrying one by one: " + e);
+        }
+        List<R> res = new ArrayList<>(items.size());
+        for (T item : items) {
+            try {
+                res.add(commit.commit(List.of(item)).get(0));
+            } catch (IOException | RuntimeException single) {
+                res.add(null);
+            }
+        }
+        return res;
+    }
+
+    private synchronized void startWorker() {
+        if (worker != null) return;
+        worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    private void run() {
+        List<T> batch = new ArrayList<>(BATCH);
+        while (true) {
+            try {
+                batch.clear();
+                batch.add(queue.take());
+                queue.drainTo(batch, BATCH - 1);
+                process.accept(batch);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                System.err.println(name + " batch failed: " + e);
+            }
+        }
+    }
+}
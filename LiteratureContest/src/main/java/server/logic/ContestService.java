@@ -1,17 +1,42 @@
 package server.logic;
 
+import server.format.BoundedText;
 import server.format.DocxUtil;
 import server.format.XlsxUtil;
+import server.format.XlsxWriter;
+import server.format.ZipBuilder;
 import server.storage.Storage;
 import server.time.ConfigService;
+import server.util.CsvReader;
+import server.util.JsonWriter;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public class ContestService {
@@ -27,10 +52,11 @@ public class ContestService {
     }
 
     public record Results(List<ResultItem> items, long generatedAtUtc, List<String> disqualified,
-                          Protocol protocol) {
+                          Protocol protocol, String metric) {
     }
 
-    public record ResultItem(String storyId, String title, double avgScore, int reviewsCount,
+    /** score — значение метрики рейтинга ({@link ScoreStats.Metric}), по нему упорядочен рейтинг; для MEAN равно avgScore. */
+    public record ResultItem(String storyId, String title, double avgScore, double score, int reviewsCount,
                              boolean insufficientReviews) {
     }
 
@@ -38,23 +64,156 @@ public class ContestService {
                            int submittedReviews, List<String> insufficientStories,
                            List<String> disqualifiedAuthors) {}
 
-    public record Attachment(String fileName, String contentType, byte[] content) {}
+    /** Вложение письма, уже сохранённое во временный файл. */
+    public record Attachment(String fileName, String contentType, Path file) {}
     public record MailIngestResult(List<Submission> accepted, List<String> errors) {}
+    /**
+     * Одно письмо для {@link #ingestMails}. messageId — постоянный идентификатор письма (имя в Maildir) или null;
+     * из него выводятся id историй, поэтому повторный приём того же письма ничего не добавляет.
+     */
+    public record Mail(String messageId, String clientId, String subject, Instant receivedAt, List<Attachment> attachments) {}
 
     private final Path submissionsCsv   = Storage.ROOT.resolve("registry/submissions.csv");
     private final Path assignmentsCsv   = Storage.ROOT.resolve("registry/assignments.csv");
     private final Path reviewsIndexCsv  = Storage.ROOT.resolve("registry/reviews_index.csv");
+    private final Path reviewsLogCsv    = Storage.ROOT.resolve("registry/reviews_log.csv");
+    private final Path signaturesCsv    = Storage.ROOT.resolve("registry/signatures.csv");
     private final Path resultsJson      = Storage.ROOT.resolve("results/final.json");
 
+    /** candidates — истории в рейтинге (автор не дисквалифицирован); rankings — рейтинги по другим метрикам, лениво. */
+    private record ResultsSnapshot(String stamp, ScoreStats.Metric metric, Ranking ranking, List<String> disqualified,
+                                   Protocol protocol, List<Submission> candidates,
+                                   Map<ScoreStats.Metric, Ranking> rankings) {}
+    private ResultsSnapshot snapshot;
+    private String publishedStamp;
+    private int reviewLogLines = -1; // строк в журнале оценок; -1 — ещё не считали
+    private ScoreStats scoreStats;
+    private String scoreStatsStamp;
+    private Map<String, String> owners;   // storyId -> clientId
+    private Map<String, Set<String>> storiesByAuthor; // clientId в нижнем регистре -> id его историй
+    private String ownersStamp;
+    private SearchIndex search;
+    private List<Submission> searchDocs;  // ordinal -> история
+    private String searchStamp;
+    private final Object searchBuild = new Object();
+    private DuplicateDetector duplicates;
+    private String duplicatesStamp;
+    private final EventBus events = new EventBus();
+    private final IntakeSpool intake = new IntakeSpool(this);
+    private ScheduledExecutorService phaseTimer;
+
     public ContestService() throws IOException {
         Files.createDirectories(submissionsCsv.getParent());
         Files.createDirectories(resultsJson.getParent());
         touch(submissionsCsv);
         touch(assignmentsCsv);
         touch(reviewsIndexCsv);
+        touch(reviewsLogCsv);
         touch(resultsJson);
     }
 
+    /** Очередь приёма рассказов (режим CONTEST_SPOOL_INTAKE). */
+    public IntakeSpool intake() {
+        return intake;
+    }
+
+    /* ===================== events ===================== */
+
+    /** События конкурса для GET /events. */
+    public EventBus events() {
+        return events;
+    }
+
+    /** За сколько до начала рецензирования назначения и пакеты собираются заранее. */
+    static final Duration PREWARM = Duration.ofMinutes(1);
+    static final int REVIEW_LOG_FOLD_LINES = 10_000;
+    static final int SEARCH_BUILD_ATTEMPTS = 3;
+
+    /**
+     * Планировщик границ конкурса из ConfigService; запускается один раз при старте сервера.
+     * На каждой границе публикуется событие "phase", а дорогая работа делается заранее, а не первым запросом:
+     * <ul>
+     *   <li>за {@link #PREWARM} до reviewFrom — назначения и пакеты всех клиентов, на самой границе — досборка
+     *       того, что изменилось за эту минуту;</li>
+     *   <li>в resultsAt — снимок результатов, final.json, протокол и готовый JSON ответа /results.</li>
+     * </ul>
+     * Событие "phase" уходит после подготовки, так что проснувшиеся по нему клиенты получают готовое.
+     * Границы, прошедшие до запуска, догоняются сразу в фоне.
+     */
+    public synchronized void startPhaseScheduler() {
+        if (phaseTimer != null) return;
+        phaseTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "contest-phases");
+            t.setDaemon(true);
+            return t;
+        });
+        Instant now = Instant.now();
+        phaseTimer.execute(() -> {
+            if (!now.isBefore(ConfigService.reviewFrom())) quietly("packs", this::preparePacks);
+            if (!now.isBefore(ConfigService.resultsAt())) quietly("results", this::generateResults);
+        });
+        at(now, ConfigService.submitFrom(), this::publishPhase);
+        at(now, ConfigService.submitTo(), this::publishPhase);
+        at(now, ConfigService.reviewFrom().minus(PREWARM), () -> quietly("packs", this::preparePacks));
+        at(now, ConfigService.reviewFrom(), () -> {
+            quietly("packs", this::preparePacks);
+            publishPhase();
+        });
+        at(now, ConfigService.reviewTo(), this::publishPhase);
+        at(now, ConfigService.resultsAt(), () -> {
+            quietly("results", this::generateResults);
+            publishPhase();
+        });
+    }
+
+    private void at(Instant now, Instant when, Runnable task) {
+        // +1 мс: окна включают правую границу, состояние меняется сразу после неё
+        if (when.isAfter(now)) {
+            phaseTimer.schedule(task, Duration.between(now, when).toMillis() + 1, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Work {
+        void run() throws IOException;
+    }
+
+    // ошибка подготовки не должна сорвать расписание: первый запрос всё равно досчитает сам
+    private static void quietly(String what, Work work) {
+        try {
+            work.run();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("precompute " + what + " failed: " + e);
+        }
+    }
+
+    /** Текущее состояние окон конкурса в JSON — первое событие каждого подписчика и содержимое "phase". */
+    public static String phaseJson(Instant now) throws IOException {
+        return json(w -> w.beginObject()
+                .name("serverTime").value(now.toString())
+                .name("isSubmitOpen").value(!now.isBefore(ConfigService.submitFrom()) && !now.isAfter(ConfigService.submitTo()))
+                .name("isReviewOpen").value(!now.isBefore(ConfigService.reviewFrom()) && !now.isAfter(ConfigService.reviewTo()))
+                .name("areResultsReady").value(!now.isBefore(ConfigService.resultsAt()))
+                .endObject());
+    }
+
+    private void publishPhase() {
+        quietly("phase event", () -> events.publish("phase", null, phaseJson(Instant.now())));
+    }
+
+    @FunctionalInterface
+    private interface JsonBody {
+        void write(JsonWriter w) throws IOException;
+    }
+
+    private static String json(JsonBody body) throws IOException {
+        var buf = new ByteArrayOutputStream(128);
+        JsonWriter w = new JsonWriter(buf);
+        body.write(w);
+        w.flush();
+        return buf.toString(StandardCharsets.UTF_8);
+    }
+
     /* ===================== submissions ===================== */
 
     public synchronized Submission registerTextSubmission(String clientId, String title, String text) throws IOException {
@@ -65,27 +224,292 @@ public class ContestService {
         return addSubmissionRecord(clientId, title, fileName, text, Instant.now().toEpochMilli());
     }
 
-    public synchronized Submission registerBinarySubmission(String clientId, String title, String ext, byte[] body) throws IOException {
-        Path dir = Storage.ROOT.resolve("submissions").resolve(safe(clientId));
-        Files.createDirectories(dir);
-        String fileName = "story-" + UUID.randomUUID() + ext;
-        Files.write(dir.resolve(fileName), body);
-        String text = ext.toLowerCase().contains("doc") ? DocxUtil.extractPlainText(body) : new String(body, StandardCharsets.UTF_8);
-        return addSubmissionRecord(clientId, title, fileName, text, Instant.now().toEpochMilli());
+
+    /**
+     * Регистрирует уже загруженный во временный файл (storage/tmp) рассказ.
+     * Текст извлекается из файла вне блокировки, сам файл переносится в submissions атомарным rename.
+     */
+    public Submission registerUploadedSubmission(String clientId, String title, String ext, Path upload) throws IOException {
+        return registerUploadedSubmission(clientId, title, ext, upload, extractText(ext, upload));
+    }
+
+    /** Вариант для случая, когда текст уже извлечён (и проверен) вызывающим кодом. */
+    public Submission registerUploadedSubmission(String clientId, String title, String ext, Path upload, String text) throws IOException {
+        return registerUploads(List.of(new Upload(clientId, title, ext, upload, text, Instant.now().toEpochMilli(), null))).get(0);
+    }
+
+    /**
+     * Рассказ во временном файле с уже извлечённым и проверенным текстом; receivedAt — время приёма.
+     * submissionId — id будущей истории (например, номер билета очереди), null — новый случайный;
+     * история с уже записанным id повторно не регистрируется.
+     */
+    public record Upload(String clientId, String title, String ext, Path file, String text, long receivedAt,
+                         String submissionId) {}
+
+    /**
+     * Регистрирует пачку загруженных рассказов. Нормализация DOCX и подписи считаются параллельно
+     * и вне блокировки; под блокировкой — перенос файлов в submissions, одна запись реестра и один
+     * пересчёт назначений на всю пачку. Если записать не удалось, файлы остаются на прежних местах.
+     */
+    public List<Submission> registerUploads(List<Upload> uploads) throws IOException {
+        return commit(parallel(uploads.size(), i -> {
+            Upload u = uploads.get(i);
+            return prepare(u.submissionId(), u.clientId(), u.title(), storyFileName(u.ext()), u.file(), u.text(), u.receivedAt());
+        }));
     }
 
     public synchronized Submission addSubmissionRecord(String clientId, String title, String fileName, String plainText, long receivedAt) throws IOException {
-        List<Submission> all = loadSubmissions();
-        String submissionId = UUID.randomUUID().toString();
+        return commit(List.of(prepare(null, clientId, title, fileName, null, plainText, receivedAt))).get(0);
+    }
+
+    // история, готовая к записи в реестр; source — файл, который переносится в submissions при записи (null — уже там)
+    private record Prepared(Submission submission, Path source, String plainText, int[] signature) {}
+
+    // id, нормализованный DOCX и подпись: реестр не нужен, поэтому можно вне блокировки и параллельно
+    private static Prepared prepare(String submissionId, String clientId, String title, String fileName, Path source,
+                                    String plainText, long receivedAt) throws IOException {
+        if (submissionId == null) submissionId = UUID.randomUUID().toString();
         String normalizedRel = "normalized/" + safe(submissionId) + ".docx";
-        Path normalizedPath = Storage.ROOT.resolve("packs").resolve(normalizedRel);
-        DocxUtil.writeNormalizedDocx(title, plainText, normalizedPath);
+        DocxUtil.writeNormalizedDocx(title, plainText, Storage.ROOT.resolve("packs").resolve(normalizedRel));
+        Submission s = new Submission(clientId, submissionId, sanitize(title), fileName, normalizedRel, receivedAt);
+        return new Prepared(s, source, plainText, DuplicateDetector.signature(plainText));
+    }
+
+    private static String storyFileName(String ext) {
+        return "story-" + UUID.randomUUID() + ext;
+    }
+
+    private static Path storyFile(Submission s) {
+        return Storage.ROOT.resolve("submissions").resolve(safe(s.clientId())).resolve(s.fileName());
+    }
+
+    // результат — по порядку prepared; история с уже записанным id возвращается из реестра как есть
+    private synchronized List<Submission> commit(List<Prepared> prepared) throws IOException {
+        List<Submission> all = loadSubmissions();
+        Map<String, Submission> existing = new HashMap<>();
+        for (Submission s : all) existing.put(s.submissionId(), s);
+        List<Submission> added = new ArrayList<>(prepared.size());
+        List<Prepared> fresh = new ArrayList<>(prepared.size());
+        for (Prepared p : prepared) {
+            Submission old = existing.get(p.submission().submissionId());
+            if (old != null) {
+                // повтор после сбоя: история уже в реестре, копия файла не нужна
+                if (p.source() != null) Files.deleteIfExists(p.source());
+                added.add(old);
+            } else {
+                existing.put(p.submission().submissionId(), p.submission());
+                fresh.add(p);
+                added.add(p.submission());
+            }
+        }
+        if (fresh.isEmpty()) return added;
+
+        List<Prepared> moved = new ArrayList<>(fresh.size());
+        String before = fileStamp(submissionsCsv);
+        try {
+            for (Prepared p : fresh) {
+                if (p.source() != null) {
+                    Storage.moveAtomically(p.source(), storyFile(p.submission()));
+                    moved.add(p);
+                }
+                saveSignature(p.submission().submissionId(), p.signature());
+                all.add(p.submission());
+            }
+            saveSubmissions(all);
+        } catch (IOException | RuntimeException e) {
+            // реестр не записан — файлы возвращаются на место, чтобы вызывающий код мог повторить
+            for (Prepared p : moved) {
+                try {
+                    Storage.moveAtomically(storyFile(p.submission()), p.source());
+                } catch (IOException back) {
+                    System.err.println("cannot return " + p.source() + " after failed commit: " + back);
+                }
+            }
+            throw e;
+        }
 
-        Submission newSub = new Submission(clientId, submissionId, sanitize(title), fileName, normalizedRel, receivedAt);
-        all.add(newSub);
-        saveSubmissions(all);
+        boolean ownersFresh = owners != null && before.equals(ownersStamp);
+        boolean searchFresh = search != null && before.equals(searchStamp);
+        boolean duplicatesFresh = duplicates != null && before.equals(duplicatesStamp);
+        String after = fileStamp(submissionsCsv);
+        for (Prepared p : fresh) {
+            Submission newSub = p.submission();
+            if (ownersFresh) indexOwner(newSub);
+            if (searchFresh) {
+                search.add(newSub.submissionId(), newSub.title(), p.plainText());
+                searchDocs.add(newSub);
+            }
+            if (duplicatesFresh) duplicates.add(newSub.submissionId(), p.signature());
+        }
+        if (ownersFresh) ownersStamp = after;
+        if (searchFresh) searchStamp = after;
+        if (duplicatesFresh) duplicatesStamp = after;
         regenerateAssignmentsIfNeeded(all);
-        return newSub;
+        return added;
+    }
+
+    /**
+     * id всех историй автора clientId (без учёта регистра id автора) — чтобы проверить на самооценку
+     * целый файл оценок одним снимком, а не блокировкой на каждую строку.
+     */
+    public synchronized Set<String> storiesOf(String clientId) throws IOException {
+        refreshOwners();
+        return Set.copyOf(storiesByAuthor.getOrDefault(clientId.toLowerCase(Locale.ROOT), Set.of()));
+    }
+
+    // индекс авторов строится один раз по реестру и пересобирается, только если submissions.csv изменился извне
+    private void refreshOwners() throws IOException {
+        String stamp = fileStamp(submissionsCsv);
+        if (owners != null && stamp.equals(ownersStamp)) return;
+        owners = new HashMap<>();
+        storiesByAuthor = new HashMap<>();
+        for (Submission s : loadSubmissions()) indexOwner(s);
+        ownersStamp = stamp;
+    }
+
+    private void indexOwner(Submission s) {
+        owners.put(s.submissionId(), s.clientId());
+        storiesByAuthor.computeIfAbsent(s.clientId().toLowerCase(Locale.ROOT), k -> new HashSet<>())
+                .add(s.submissionId());
+    }
+
+    /* ===================== search ===================== */
+
+    public record SearchResult(int total, List<Submission> items) {}
+
+    /**
+     * Полнотекстовый поиск по названиям и текстам (см. {@link SearchIndex} — синтаксис запроса).
+     * Индекс строится один раз по нормализованным DOCX и дальше пополняется при регистрации историй;
+     * заново — только если реестр изменился в обход этого экземпляра. Сборка (чтение всех DOCX) идёт
+     * вне блокировки сервиса: приём историй и оценок её не ждёт.
+     */
+    public SearchResult search(String query, int limit) throws IOException {
+        synchronized (this) {
+            if (search != null && fileStamp(submissionsCsv).equals(searchStamp)) return query(search, searchDocs, query, limit);
+        }
+        synchronized (searchBuild) { // одна сборка на всех ждущих
+            SearchIndex idx = null;
+            List<Submission> docs = null;
+            for (int attempt = 0; attempt < SEARCH_BUILD_ATTEMPTS; attempt++) {
+                synchronized (this) {
+                    if (search != null && fileStamp(submissionsCsv).equals(searchStamp)) return query(search, searchDocs, query, limit);
+                }
+                String stamp = fileStamp(submissionsCsv); // до чтения реестра: изменение во время сборки будет замечено
+                docs = loadSubmissions();
+                idx = new SearchIndex();
+                for (Submission s : docs) idx.add(s.submissionId(), s.title(), normalizedText(s));
+                synchronized (this) {
+                    if (stamp.equals(fileStamp(submissionsCsv))) {
+                        search = idx;
+                        searchDocs = docs;
+                        searchStamp = stamp;
+                        return query(search, searchDocs, query, limit);
+                    }
+                }
+            }
+            // реестр меняется быстрее, чем собирается индекс: отвечаем по последней сборке, не сохраняя её
+            return query(idx, docs, query, limit);
+        }
+    }
+
+    private static SearchResult query(SearchIndex idx, List<Submission> docs, String query, int limit) {
+        int[] found = idx.search(query);
+        List<Submission> items = new ArrayList<>(Math.min(found.length, limit));
+        for (int k = 0; k < found.length && k < limit; k++) items.add(docs.get(found[k]));
+        return new SearchResult(found.length, items);
+    }
+
+    private static String normalizedText(Submission s) throws IOException {
+        if (s.normalizedDocx().isEmpty()) return "";
+        Path docx = Storage.ROOT.resolve("packs").resolve(s.normalizedDocx());
+        return Files.exists(docx) ? DocxUtil.extractPlainText(docx) : "";
+    }
+
+    /* ===================== duplicates ===================== */
+
+    public record DuplicateCluster(List<Submission> stories, double maxSimilarity, List<DuplicateDetector.Pair> pairs) {}
+
+    /**
+     * Группы почти одинаковых историй (см. {@link DuplicateDetector}). Подписи считаются при регистрации
+     * и хранятся в registry/signatures.csv, поэтому перестройка после перезапуска не перечитывает тексты;
+     * недостающие подписи (истории, принятые до появления файла) досчитываются по нормализованным DOCX.
+     */
+    public synchronized List<DuplicateCluster> duplicateClusters() throws IOException {
+        String stamp = fileStamp(submissionsCsv);
+        List<Submission> submissions = loadSubmissions();
+        if (duplicates == null || !stamp.equals(duplicatesStamp)) {
+            Map<String, int[]> saved = loadSignatures();
+            DuplicateDetector detector = new DuplicateDetector();
+            for (Submission s : submissions) {
+                int[] sig = saved.get(s.submissionId());
+                if (sig == null && !saved.containsKey(s.submissionId())) {
+                    String text = "";
+                    if (!s.normalizedDocx().isEmpty()) {
+                        Path docx = Storage.ROOT.resolve("packs").resolve(s.normalizedDocx());
+                        if (Files.exists(docx)) text = DocxUtil.extractPlainText(docx);
+                    }
+                    sig = DuplicateDetector.signature(text);
+                    saveSignature(s.submissionId(), sig);
+                }
+                detector.add(s.submissionId(), sig);
+            }
+            duplicates = detector;
+            duplicatesStamp = stamp;
+        }
+
+        Map<String, Submission> byId = indexById(submissions);
+        List<DuplicateCluster> res = new ArrayList<>();
+        for (List<DuplicateDetector.Pair> pairs : duplicates.clusters()) {
+            Set<String> ids = new TreeSet<>();
+            double max = 0;
+            for (DuplicateDetector.Pair p : pairs) {
+                ids.add(p.a());
+                ids.add(p.b());
+                max = Math.max(max, p.similarity());
+            }
+            List<Submission> stories = new ArrayList<>();
+            for (String id : ids) {
+                Submission s = byId.get(id);
+                if (s != null) stories.add(s);
+            }
+            res.add(new DuplicateCluster(stories, max, pairs));
+        }
+        return res;
+    }
+
+    // storyId|base64(подпись); пустая подпись — в тексте нет ни одного слова
+    private void saveSignature(String storyId, int[] signature) throws IOException {
+        String encoded = "";
+        if (signature != null) {
+            ByteBuffer buf = ByteBuffer.allocate(signature.length * 4);
+            buf.asIntBuffer().put(signature);
+            encoded = Base64.getEncoder().encodeToString(buf.array());
+        }
+        Files.writeString(signaturesCsv, storyId + "|" + encoded + "\n", StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private Map<String, int[]> loadSignatures() throws IOException {
+        Map<String, int[]> res = new HashMap<>();
+        if (Files.notExists(signaturesCsv)) return res;
+        for (String line : Files.readAllLines(signaturesCsv, StandardCharsets.UTF_8)) {
+            int bar = line.indexOf('|');
+            if (bar <= 0) continue;
+            String encoded = line.substring(bar + 1).trim();
+            int[] sig = null;
+            if (!encoded.isEmpty()) {
+                try {
+                    IntBuffer ints = ByteBuffer.wrap(Base64.getDecoder().decode(encoded)).asIntBuffer();
+                    if (ints.remaining() != DuplicateDetector.HASHES) continue; // другой формат — пересчитаем
+                    sig = new int[ints.remaining()];
+                    ints.get(sig);
+                } catch (IllegalArgumentException broken) {
+                    continue;
+                }
+            }
+            res.put(line.substring(0, bar), sig);
+        }
+        return res;
     }
 
     public List<Submission> loadSubmissions() throws IOException {
@@ -117,53 +541,124 @@ public class ContestService {
                     sanitize(s.normalizedDocx()),
                     Long.toString(s.receivedAtUtc())));
         }
-        Files.write(submissionsCsv, lines, StandardCharsets.UTF_8);
+        // через временный файл: при сбое реестр остаётся прежним, а не обрезанным
+        Path tmp = Storage.newTempFile(".csv");
+        Files.write(tmp, lines, StandardCharsets.UTF_8);
+        Storage.moveAtomically(tmp, submissionsCsv);
     }
 
-    public synchronized MailIngestResult ingestMail(String clientId, String subject, Instant receivedAt, List<Attachment> attachments) throws IOException {
-        List<Submission> accepted = new ArrayList<>();
-        List<String> errors = new ArrayList<>();
+    /**
+     * Приём письма с вложениями. Вложения разбираются параллельно (ForkJoinPool): извлечение текста,
+     * проверка длины, нормализация DOCX; принятые пишутся в реестр одной записью, назначения пересчитываются
+     * один раз на письмо. Файлы принятых вложений переносятся в submissions только вместе с записью
+     * реестра; отклонённые (и все — при ошибке записи) остаются на месте, их удаляет вызывающий код.
+     */
+    public MailIngestResult ingestMail(String clientId, String subject, Instant receivedAt, List<Attachment> attachments) throws IOException {
+        return ingestMails(List.of(new Mail(null, clientId, subject, receivedAt, attachments))).get(0);
+    }
+
+    /**
+     * Приём пачки писем так же, как {@link #ingestMail}, но с одной записью реестра и одним пересчётом
+     * назначений на всю пачку. Результаты — по порядку писем.
+     */
+    public List<MailIngestResult> ingestMails(List<Mail> mails) throws IOException {
+        List<MailIngestResult> results = new ArrayList<>(mails.size());
+        List<Attachment> attachments = new ArrayList<>();
+        List<Mail> owners = new ArrayList<>();
+        List<Integer> mailOf = new ArrayList<>();
+        List<String> ids = new ArrayList<>();
+        for (Mail m : mails) {
+            MailIngestResult r = new MailIngestResult(new ArrayList<>(), new ArrayList<>());
+            results.add(r);
+            if (m.subject() == null || !m.subject().trim().equalsIgnoreCase(ConfigService.expectedMailSubject())) {
+                r.errors().add("invalid subject");
+            } else if (m.receivedAt().isBefore(ConfigService.submitFrom()) || m.receivedAt().isAfter(ConfigService.submitTo())) {
+                r.errors().add("submission window closed");
+            } else {
+                for (int k = 0; k < m.attachments().size(); k++) {
+                    attachments.add(m.attachments().get(k));
+                    owners.add(m);
+                    mailOf.add(results.size() - 1);
+                    ids.add(m.messageId() == null ? null : UUID.nameUUIDFromBytes(
+                            ("mail:" + m.messageId() + "#" + k).getBytes(StandardCharsets.UTF_8)).toString());
+                }
+            }
+        }
 
-        if (subject == null || !subject.trim().equalsIgnoreCase(ConfigService.expectedMailSubject())) {
-            errors.add("invalid subject");
-            return new MailIngestResult(accepted, errors);
+        List<Extracted> extracted = parallel(attachments.size(), i -> extractAttachment(
+                ids.get(i), owners.get(i).clientId(), attachments.get(i), owners.get(i).receivedAt().toEpochMilli()));
+        List<Prepared> ok = new ArrayList<>();
+        List<Integer> okMail = new ArrayList<>();
+        for (int i = 0; i < extracted.size(); i++) {
+            Extracted e = extracted.get(i);
+            if (e.prepared() != null) {
+                ok.add(e.prepared());
+                okMail.add(mailOf.get(i));
+            } else {
+                results.get(mailOf.get(i)).errors().add(e.error());
+            }
         }
-        if (receivedAt.isBefore(ConfigService.submitFrom()) || receivedAt.isAfter(ConfigService.submitTo())) {
-            errors.add("submission window closed");
-            return new MailIngestResult(accepted, errors);
+        if (!ok.isEmpty()) {
+            List<Submission> saved = commit(ok);
+            for (int i = 0; i < saved.size(); i++) results.get(okMail.get(i)).accepted().add(saved.get(i));
         }
+        return results;
+    }
+
+    private record Extracted(Prepared prepared, String error) {}
 
+    private static Extracted extractAttachment(String submissionId, String clientId, Attachment a, long receivedAt) throws IOException {
         int min = ConfigService.minChars();
         int max = ConfigService.maxChars();
-        for (Attachment a : attachments) {
-            String name = a.fileName() == null ? "untitled" : a.fileName();
-            String lower = name.toLowerCase();
-            if (!(lower.endsWith(".txt") || lower.endsWith(".doc") || lower.endsWith(".docx"))) {
-                errors.add(name + ": unsupported attachment type");
-                continue;
-            }
+        String name = a.fileName() == null ? "untitled" : a.fileName();
+        String lower = name.toLowerCase();
+        if (!(lower.endsWith(".txt") || lower.endsWith(".doc") || lower.endsWith(".docx"))) {
+            return new Extracted(null, name + ": unsupported attachment type");
+        }
 
-            String text;
-            if (lower.endsWith(".txt")) {
-                text = new String(a.content(), StandardCharsets.UTF_8);
-            } else {
-                try {
-                    text = DocxUtil.extractPlainText(a.content());
-                } catch (Exception e) {
-                    errors.add(name + ": failed to read docx text");
-                    continue;
-                }
-            }
+        // длина считается по ходу декодирования: слишком длинное вложение дальше не разбирается
+        String ext = lower.endsWith(".txt") ? ".txt" : ".docx";
+        BoundedText text;
+        try {
+            text = BoundedText.fromFile(ext, a.file(), max);
+        } catch (BoundedText.TooLongException e) {
+            return new Extracted(null, name + ": length must be between " + min + " and " + max);
+        } catch (Exception e) {
+            return new Extracted(null, name + ": failed to read docx text");
+        }
+        if (text.codePoints() <= min) {
+            return new Extracted(null, name + ": length must be between " + min + " and " + max);
+        }
+        return new Extracted(prepare(submissionId, clientId, stripExtension(name), storyFileName(ext), a.file(), text.text(), receivedAt), null);
+    }
 
-            int chars = text.codePointCount(0, text.length());
-            if (chars <= min || chars >= max) {
-                errors.add(name + ": length must be between " + min + " and " + max);
-                continue;
+    @FunctionalInterface
+    private interface IndexedTask<T> {
+        T run(int index) throws IOException;
+    }
+
+    // n независимых задач в ForkJoinPool; результаты по порядку, первая ошибка пробрасывается
+    private static <T> List<T> parallel(int n, IndexedTask<T> task) throws IOException {
+        if (n == 1) return List.of(task.run(0));
+        List<Callable<T>> calls = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            int index = i;
+            calls.add(() -> task.run(index));
+        }
+        List<T> res = new ArrayList<>(n);
+        for (Future<T> f : ForkJoinPool.commonPool().invokeAll(calls)) {
+            try {
+                res.add(f.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException io) throw io;
+                if (e.getCause() instanceof RuntimeException re) throw re;
+                throw new IOException(e.getCause());
             }
-            String title = stripExtension(name);
-            accepted.add(addSubmissionRecord(clientId, title, name, text, receivedAt.toEpochMilli()));
         }
-        return new MailIngestResult(accepted, errors);
+        return res;
     }
 
     /* ===================== assignments ===================== */
@@ -207,6 +702,18 @@ public class ContestService {
 
         Map<String, Assignment> regenerated = generateAssignments(submissions, n);
         saveAssignments(regenerated);
+        for (Assignment a : regenerated.values()) {
+            Assignment before = current.get(a.clientId());
+            if (before != null && before.submissionIds().equals(a.submissionIds())) continue;
+            events.publish("assignments", a.clientId(), json(w -> w.beginObject()
+                    .name("clientId").value(a.clientId())
+                    .name("stories").stringArray(a.submissionIds())
+                    .endObject()));
+        }
+        // с открытием рецензирования пакеты собираются сразу, а не в момент первого скачивания
+        if (!Instant.now().isBefore(ConfigService.reviewFrom())) {
+            buildPacks(regenerated, submissions);
+        }
     }
 
     private Map<String, Assignment> generateAssignments(List<Submission> subs, int n) {
@@ -281,6 +788,11 @@ public class ContestService {
 
     public record ReviewResult(int saved, List<String> errors) {}
 
+    /**
+     * Полный набор оценок рецензента (PUT /reviews): заменяет прежний целиком, поэтому должен содержать
+     * не меньше {@link ConfigService#requiredReviewsPerClient()} оценок — иначе загрузка по одной
+     * молча стирала бы предыдущие. Отдельные оценки меняются через {@link #patchReviews}.
+     */
     public synchronized ReviewResult acceptReviews(String clientId, List<Review> reviews) throws IOException {
         Assignment assignment = assignmentsFor(clientId);
         Set<String> allowed = new HashSet<>(assignment.submissionIds());
@@ -331,25 +843,160 @@ public class ContestService {
             return new ReviewResult(0, errors);
         }
 
-        List<Review> filtered = existing.stream()
-                .filter(r -> !r.reviewerId().equalsIgnoreCase(clientId))
-                .collect(Collectors.toCollection(ArrayList::new));
-        filtered.addAll(reviews);
-        saveReviewsIndex(filtered);
+        // полный набор рецензента = удалить прежние + записать новые; индекс не переписывается
+        List<ReviewOp> ops = new ArrayList<>();
+        for (Review r : existing) {
+            if (r.reviewerId().equalsIgnoreCase(clientId)) ops.add(new ReviewOp(true, r));
+        }
+        for (Review r : reviews) ops.add(new ReviewOp(false, r));
+        appendReviewLog(ops);
 
         return new ReviewResult(reviews.size(), List.of());
     }
 
+    /** Изменение одной оценки для {@link #patchReviews}; score == null — удалить оценку. */
+    public record ReviewChange(String storyId, Integer score) {}
+
+    public record ReviewPatchResult(int upserted, int deleted, List<String> errors) {}
+
+    /**
+     * Точечное изменение оценок рецензента (PATCH /reviews): upsert или удаление по историям,
+     * всё или ничего. Проверяются и записываются только затронутые пары (рецензент, история) — одна
+     * строка журнала на изменение. Удаление отсутствующей оценки — не ошибка (повтор безопасен).
+     * Полнота набора здесь не требуется: недобравшие нужное число оценок отсекаются при подведении итогов.
+     */
+    public synchronized ReviewPatchResult patchReviews(String clientId, List<ReviewChange> changes, long receivedAt) throws IOException {
+        List<String> errors = new ArrayList<>();
+        Instant ts = Instant.ofEpochMilli(receivedAt);
+        if (ts.isBefore(ConfigService.reviewFrom()) || ts.isAfter(ConfigService.reviewTo())) {
+            errors.add("review window closed");
+            return new ReviewPatchResult(0, 0, errors);
+        }
+        Set<String> allowed = new HashSet<>(assignmentsFor(clientId).submissionIds());
+        if (allowed.isEmpty()) errors.add("no assignments for client");
+
+        refreshOwners();
+        Set<String> seen = new HashSet<>();
+        List<ReviewOp> ops = new ArrayList<>(changes.size());
+        int upserted = 0, deleted = 0;
+        for (ReviewChange c : changes) {
+            if (!seen.add(c.storyId().toLowerCase(Locale.ROOT))) {
+                errors.add("duplicate change in payload for story " + c.storyId());
+                continue;
+            }
+            Review r = new Review(clientId, c.storyId(), c.score() == null ? 0 : c.score(), receivedAt);
+            if (c.score() == null) {
+                ops.add(new ReviewOp(true, r));
+                deleted++;
+                continue;
+            }
+            if (!owners.containsKey(c.storyId())) {
+                errors.add("story " + c.storyId() + " does not exist");
+            } else if (!allowed.contains(c.storyId())) {
+                errors.add("story " + c.storyId() + " is not assigned to " + clientId);
+            } else {
+                ops.add(new ReviewOp(false, r));
+                upserted++;
+            }
+        }
+        if (!errors.isEmpty()) return new ReviewPatchResult(0, 0, errors);
+        appendReviewLog(ops);
+        return new ReviewPatchResult(upserted, deleted, List.of());
+    }
+
+    /*
+     * Оценки = reviews_index.csv (свёрнутое состояние) + журнал reviews_log.csv поверх него:
+     * строки "U|рецензент|история|оценка|время" (upsert) и "D|рецензент|история||время" (удаление).
+     * Изменения только дописываются в журнал; когда он разрастается (или перед выгрузкой реестра),
+     * журнал сворачивается в индекс. Повторное применение журнала к уже свёрнутому индексу даёт то же
+     * состояние, поэтому сбой между записью индекса и очисткой журнала ничего не портит.
+     */
     private List<Review> loadReviewsIndex() throws IOException {
-        if (Files.notExists(reviewsIndexCsv)) return List.of();
-        List<Review> list = new ArrayList<>();
-        for (String line : Files.readAllLines(reviewsIndexCsv, StandardCharsets.UTF_8)) {
-            if (line.isBlank()) continue;
-            String[] p = line.split("\\|", -1);
-            if (p.length < 4) continue;
-            list.add(new Review(p[0], p[1], Integer.parseInt(p[2]), parseLong(p[3])));
+        Map<String, Review> merged = new LinkedHashMap<>();
+        if (Files.exists(reviewsIndexCsv)) {
+            for (String line : Files.readAllLines(reviewsIndexCsv, StandardCharsets.UTF_8)) {
+                if (line.isBlank()) continue;
+                String[] p = line.split("\\|", -1);
+                if (p.length < 4) continue;
+                Review r = new Review(p[0], p[1], Integer.parseInt(p[2]), parseLong(p[3]));
+                merged.put(reviewKey(r), r);
+            }
         }
-        return list;
+        if (Files.exists(reviewsLogCsv)) {
+            for (String line : Files.readAllLines(reviewsLogCsv, StandardCharsets.UTF_8)) {
+                String[] p = line.split("\\|", -1);
+                if (p.length < 5) continue; // недописанная при сбое строка
+                if ("D".equals(p[0])) {
+                    merged.remove(reviewKey(new Review(p[1], p[2], 0, 0)));
+                } else if ("U".equals(p[0])) {
+                    try {
+                        Review r = new Review(p[1], p[2], Integer.parseInt(p[3]), parseLong(p[4]));
+                        merged.put(reviewKey(r), r);
+                    } catch (NumberFormatException ignore) {
+                        // битая строка
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(merged.values());
+    }
+
+    private static String reviewKey(Review r) {
+        return r.reviewerId().toLowerCase(Locale.ROOT) + "|" + r.storyId().toLowerCase(Locale.ROOT);
+    }
+
+    private record ReviewOp(boolean delete, Review review) {
+        String logLine() {
+            return String.join("|", delete ? "D" : "U", sanitize(review.reviewerId()), sanitize(review.storyId()),
+                    delete ? "" : Integer.toString(review.score()), Long.toString(review.receivedAtUtc()));
+        }
+    }
+
+    private void appendReviewLog(List<ReviewOp> ops) throws IOException {
+        if (ops.isEmpty()) return;
+        if (reviewLogLines < 0) {
+            try (var lines = Files.lines(reviewsLogCsv, StandardCharsets.UTF_8)) { reviewLogLines = (int) lines.count(); }
+        }
+        String before = reviewsStamp();
+        Files.write(reviewsLogCsv, ops.stream().map(ReviewOp::logLine).toList(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        reviewLogLines += ops.size();
+        // сводка оценок обновляется теми же изменениями, если до записи она была актуальна
+        if (scoreStats != null && before.equals(scoreStatsStamp)) {
+            for (ReviewOp op : ops) {
+                Review r = op.review();
+                if (op.delete()) scoreStats.remove(r.reviewerId(), r.storyId());
+                else scoreStats.put(r.reviewerId(), r.storyId(), r.score());
+            }
+            scoreStatsStamp = reviewsStamp();
+        }
+        if (reviewLogLines > REVIEW_LOG_FOLD_LINES) foldReviewLog();
+    }
+
+    // сворачивает журнал в индекс; вызывается под блокировкой сервиса
+    private void foldReviewLog() throws IOException {
+        if (Files.notExists(reviewsLogCsv) || Files.size(reviewsLogCsv) == 0) return;
+        String before = reviewsStamp();
+        saveReviewsIndex(loadReviewsIndex());
+        Files.write(reviewsLogCsv, new byte[0]);
+        reviewLogLines = 0;
+        if (scoreStats != null && before.equals(scoreStatsStamp)) scoreStatsStamp = reviewsStamp(); // оценки те же
+    }
+
+    private String reviewsStamp() throws IOException {
+        return fileStamp(reviewsIndexCsv) + "|" + fileStamp(reviewsLogCsv);
+    }
+
+    /** Сводка оценок для метрик рейтинга; перестраивается целиком, только если оценки изменились извне. */
+    private ScoreStats scoreStats() throws IOException {
+        String stamp = reviewsStamp();
+        if (scoreStats == null || !stamp.equals(scoreStatsStamp)) {
+            ScoreStats stats = new ScoreStats();
+            for (Review r : loadReviewsIndex()) stats.put(r.reviewerId(), r.storyId(), r.score());
+            scoreStats = stats;
+            scoreStatsStamp = stamp;
+        }
+        return scoreStats;
     }
 
     private void saveReviewsIndex(List<Review> list) throws IOException {
@@ -361,135 +1008,406 @@ public class ContestService {
                     Integer.toString(r.score()),
                     Long.toString(r.receivedAtUtc())));
         }
-        Files.write(reviewsIndexCsv, lines, StandardCharsets.UTF_8);
+        Path tmp = Storage.newTempFile(".csv");
+        try {
+            Files.write(tmp, lines, StandardCharsets.UTF_8);
+            Storage.moveAtomically(tmp, reviewsIndexCsv);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
     }
 
     /* ===================== downloadable helper files ===================== */
 
-    public byte[] assignmentsWorkbook(String clientId) throws IOException {
-        Assignment assignment = assignmentsFor(clientId);
-        Map<String, Submission> byId = loadSubmissions().stream()
-                .collect(Collectors.toMap(Submission::submissionId, s -> s, (a,b)->a));
-        List<XlsxUtil.Row> rows = new ArrayList<>();
+    /**
+     * Готовые файлы для рецензента: таблица и архив назначенных ему историй.
+     * Лежат в storage/packs/clients/&lt;client&gt;/ (отдельно от packs/normalized, с которым иначе совпал бы
+     * клиент "normalized") и версионируются хэшем назначения — пока назначение
+     * не меняется, скачивание сводится к чтению файла с диска.
+     */
+    public record Pack(String version, Path workbook, Path archive) {}
+
+    public synchronized Pack packFor(String clientId) throws IOException {
+        List<Submission> submissions = loadSubmissions();
+        regenerateAssignmentsIfNeeded(submissions);
+        Assignment assignment = loadAssignments().getOrDefault(clientId, new Assignment(clientId, List.of()));
+        return ensurePack(assignment, indexById(submissions));
+    }
+
+    /** Собирает недостающие пакеты для всех текущих назначений (например, к открытию окна рецензирования). */
+    public synchronized void preparePacks() throws IOException {
+        List<Submission> submissions = loadSubmissions();
+        regenerateAssignmentsIfNeeded(submissions);
+        buildPacks(loadAssignments(), submissions);
+    }
+
+    private void buildPacks(Map<String, Assignment> assignments, List<Submission> submissions) throws IOException {
+        Map<String, Submission> byId = indexById(submissions);
+        for (Assignment a : assignments.values()) ensurePack(a, byId);
+    }
+
+    private Pack ensurePack(Assignment assignment, Map<String, Submission> byId) throws IOException {
+        String clientId = assignment.clientId();
+        List<Submission> stories = new ArrayList<>();
         for (String id : assignment.submissionIds()) {
             Submission s = byId.get(id);
-            if (s != null && !s.clientId().equalsIgnoreCase(clientId)) {
-                rows.add(new XlsxUtil.Row(id, s.title(), s.clientId()));
+            if (s != null && !s.clientId().equalsIgnoreCase(clientId)) stories.add(s);
+        }
+
+        String version = packVersion(clientId, stories);
+        Path dir = Storage.ROOT.resolve("packs/clients").resolve(safe(clientId));
+        Pack pack = new Pack(version,
+                dir.resolve("assignments-" + version + ".xlsx"),
+                dir.resolve("assignments-" + version + ".zip"));
+        if (Files.exists(pack.workbook()) && Files.exists(pack.archive())) return pack;
+
+        List<XlsxUtil.Row> rows = new ArrayList<>();
+        for (Submission s : stories) rows.add(new XlsxUtil.Row(s.submissionId(), s.title(), s.clientId()));
+        Path workbookTmp = Storage.newTempFile(".xlsx");
+        Path archiveTmp = Storage.newTempFile(".zip");
+        try {
+            try (OutputStream out = Files.newOutputStream(workbookTmp)) {
+                XlsxUtil.writeAssignmentsSheet(rows, out);
+            }
+            // DOCX уже сжат: записи STORED с кэшированным CRC, содержимое копируется как есть
+            try (var zip = ZipBuilder.create(archiveTmp)) {
+                for (Submission s : stories) {
+                    Path normalized = Storage.ROOT.resolve("packs").resolve(s.normalizedDocx());
+                    if (Files.notExists(normalized)) continue;
+                    zip.addStored(s.submissionId() + ".docx", normalized);
+                }
+            }
+            Storage.moveAtomically(workbookTmp, pack.workbook());
+            Storage.moveAtomically(archiveTmp, pack.archive());
+        } finally {
+            Files.deleteIfExists(workbookTmp);
+            Files.deleteIfExists(archiveTmp);
+        }
+
+        // прежние версии больше не нужны; идущие скачивания дочитают уже открытый файл
+        try (var old = Files.newDirectoryStream(dir, "assignments-*")) {
+            for (Path f : old) {
+                if (f.equals(pack.workbook()) || f.equals(pack.archive())) continue;
+                try {
+                    Files.deleteIfExists(f);
+                } catch (IOException busy) {
+                    // ФС не даёт удалить открытый файл — удалится при следующей пересборке
+                }
             }
         }
-        return XlsxUtil.buildAssignmentsSheet(rows);
+        return pack;
     }
 
-    public byte[] assignmentsArchive(String clientId) throws IOException {
-        Assignment assignment = assignmentsFor(clientId);
-        Map<String, Submission> byId = loadSubmissions().stream()
-                .collect(Collectors.toMap(Submission::submissionId, s -> s, (a,b)->a));
+    // хэш всего, что попадает в пакет: состав, порядок, названия и авторы историй
+    private static String packVersion(String clientId, List<Submission> stories) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(clientId.getBytes(StandardCharsets.UTF_8));
+            for (Submission s : stories) {
+                md.update((byte) '\n');
+                md.update((s.submissionId() + "|" + s.title() + "|" + s.clientId() + "|" + s.normalizedDocx())
+                        .getBytes(StandardCharsets.UTF_8));
+            }
+            return HexFormat.of().formatHex(md.digest(), 0, 8);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        try (var zip = new java.util.zip.ZipOutputStream(bos)) {
-            for (String id : assignment.submissionIds()) {
-                Submission s = byId.get(id);
-                if (s == null) continue;
-                if (s.clientId().equalsIgnoreCase(clientId)) continue;
+    /** Версия назначения клиента для long-poll (?waitVersion=): меняется вместе со списком историй. */
+    public static String assignmentVersion(Assignment a) {
+        return shortHash(a.clientId() + "|" + String.join(",", a.submissionIds()));
+    }
+
+    /** Версия результатов: меняется вместе со снимком реестра, по которому они считаются. */
+    public synchronized String resultsVersion() throws IOException {
+        return shortHash(snapshot().stamp());
+    }
+
+    private static String shortHash(String s) {
+        try {
+            byte[] d = MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(d, 0, 8);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Map<String, Submission> indexById(List<Submission> submissions) {
+        return submissions.stream().collect(Collectors.toMap(Submission::submissionId, s -> s, (a, b) -> a));
+    }
+
+    /**
+     * Полная выгрузка конкурса в XLSX: все работы, все оценки и итоговый рейтинг, по листу на каждое.
+     * Оценки читаются из реестра потоком, так что память не растёт с их числом.
+     */
+    public void writeContestWorkbook(OutputStream out) throws IOException {
+        List<Submission> submissions;
+        Ranking ranking;
+        synchronized (this) {
+            submissions = loadSubmissions();
+            ranking = snapshot().ranking();
+            foldReviewLog(); // лист "Reviews" читается прямо из индекса
+        }
+        try (XlsxWriter x = new XlsxWriter(out)) {
+            x.sheet("Submissions").row("Story ID", "Title", "Author", "File", "Received at (UTC)");
+            for (Submission s : submissions) {
+                x.row(s.submissionId(), s.title(), s.clientId(), s.fileName(), Instant.ofEpochMilli(s.receivedAtUtc()).toString());
+            }
+
+            // реестр оценок заменяется атомарно, поэтому открытый файл остаётся целостным снимком
+            x.sheet("Reviews").row("Reviewer", "Story ID", "Score", "Received at (UTC)");
+            try (InputStream in = Files.newInputStream(reviewsIndexCsv)) {
+                CsvReader csv = new CsvReader(in, '|', 64 * 1024);
+                while (csv.nextRow()) {
+                    if (csv.fieldCount() < 4) continue;
+                    int score;
+                    try { score = csv.intField(2); } catch (NumberFormatException e) { continue; }
+                    x.row(csv.field(0), csv.field(1), score, Instant.ofEpochMilli(parseLong(csv.field(3))).toString());
+                }
+            }
+
+            x.sheet("Ranking").row("Rank", "Story ID", "Title", "Average score", "Score", "Reviews", "Insufficient reviews");
+            List<ResultItem> ranked = ranking.ranked();
+            for (int i = 0; i < ranked.size(); i++) {
+                ResultItem it = ranked.get(i);
+                x.row(i + 1, it.storyId(), it.title(), it.avgScore(), it.score(), it.reviewsCount(), it.insufficientReviews());
+            }
+        }
+    }
+
+    /**
+     * Архив для жюри: все нормализованные DOCX, реестр и итоговый протокол. До resultsAt протокол
+     * строится по текущему снимку только для архива — результаты при этом не публикуются.
+     * DOCX уже сжаты и идут STORED, текстовые части сжимаются параллельно по блокам.
+     * Реестр копируется под блокировкой, архив пишется в out уже без неё.
+     */
+    public void writeJuryArchive(OutputStream out) throws IOException {
+        List<Submission> submissions;
+        Map<String, Path> snapshot = new LinkedHashMap<>();
+        try {
+            synchronized (this) {
+                submissions = loadSubmissions();
+                foldReviewLog();
+                for (Path f : List.of(submissionsCsv, assignmentsCsv, reviewsIndexCsv)) {
+                    snapshot.put("registry/" + f.getFileName(), copyToTemp(f));
+                }
+                if (Instant.now().isBefore(ConfigService.resultsAt())) {
+                    // до resultsAt результаты не публикуются: протокол собирается только во временные копии
+                    Results r = results(snapshot());
+                    Path json = Storage.newTempFile(".snapshot");
+                    snapshot.put("results/" + resultsJson.getFileName(), json);
+                    writeResultsJson(r, json);
+                    Path protocol = Storage.newTempFile(".snapshot");
+                    snapshot.put("results/protocol.txt", protocol);
+                    writeProtocol(r, protocol);
+                } else {
+                    generateResults();
+                    for (Path f : List.of(resultsJson, protocolFile())) {
+                        if (Files.exists(f)) snapshot.put("results/" + f.getFileName(), copyToTemp(f));
+                    }
+                }
+            }
+
+            ZipBuilder zip = new ZipBuilder(Channels.newChannel(out));
+            for (Map.Entry<String, Path> e : snapshot.entrySet()) zip.addDeflated(e.getKey(), e.getValue());
+            for (Submission s : submissions) {
+                if (s.normalizedDocx().isEmpty()) continue;
                 Path normalized = Storage.ROOT.resolve("packs").resolve(s.normalizedDocx());
                 if (Files.notExists(normalized)) continue;
-                zip.putNextEntry(new java.util.zip.ZipEntry(id + ".docx"));
-                Files.copy(normalized, zip);
-                zip.closeEntry();
+                zip.addStored("stories/" + safe(s.clientId()) + "/" + s.submissionId() + ".docx", normalized);
             }
+            zip.finish();
+        } finally {
+            for (Path tmp : snapshot.values()) Files.deleteIfExists(tmp);
         }
-        return bos.toByteArray();
+    }
+
+    private static Path copyToTemp(Path file) throws IOException {
+        Path tmp = Storage.newTempFile(".snapshot");
+        Files.copy(file, tmp, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+        return tmp;
     }
 
     /* ===================== results ===================== */
 
+    /** Текущий снимок рейтинга; пересчитывается только когда меняется реестр. */
+    public synchronized Ranking currentRanking() throws IOException {
+        return snapshot().ranking();
+    }
+
+    /** Рейтинг того же снимка по другой метрике: строится из сводки оценок за O(S) и кэшируется до смены реестра. */
+    public synchronized Ranking currentRanking(ScoreStats.Metric metric) throws IOException {
+        ResultsSnapshot snap = snapshot();
+        if (metric == snap.metric()) return snap.ranking();
+        Ranking r = snap.rankings().get(metric);
+        if (r == null) {
+            r = ranking(metric, snap.candidates(), scoreStats(), snap.ranking().generatedAtUtc());
+            snap.rankings().put(metric, r);
+        }
+        return r;
+    }
+
     public synchronized Results generateResults() throws IOException {
+        ResultsSnapshot snap = snapshot();
+        Results results = results(snap);
+        if (!snap.stamp().equals(publishedStamp)) {
+            writeResultsJson(results);
+            writeProtocol(results, protocolFile());
+            publishedStamp = snap.stamp();
+            events.publish("results", null, json(w -> w.beginObject()
+                    .name("generatedAt").value(results.generatedAtUtc())
+                    .name("total").value(results.items().size())
+                    .endObject()));
+        }
+        return results;
+    }
+
+    private static Results results(ResultsSnapshot snap) {
+        return new Results(snap.ranking().ranked(), snap.ranking().generatedAtUtc(),
+                snap.disqualified(), snap.protocol(), snap.metric().id());
+    }
+
+    private Path protocolFile() {
+        return resultsJson.resolveSibling("protocol.txt");
+    }
+
+    private ResultsSnapshot snapshot() throws IOException {
+        String stamp = registryStamp();
+        if (snapshot != null && snapshot.stamp().equals(stamp)) return snapshot;
+
         List<Submission> submissions = loadSubmissions();
-        List<Review> reviews = loadReviewsIndex();
+        ScoreStats stats = scoreStats();
         Map<String, Assignment> assignments = loadAssignments();
 
-        Map<String, List<Review>> byStory = reviews.stream().collect(Collectors.groupingBy(Review::storyId));
-        Map<String, Long> reviewsByReviewer = reviews.stream()
-                .collect(Collectors.groupingBy(Review::reviewerId, Collectors.counting()));
-
         int required = ConfigService.requiredReviewsPerClient();
         Set<String> disqualifiedReviewers = new HashSet<>();
-        for (Map.Entry<String, Assignment> e : assignments.entrySet()) {
-            long count = reviewsByReviewer.getOrDefault(e.getKey(), 0L);
-            if (count < required) {
-                disqualifiedReviewers.add(e.getKey());
+        for (String reviewer : assignments.keySet()) {
+            if (stats.reviewerCount(reviewer) < required) {
+                disqualifiedReviewers.add(reviewer);
             }
         }
 
-        List<ResultItem> items = new ArrayList<>();
+        List<Submission> candidates = new ArrayList<>();
         List<String> insufficientStories = new ArrayList<>();
         for (Submission s : submissions) {
-            boolean authorDQ = disqualifiedReviewers.contains(s.clientId());
-            List<Review> rs = byStory.getOrDefault(s.submissionId(), List.of());
-            double avg = rs.stream().mapToInt(Review::score).average().orElse(0.0);
-            boolean insufficient = rs.size() < required;
-            if (insufficient) insufficientStories.add(s.submissionId());
-            if (!authorDQ) {
-                items.add(new ResultItem(s.submissionId(), s.title(), avg, rs.size(), insufficient));
-            }
+            if (stats.count(s.submissionId()) < required) insufficientStories.add(s.submissionId());
+            if (!disqualifiedReviewers.contains(s.clientId())) candidates.add(s);
         }
 
-        items.sort(Comparator.comparing(ResultItem::avgScore).reversed());
         long generated = Instant.now().toEpochMilli();
         var disqSorted = disqualifiedReviewers.stream().sorted().toList();
         Protocol protocol = new Protocol(
                 submissions.size(),
                 assignments.size(),
                 required,
-                reviews.size(),
+                stats.total(),
                 insufficientStories.stream().sorted().toList(),
                 disqSorted
         );
-        Results results = new Results(items, generated, disqSorted, protocol);
-        writeResultsJson(results);
-        writeProtocol(results);
-        return results;
+        ScoreStats.Metric metric = rankingMetric();
+        snapshot = new ResultsSnapshot(stamp, metric, ranking(metric, candidates, stats, generated), disqSorted,
+                protocol, candidates, new EnumMap<>(ScoreStats.Metric.class));
+        return snapshot;
+    }
 
+    // O(S): значения метрики берутся из сводки оценок, сами оценки не перечитываются
+    private static Ranking ranking(ScoreStats.Metric metric, List<Submission> candidates, ScoreStats stats, long generated) {
+        int required = ConfigService.requiredReviewsPerClient();
+        ScoreStats.Scorer scorer = stats.scorer(metric, required);
+        List<ResultItem> items = new ArrayList<>(candidates.size());
+        for (Submission s : candidates) {
+            int n = stats.count(s.submissionId());
+            items.add(new ResultItem(s.submissionId(), s.title(), stats.mean(s.submissionId()),
+                    scorer.score(s.submissionId()), n, n < required));
+        }
+        return new Ranking(items, generated);
+    }
+
+    /** Метрика рейтинга из CONTEST_RANKING_METRIC; не задана или неизвестна — среднее. */
+    public static ScoreStats.Metric rankingMetric() {
+        ScoreStats.Metric m = ScoreStats.Metric.parse(ConfigService.rankingMetric());
+        return m == null ? ScoreStats.Metric.MEAN : m;
+    }
+
+    // Отпечаток реестра: время изменения и размер файлов, от которых зависят результаты
+    private String registryStamp() throws IOException {
+        return fileStamp(submissionsCsv) + "|" + fileStamp(reviewsIndexCsv) + "|" + fileStamp(reviewsLogCsv)
+                + "|" + fileStamp(assignmentsCsv);
+    }
 
+    private static String fileStamp(Path p) throws IOException {
+        if (Files.notExists(p)) return "-";
+        var attrs = Files.readAttributes(p, BasicFileAttributes.class);
+        return attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS) + ":" + attrs.size();
     }
 
+
+    /**
+     * Опубликованные результаты в JSON — results/final.json: кодируется один раз на снимок, дальше
+     * отдаётся с диска (в памяти не держится — при 100k историй это мегабайты).
+     */
+    public synchronized Path resultsJsonFile() throws IOException {
+        generateResults();
+        return resultsJson;
+    }
+
+    // пишется потоком во временный файл и заменяет прежний атомарно: его могут отдавать, пока публикуются новые
     private void writeResultsJson(Results r) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\n  \"generatedAt\": ").append(r.generatedAtUtc()).append(",\n  \"disqualified\": [");
-        for (int i = 0; i < r.disqualified().size(); i++) {
-            if (i > 0) sb.append(',');
-            sb.append('\"').append(escape(r.disqualified().get(i))).append('\"');
-        }
-        sb.append("],\n  \"protocol\": {\n    \"totalSubmissions\": ").append(r.protocol().totalSubmissions()).append(',');
-        sb.append("\n    \"totalReviewers\": ").append(r.protocol().totalReviewers()).append(',');
-        sb.append("\n    \"requiredReviews\": ").append(r.protocol().requiredReviews()).append(',');
-        sb.append("\n    \"submittedReviews\": ").append(r.protocol().submittedReviews()).append(',');
-        sb.append("\n    \"insufficientStories\": [");
-        for (int i = 0; i < r.protocol().insufficientStories().size(); i++) {
-            if (i > 0) sb.append(',');
-            sb.append('\"').append(escape(r.protocol().insufficientStories().get(i))).append('\"');
-        }
-        sb.append("],\n    \"disqualifiedAuthors\": [");
-        for (int i = 0; i < r.protocol().disqualifiedAuthors().size(); i++) {
-            if (i > 0) sb.append(',');
-            sb.append('\"').append(escape(r.protocol().disqualifiedAuthors().get(i))).append('\"');
-        }
-        sb.append("]\n  },\n  \"items\": [\n");
-        for (int i = 0; i < r.items().size(); i++) {
-            ResultItem it = r.items().get(i);
-            if (i > 0) sb.append(",\n");
-            sb.append("    {\"storyId\":\"").append(escape(it.storyId())).append("\",")
-                    .append("\"title\":\"").append(escape(it.title())).append("\",")
-                    .append("\"avg\":").append(String.format(Locale.US, "%.2f", it.avgScore())).append(',')
-                    .append("\"count\":").append(it.reviewsCount()).append(',')
-                    .append("\"insufficientReviews\":").append(it.insufficientReviews()).append('}');
+        Path tmp = Storage.newTempFile(".json");
+        try {
+            writeResultsJson(r, tmp);
+            Storage.moveAtomically(tmp, resultsJson);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static void writeResultsJson(Results r, Path file) throws IOException {
+        try (var w = new JsonWriter(Files.newOutputStream(file))) {
+            writeJson(r, w);
         }
-        sb.append("\n  ]\n}\n");
-        Files.writeString(resultsJson, sb.toString(), StandardCharsets.UTF_8);
     }
 
-    private void writeProtocol(Results r) throws IOException {
-        Path protocolFile = resultsJson.getParent().resolve("protocol.txt");
+    /** Единый формат результатов: и для results/final.json, и для ответа GET /results. */
+    public static void writeJson(Results r, JsonWriter w) throws IOException {
+        w.beginObject()
+                .name("generatedAt").value(r.generatedAtUtc())
+                .name("metric").value(r.metric())
+                .name("disqualified").stringArray(r.disqualified())
+                .name("protocol").beginObject()
+                .name("totalSubmissions").value(r.protocol().totalSubmissions())
+                .name("totalReviewers").value(r.protocol().totalReviewers())
+                .name("requiredReviews").value(r.protocol().requiredReviews())
+                .name("submittedReviews").value(r.protocol().submittedReviews())
+                .name("insufficientStories").stringArray(r.protocol().insufficientStories())
+                .name("disqualifiedAuthors").stringArray(r.protocol().disqualifiedAuthors())
+                .endObject();
+        w.name("items").beginArray();
+        for (ResultItem it : r.items()) {
+            writeJson(it, w);
+        }
+        w.endArray().endObject();
+    }
+
+    public static void writeJson(ResultItem it, JsonWriter w) throws IOException {
+        writeJson(it, 0, w);
+    }
+
+    /** rank &gt; 0 добавляет поле "rank" (место в рейтинге, с 1). */
+    public static void writeJson(ResultItem it, int rank, JsonWriter w) throws IOException {
+        w.beginObject();
+        if (rank > 0) w.name("rank").value(rank);
+        w.name("storyId").value(it.storyId())
+                .name("title").value(it.title())
+                .name("avg").value(it.avgScore(), 2)
+                .name("score").value(it.score(), 2)
+                .name("count").value(it.reviewsCount())
+                .name("insufficientReviews").value(it.insufficientReviews())
+                .endObject();
+    }
+
+    private void writeProtocol(Results r, Path protocolFile) throws IOException {
         StringBuilder sb = new StringBuilder();
 
         Protocol protocol = r.protocol();
@@ -501,9 +1419,25 @@ public class ContestService {
         sb.append("Total reviewers: ").append(protocol.totalReviewers()).append('\n');
         sb.append("Required reviews per reviewer: ").append(protocol.requiredReviews()).append('\n');
         sb.append("Submitted reviews: ").append(protocol.submittedReviews()).append('\n');
+        sb.append("Ranking metric: ").append(r.metric()).append('\n');
         sb.append("Stories with insufficient reviews: ").append(protocol.insufficientStories()).append('\n');
         sb.append("Disqualified authors: ").append(protocol.disqualifiedAuthors()).append('\n');
 
+        // Подозрение на дубликаты — только как пометка для жюри, на рейтинг не влияет
+        if (ConfigService.protocolDuplicates()) {
+            List<DuplicateCluster> clusters = duplicateClusters();
+            sb.append("\nSuspected duplicates: ").append(clusters.isEmpty() ? "none" : clusters.size()).append('\n');
+            for (int i = 0; i < clusters.size(); i++) {
+                DuplicateCluster c = clusters.get(i);
+                sb.append(i + 1).append(". similarity up to ")
+                        .append(String.format(Locale.US, "%.0f%%", c.maxSimilarity() * 100)).append(':');
+                for (Submission s : c.stories()) {
+                    sb.append(" [storyId=").append(s.submissionId()).append(", author=").append(s.clientId()).append(']');
+                }
+                sb.append('\n');
+            }
+        }
+
         // Призёры (топ-3)
         sb.append("\nPrize winners (top 3):\n");
         for (int i = 0; i < Math.min(3, r.items().size()); i++) {
@@ -513,6 +1447,7 @@ public class ContestService {
                     .append(it.title())
                     .append(" [storyId=").append(it.storyId()).append("]")
                     .append(", avg=").append(String.format(Locale.US, "%.2f", it.avgScore()))
+                    .append(", score=").append(String.format(Locale.US, "%.2f", it.score()))
                     .append(", reviews=").append(it.reviewsCount());
             if (it.insufficientReviews()) sb.append(" (INSUFFICIENT REVIEWS)");
             sb.append('\n');
@@ -527,6 +1462,7 @@ public class ContestService {
                     .append(it.title())
                     .append(" [storyId=").append(it.storyId()).append("]")
                     .append(", avg=").append(String.format(Locale.US, "%.2f", it.avgScore()))
+                    .append(", score=").append(String.format(Locale.US, "%.2f", it.score()))
                     .append(", reviews=").append(it.reviewsCount());
             if (it.insufficientReviews()) sb.append(" (INSUFFICIENT REVIEWS)");
             sb.append('\n');
@@ -546,9 +1482,24 @@ public class ContestService {
         }
     }
 
+    /** Текст загруженного файла: DOCX разбирается, всё остальное читается как UTF-8. */
+    public static String extractText(String ext, Path file) throws IOException {
+        return ext.toLowerCase().contains("doc") ? DocxUtil.extractPlainText(file) : readUtf8(file);
+    }
+
+    // как new String(bytes, UTF_8): битые последовательности заменяются, а не роняют разбор
+    private static String readUtf8(Path file) throws IOException {
+        try (var reader = new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8)) {
+            StringBuilder sb = new StringBuilder((int) Math.min(Files.size(file), Integer.MAX_VALUE - 8));
+            char[] buf = new char[8192];
+            int n;
+            while ((n = reader.read(buf)) > 0) sb.append(buf, 0, n);
+            return sb.toString();
+        }
+    }
+
     private static String safe(String s) { return s == null ? "" : s.replaceAll("[^a-zA-Z0-9._-]", "_"); }
     private static String sanitize(String s) { return s == null ? "" : s.replace("|", " ").replace("\n", " "); }
-    private static String escape(String s) { return s.replace("\\", "\\\\").replace("\"", "\\\""); }
     private static long parseLong(String s) { try { return Long.parseLong(s); } catch (Exception e) { return 0L; } }
     private static String stripExtension(String name) {
         int dot = name.lastIndexOf('.');
@@ -0,0 +1,158 @@
+package server.logic;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Поиск почти одинаковых текстов (дубликаты, плагиат) без сравнения каждой пары историй.
+ *
+ * Для текста считается MinHash-подпись из {@value #HASHES} значений по шинглам — последовательностям
+ * из {@value #SHINGLE} слов (токенизация та же, что у поиска). Подпись режется на {@value #BANDS} полос
+ * по {@value #ROWS} значения (LSH): истории, совпавшие хотя бы в одной полосе, — кандидаты, и только для
+ * них оценивается сходство (доля совпавших значений подписи ≈ коэффициент Жаккара по шинглам).
+ * Пары со сходством не ниже {@link #THRESHOLD} считаются подозрительными.
+ */
+public final class DuplicateDetector {
+    static final int HASHES = 128;
+    static final int BANDS = 32;
+    static final int ROWS = HASHES / BANDS;
+    static final int SHINGLE = 5;
+    public static final double THRESHOLD = 0.5;
+
+    private static final long[] SEEDS = new long[HASHES];
+    static {
+        long x = 0x2545F4914F6CDD1DL;
+        for (int i = 0; i < HASHES; i++) SEEDS[i] = x = mix64(x + 0x9E3779B97F4A7C15L);
+    }
+
+    public record Pair(String a, String b, double similarity) {}
+
+    private final List<String> ids = new ArrayList<>();
+    private final List<int[]> signatures = new ArrayList<>();
+    private final List<Map<Long, int[]>> bands = new ArrayList<>(BANDS);
+    private final List<Pair> pairs = new ArrayList<>();
+
+    public DuplicateDetector() {
+        for (int b = 0; b < BANDS; b++) bands.add(new HashMap<>());
+    }
+
+    /** MinHash-подпись текста или null, если в нём нет ни одного слова. */
+    public static int[] signature(String text) {
+        String s = text == null ? "" : Normalizer.normalize(text, Normalizer.Form.NFC);
+        List<String> words = SearchIndex.tokens(s);
+        if (words.isEmpty()) return null;
+
+        long[] wordHashes = new long[words.size()];
+        for (int i = 0; i < wordHashes.length; i++) wordHashes[i] = mix64(words.get(i).hashCode());
+
+        int[] sig = new int[HASHES];
+        Arrays.fill(sig, Integer.MAX_VALUE);
+        int shingles = Math.max(1, wordHashes.length - SHINGLE + 1);
+        for (int start = 0; start < shingles; start++) {
+            long h = 0;
+            for (int k = start; k < Math.min(start + SHINGLE, wordHashes.length); k++) {
+                h = h * 0x100000001B3L + wordHashes[k];
+            }
+            for (int i = 0; i < HASHES; i++) {
+                int v = (int) (mix64(h ^ SEEDS[i]) >>> 33); // неотрицательное
+                if (v < sig[i]) sig[i] = v;
+            }
+        }
+        return sig;
+    }
+
+    /** Добавляет историю; возвращает найденные для неё подозрительные пары. */
+    public List<Pair> add(String storyId, int[] signature) {
+        int doc = ids.size();
+        ids.add(storyId);
+        signatures.add(signature);
+        if (signature == null) return List.of();
+
+        Set<Integer> candidates = new LinkedHashSet<>();
+        for (int b = 0; b < BANDS; b++) {
+            long key = bandKey(signature, b);
+            int[] bucket = bands.get(b).get(key);
+            if (bucket != null) {
+                for (int i = 1; i <= bucket[0]; i++) candidates.add(bucket[i]);
+            }
+            bands.get(b).put(key, append(bucket, doc));
+        }
+
+        List<Pair> found = new ArrayList<>();
+        for (int other : candidates) {
+            double sim = similarity(signature, signatures.get(other));
+            if (sim >= THRESHOLD) found.add(new Pair(ids.get(other), storyId, sim));
+        }
+        pairs.addAll(found);
+        return found;
+    }
+
+    public List<Pair> pairs() {
+        return List.copyOf(pairs);
+    }
+
+    /** Группы связанных пар (по транзитивности), крупные и более похожие — первыми. */
+    public List<List<Pair>> clusters() {
+        Map<String, String> parent = new HashMap<>();
+        for (Pair p : pairs) union(parent, p.a(), p.b());
+        Map<String, List<Pair>> groups = new TreeMap<>();
+        for (Pair p : pairs) groups.computeIfAbsent(find(parent, p.a()), k -> new ArrayList<>()).add(p);
+        List<List<Pair>> res = new ArrayList<>(groups.values());
+        res.sort(Comparator.<List<Pair>>comparingInt(List::size).reversed()
+                .thenComparing(g -> -g.stream().mapToDouble(Pair::similarity).max().orElse(0)));
+        return res;
+    }
+
+    static double similarity(int[] a, int[] b) {
+        if (a == null || b == null) return 0;
+        int same = 0;
+        for (int i = 0; i < HASHES; i++) if (a[i] == b[i]) same++;
+        return (double) same / HASHES;
+    }
+
+    /* ===================== internals ===================== */
+
+    private static long bandKey(int[] sig, int band) {
+        long h = band;
+        for (int r = band * ROWS; r < (band + 1) * ROWS; r++) h = mix64(h ^ sig[r]);
+        return h;
+    }
+
+    // bucket[0] — число элементов
+    private static int[] append(int[] bucket, int doc) {
+        if (bucket == null) return new int[]{1, doc, 0};
+        int n = bucket[0] + 1;
+        if (n == bucket.length) bucket = Arrays.copyOf(bucket, bucket.length * 2);
+        bucket[n] = doc;
+        bucket[0] = n;
+        return bucket;
+    }
+
+    private static String find(Map<String, String> parent, String x) {
+        String p = parent.getOrDefault(x, x);
+        if (p.equals(x)) return x;
+        String root = find(parent, p);
+        parent.put(x, root);
+        return root;
+    }
+
+    private static void union(Map<String, String> parent, String a, String b) {
+        String ra = find(parent, a), rb = find(parent, b);
+        if (!ra.equals(rb)) parent.put(ra.compareTo(rb) < 0 ? rb : ra, ra.compareTo(rb) < 0 ? ra : rb);
+    }
+
+    // SplitMix64
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
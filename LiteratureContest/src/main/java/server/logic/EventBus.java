@@ -0,0 +1,136 @@
+package server.logic;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Шина событий конкурса внутри процесса: {@link ContestService} публикует (смена фазы, новые назначения
+ * клиента, публикация результатов), подписчики — соединения GET /events — получают.
+ *
+ * Подписчик не занимает поток: доставка и периодический heartbeat идут в одном потоке-диспетчере,
+ * поэтому тысячи простаивающих соединений стоят по одному сокету. Диспетчер в сеть не пишет —
+ * подписчик только ставит событие в свою очередь (см. {@link Subscriber}), так что один медленный клиент
+ * не останавливает доставку, heartbeat и таймауты остальных. Публикация тоже только ставит событие
+ * в очередь диспетчера — её можно вызывать под блокировкой сервиса.
+ *
+ * На той же шине ждут и long-poll запросы (?waitVersion= у /assignments и /results).
+ *
+ * Последние {@value #HISTORY} событий хранятся, чтобы переподключившийся клиент получил пропущенное
+ * по Last-Event-ID.
+ */
+public final class EventBus {
+    public static final int MAX_SUBSCRIBERS = 10_000;
+    static final int HISTORY = 256;
+    static final long HEARTBEAT_SECONDS = 25;
+
+    /** Событие; clientId == null — для всех, data — готовый JSON. */
+    public record Event(long id, String type, String clientId, String data) {}
+
+    /** Методы вызываются потоком-диспетчером и не должны блокироваться на сети. */
+    public interface Subscriber {
+        /** false — соединение потеряно, подписка снимается. */
+        boolean send(Event e);
+
+        /** Пустое сообщение, чтобы прокси не закрывали соединение и чтобы заметить отвалившихся клиентов. */
+        boolean heartbeat();
+    }
+
+    /** Подписка, выданная {@link #subscribe}; по ней подписчик снимается без обхода остальных. */
+    public static final class Subscription {
+        private final String clientId;
+        private final Subscriber subscriber;
+
+        private Subscription(String clientId, Subscriber subscriber) {
+            this.clientId = clientId;
+            this.subscriber = subscriber;
+        }
+    }
+
+    private final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+    private final ArrayDeque<Event> history = new ArrayDeque<>();
+    private long lastId = System.currentTimeMillis(); // id растут и между перезапусками сервера
+    private ScheduledExecutorService dispatcher;
+
+    public synchronized Event publish(String type, String clientId, String data) {
+        Event e = new Event(++lastId, type, clientId, data);
+        history.addLast(e);
+        if (history.size() > HISTORY) history.removeFirst();
+        if (!subscriptions.isEmpty()) dispatcher().execute(() -> deliver(e));
+        return e;
+    }
+
+    /**
+     * Подписывает клиента (clientId == null — только общие события). События новее lastEventId,
+     * ещё оставшиеся в истории, досылаются сразу. null — достигнут предел подписчиков.
+     */
+    public synchronized Subscription subscribe(String clientId, Subscriber subscriber, long lastEventId) {
+        if (subscriptions.size() >= MAX_SUBSCRIBERS) return null;
+        Subscription sub = new Subscription(clientId, subscriber);
+        List<Event> missed = new ArrayList<>();
+        if (lastEventId > 0) {
+            for (Event e : history) if (e.id() > lastEventId && visible(e, clientId)) missed.add(e);
+        }
+        subscriptions.add(sub);
+        ScheduledExecutorService d = dispatcher();
+        // через тот же диспетчер: досылка успевает раньше событий, опубликованных после подписки
+        if (!missed.isEmpty()) {
+            d.execute(() -> {
+                for (Event e : missed) {
+                    if (!subscriber.send(e)) { subscriptions.remove(sub); return; }
+                }
+            });
+        }
+        return sub;
+    }
+
+    public void unsubscribe(Subscription sub) {
+        subscriptions.remove(sub);
+    }
+
+    /** Отложенная задача в потоке диспетчера (таймауты ожидания); задача должна быть короткой. */
+    public synchronized ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+        return dispatcher().schedule(task, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    public int subscribers() {
+        return subscriptions.size();
+    }
+
+    /* ===================== internals ===================== */
+
+    private void deliver(Event e) {
+        for (Subscription s : subscriptions) {
+            if (visible(e, s.clientId) && !s.subscriber.send(e)) subscriptions.remove(s);
+        }
+    }
+
+    private void heartbeat() {
+        for (Subscription s : subscriptions) {
+            if (!s.subscriber.heartbeat()) subscriptions.remove(s);
+        }
+    }
+
+    private static boolean visible(Event e, String clientId) {
+        return e.clientId() == null || e.clientId().equals(clientId);
+    }
+
+    // поток создаётся при первой подписке: экземпляры сервиса без подписчиков потоков не держат
+    private ScheduledExecutorService dispatcher() {
+        if (dispatcher == null) {
+            dispatcher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "contest-events");
+                t.setDaemon(true);
+                return t;
+            });
+            dispatcher.scheduleAtFixedRate(this::heartbeat, HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+        }
+        return dispatcher;
+    }
+}
@@ -0,0 +1,141 @@
+package server.logic;
+
+import server.storage.Storage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Результаты запросов с заголовком Idempotency-Key: повтор с тем же ключом получает сохранённый ответ,
+ * а не создаёт вторую историю. Записи живут {@link #TTL}, их не больше {@value #MAX_ENTRIES}
+ * (вытесняются самые старые).
+ *
+ * Хранится рядом с реестром (registry/idempotency.log) журналом дописывания: строка на завершённый
+ * запрос; файл переписывается только живыми записями, когда мусора в нём становится больше, чем их.
+ */
+public final class IdempotencyStore {
+    public static final Duration TTL = Duration.ofHours(24);
+    static final int MAX_ENTRIES = 10_000;
+
+    public enum State { STARTED, IN_PROGRESS, DONE }
+
+    /** fingerprint — хеш исходного запроса, response — ответ целиком (строка статуса, заголовки, тело). */
+    public record Entry(String fingerprint, byte[] response, long expiresAt) {}
+
+    /** STARTED — ключ занят этим вызовом; DONE — entry содержит сохранённый ответ. */
+    public record Claim(State state, Entry entry) {}
+
+    private final Path file;
+    private final LinkedHashMap<String, Entry> done = new LinkedHashMap<>(); // порядок вставки = порядок истечения
+    private final Set<String> inProgress = new HashSet<>();
+    private int logLines;
+
+    public IdempotencyStore() throws IOException {
+        this(Storage.ROOT.resolve("registry/idempotency.log"));
+    }
+
+    public IdempotencyStore(Path file) throws IOException {
+        this.file = file.toAbsolutePath();
+        Files.createDirectories(this.file.getParent());
+        load();
+    }
+
+    /** Занимает ключ или возвращает сохранённый результат. scope — клиент, метод и путь запроса. */
+    public synchronized Claim begin(String scope, String key) {
+        prune(System.currentTimeMillis());
+        String id = id(scope, key);
+        Entry e = done.get(id);
+        if (e != null) return new Claim(State.DONE, e);
+        if (!inProgress.add(id)) return new Claim(State.IN_PROGRESS, null);
+        return new Claim(State.STARTED, null);
+    }
+
+    public synchronized void complete(String scope, String key, String fingerprint, byte[] response) {
+        String id = id(scope, key);
+        inProgress.remove(id);
+        Entry e = new Entry(fingerprint, response, System.currentTimeMillis() + TTL.toMillis());
+        done.remove(id);
+        done.put(id, e);
+        evict();
+        try {
+            Files.writeString(file, line(id, e) + "\n", StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            if (++logLines > 2 * done.size() + 1000) compact();
+        } catch (IOException ex) {
+            // в памяти результат есть; на диске потеряется только при перезапуске
+            System.err.println("cannot persist idempotency key: " + ex);
+        }
+    }
+
+    /** Результат не сохраняется (ошибка сервера, слишком большой ответ) — повтор выполнится заново. */
+    public synchronized void abandon(String scope, String key) {
+        inProgress.remove(id(scope, key));
+    }
+
+    /* ===================== internals ===================== */
+
+    private void prune(long now) {
+        Iterator<Entry> it = done.values().iterator();
+        while (it.hasNext() && it.next().expiresAt() <= now) it.remove();
+    }
+
+    private void evict() {
+        Iterator<String> it = done.keySet().iterator();
+        while (done.size() > MAX_ENTRIES) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private void load() throws IOException {
+        if (!Files.exists(file)) return;
+        long now = System.currentTimeMillis();
+        for (String l : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            logLines++;
+            String[] p = l.split("\\|", -1);
+            if (p.length != 4) continue; // недописанная при сбое строка
+            try {
+                long expiresAt = Long.parseLong(p[0]);
+                if (expiresAt <= now) continue;
+                String id = new String(Base64.getDecoder().decode(p[1]), StandardCharsets.UTF_8);
+                done.remove(id);
+                done.put(id, new Entry(p[2], Base64.getDecoder().decode(p[3]), expiresAt));
+            } catch (IllegalArgumentException ignore) {
+                // битая строка
+            }
+        }
+        evict();
+    }
+
+    private void compact() throws IOException {
+        prune(System.currentTimeMillis());
+        List<String> lines = new ArrayList<>(done.size());
+        for (Map.Entry<String, Entry> e : done.entrySet()) lines.add(line(e.getKey(), e.getValue()));
+        Path tmp = Storage.newTempFile(".log");
+        Files.write(tmp, lines, StandardCharsets.UTF_8);
+        Storage.moveAtomically(tmp, file);
+        logLines = lines.size();
+    }
+
+    private static String line(String id, Entry e) {
+        Base64.Encoder b64 = Base64.getEncoder();
+        return e.expiresAt() + "|" + b64.encodeToString(id.getBytes(StandardCharsets.UTF_8))
+                + "|" + e.fingerprint() + "|" + b64.encodeToString(e.response());
+    }
+
+    private static String id(String scope, String key) {
+        return scope + "\n" + key;
+    }
+}
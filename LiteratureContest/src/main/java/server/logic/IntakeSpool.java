@@ -0,0 +1,308 @@
+package server.logic;
+
+import server.format.BoundedText;
+import server.storage.Storage;
+import server.time.ConfigService;
+import server.util.JsonReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Очередь приёма рассказов на пике перед дедлайном (режим CONTEST_SPOOL_INTAKE).
+ *
+ * Обработчик только дописывает сырое тело запроса в storage/spool и сразу отвечает 202 с номером билета;
+ * разбор, проверка длины, нормализация DOCX и запись в реестр идут в фоновом потоке пачками
+ * (одна запись реестра и один пересчёт назначений на пачку, см. {@link ContestService#registerUploads}).
+ * Время приёма рассказа — время постановки в очередь, так что нагрузка на сервер не отнимает у автора дедлайн.
+ *
+ * Файлы билета: &lt;id&gt;.body — сырое тело, &lt;id&gt;.ticket — метаданные (появляется последним,
+ * после fsync тела; его наличие и означает «принято в очередь»), &lt;id&gt;.done — итог обработки.
+ * Тело удаляется только после записи .done. Необработанные после перезапуска билеты подхватываются
+ * {@link #resume()}; id истории — номер билета, поэтому билет, записанный в реестр до сбоя, повторно
+ * не регистрируется.
+ */
+public final class IntakeSpool {
+    /** Тело /submit (JSON) или PUT /submission (txt/docx). */
+    public enum Kind { JSON, FILE }
+
+    public record Ticket(String id, Kind kind, String clientId, String title, String ext, long spooledAt) {}
+
+    /** state: queued | accepted | rejected. */
+    public record Status(String ticket, String clientId, String state, long spooledAt, String submissionId, String error) {}
+
+    /** "title" и "text" из JSON-тела /submit. */
+    public record SubmitJson(String title, String text, int chars) {}
+
+    public static class TooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public TooLargeException(long maxBytes) { super("request body exceeds " + maxBytes + " bytes"); }
+    }
+
+    public static final long MAX_BODY_BYTES = 16L * 1024 * 1024;
+
+    private final ContestService contest;
+    private final Path dir = Storage.ROOT.resolve("spool");
+    private final BatchQueue<Ticket> queue = new BatchQueue<>("intake-spool", this::processBatch);
+
+    IntakeSpool(ContestService contest) {
+        this.contest = contest;
+    }
+
+    /**
+     * Надёжно сохраняет тело запроса (fsync) и ставит билет в очередь. Тело длиннее
+     * {@link #MAX_BODY_BYTES} не принимается ({@link TooLargeException}).
+     */
+    public Ticket enqueue(Kind kind, String clientId, String title, String ext, InputStream body) throws IOException {
+        long spooledAt = System.currentTimeMillis();
+        Files.createDirectories(dir);
+        String id = UUID.randomUUID().toString();
+        Path bodyFile = dir.resolve(id + ".body");
+        try {
+            try (FileChannel ch = FileChannel.open(bodyFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                 OutputStream out = Channels.newOutputStream(ch)) {
+                byte[] buf = new byte[64 * 1024];
+                long total = 0;
+                int n;
+                while ((n = body.read(buf)) > 0) {
+                    total += n;
+                    if (total > MAX_BODY_BYTES) throw new TooLargeException(MAX_BODY_BYTES);
+                    out.write(buf, 0, n);
+                }
+                ch.force(true);
+            }
+            Ticket t = new Ticket(id, kind, clientId, title == null ? "" : title, ext == null ? "" : ext, spooledAt);
+            Properties meta = new Properties();
+            meta.setProperty("kind", kind.name());
+            meta.setProperty("clientId", clientId);
+            meta.setProperty("title", t.title());
+            meta.setProperty("ext", t.ext());
+            meta.setProperty("spooledAt", Long.toString(spooledAt));
+            writeDurably(dir.resolve(id + ".ticket"), meta);
+            queue.add(t);
+            return t;
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(bodyFile);
+            throw e;
+        }
+    }
+
+    /** Состояние билета или null, если такого нет. */
+    public Status status(String ticket) throws IOException {
+        if (!ticket.matches("[0-9a-f-]{36}")) return null;
+        Properties meta = read(dir.resolve(ticket + ".ticket"));
+        if (meta == null) return null;
+        long spooledAt = Long.parseLong(meta.getProperty("spooledAt", "0"));
+        String clientId = meta.getProperty("clientId", "");
+        Properties done = read(dir.resolve(ticket + ".done"));
+        if (done == null) return new Status(ticket, clientId, "queued", spooledAt, null, null);
+        return new Status(ticket, clientId, done.getProperty("state"), spooledAt,
+                done.getProperty("submissionId"), done.getProperty("error"));
+    }
+
+    /** Возвращает в очередь билеты, не обработанные до перезапуска; недописанные тела удаляет. */
+    public synchronized void resume() throws IOException {
+        if (Files.notExists(dir)) return;
+        List<Ticket> pending = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path f : (Iterable<Path>) files::iterator) {
+                String name = f.getFileName().toString();
+                if (name.endsWith(".body")) {
+                    String id = name.substring(0, name.length() - 5);
+                    // недописанное тело или уже обработанный билет (сбой между .done и удалением тела)
+                    if (Files.notExists(dir.resolve(id + ".ticket")) || Files.exists(dir.resolve(id + ".done"))) {
+                        Files.deleteIfExists(f);
+                    }
+                } else if (name.endsWith(".ticket")) {
+                    String id = name.substring(0, name.length() - 7);
+                    if (Files.exists(dir.resolve(id + ".done"))) continue;
+                    Properties m = read(f);
+                    pending.add(new Ticket(id, Kind.valueOf(m.getProperty("kind")), m.getProperty("clientId"),
+                            m.getProperty("title", ""), m.getProperty("ext", ""),
+                            Long.parseLong(m.getProperty("spooledAt", "0"))));
+                }
+            }
+        }
+        pending.sort(Comparator.comparingLong(Ticket::spooledAt));
+        queue.addAll(pending);
+    }
+
+    /**
+     * Разбор JSON-тела /submit потоком: "title" и "text", остальное пропускается.
+     * Длина "text" считается по ходу декодирования; на maxChars разбор прерывается.
+     */
+    public static SubmitJson parseSubmitJson(InputStream in, int maxChars) throws IOException {
+        String title = null, text = null;
+        int chars = 0;
+        JsonReader json = new JsonReader(in);
+        if (json.next() != JsonReader.Token.BEGIN_OBJECT) {
+            throw new JsonReader.MalformedJsonException("JSON root is not object");
+        }
+        while (json.next() == JsonReader.Token.NAME) {
+            if (json.nameEquals("title")) title = json.nextString();
+            else if (json.nameEquals("text")) {
+                JsonReader.Token t = json.next();
+                if (t == JsonReader.Token.NULL) continue;
+                if (t != JsonReader.Token.STRING) throw new JsonReader.MalformedJsonException("text must be a string");
+                BoundedText bounded = BoundedText.decodeUtf8(json.stringStream(), maxChars);
+                text = bounded.text();
+                chars = bounded.codePoints();
+            }
+            else json.skipValue();
+        }
+        return new SubmitJson(title, text, chars);
+    }
+
+    /* ===================== фоновая обработка ===================== */
+
+    private void processBatch(List<Ticket> batch) {
+        List<Ticket> ready = new ArrayList<>();
+        List<ContestService.Upload> uploads = new ArrayList<>();
+        for (Ticket t : batch) {
+            try {
+                ContestService.Upload u = prepare(t);
+                if (u != null) {
+                    ready.add(t);
+                    uploads.add(u);
+                }
+            } catch (IOException | RuntimeException e) {
+                finish(t, "rejected", null, "cannot read submission");
+            }
+        }
+        if (uploads.isEmpty()) return;
+        List<ContestService.Submission> saved = BatchQueue.commitEach("intake", uploads, contest::registerUploads);
+        for (int i = 0; i < ready.size(); i++) {
+            ContestService.Submission s = saved.get(i);
+            if (s != null) finish(ready.get(i), "accepted", s.submissionId(), null);
+            else finish(ready.get(i), "rejected", null, "internal error");
+        }
+        // принятые уже перенесены в submissions, здесь только отклонённые
+        for (ContestService.Upload u : uploads) {
+            try { Files.deleteIfExists(u.file()); } catch (IOException ignore) {}
+        }
+    }
+
+    // текст и файл для регистрации; null — билет отклонён (итог уже записан)
+    private ContestService.Upload prepare(Ticket t) throws IOException {
+        int min = ConfigService.minChars(), max = ConfigService.maxChars();
+        Path body = dir.resolve(t.id() + ".body");
+        String title = t.title(), text;
+        int chars;
+        Path file;
+        try {
+            if (t.kind() == Kind.JSON) {
+                SubmitJson parsed;
+                try (InputStream in = Files.newInputStream(body)) {
+                    parsed = parseSubmitJson(in, max);
+                } catch (JsonReader.MalformedJsonException e) {
+                    finish(t, "rejected", null, "malformed JSON");
+                    return null;
+                }
+                if (parsed.title() == null || parsed.title().isBlank() || parsed.text() == null || parsed.text().isBlank()) {
+                    finish(t, "rejected", null, "title and text are required");
+                    return null;
+                }
+                title = parsed.title();
+                text = parsed.text();
+                chars = parsed.chars();
+                file = Storage.newTempFile(".txt");
+                Files.writeString(file, text, StandardCharsets.UTF_8);
+            } else {
+                BoundedText bounded;
+                try {
+                    bounded = BoundedText.fromFile(t.ext(), body, max);
+                } catch (BoundedText.TooLongException e) {
+                    throw e;
+                } catch (Exception e) {
+                    finish(t, "rejected", null, "cannot read " + t.ext().replace(".", "") + " text");
+                    return null;
+                }
+                text = bounded.text();
+                chars = bounded.codePoints();
+                file = null; // копия тела делается после проверки длины
+            }
+        } catch (BoundedText.TooLongException e) {
+            finish(t, "rejected", null, "length must be between %d and %d, got at least %d".formatted(min, max, e.maxChars()));
+            return null;
+        }
+        if (chars <= min || chars >= max) {
+            if (file != null) Files.deleteIfExists(file);
+            finish(t, "rejected", null, "length must be between %d and %d, got %d".formatted(min, max, chars));
+            return null;
+        }
+        // в submissions переносится копия: тело нужно до записи .done, иначе сбой между ними его потеряет
+        if (file == null) file = linkOrCopy(body, t.ext());
+        if (title == null || title.isBlank()) title = "Untitled";
+        return new ContestService.Upload(t.clientId(), title, t.ext().isEmpty() ? ".txt" : t.ext(), file, text,
+                t.spooledAt(), t.id());
+    }
+
+    // жёсткая ссылка в storage/tmp (та же ФС) вместо копирования 16 МБ; где ссылок нет — копия
+    private static Path linkOrCopy(Path body, String ext) throws IOException {
+        Path file = Storage.newTempFile(ext);
+        Files.delete(file);
+        try {
+            Files.createLink(file, body);
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(body, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return file;
+    }
+
+    // итог билета; тело удаляется только после того, как .done записан
+    private void finish(Ticket t, String state, String submissionId, String error) {
+        Properties done = new Properties();
+        done.setProperty("state", state);
+        if (submissionId != null) done.setProperty("submissionId", submissionId);
+        if (error != null) done.setProperty("error", error);
+        done.setProperty("processedAt", Long.toString(System.currentTimeMillis()));
+        try {
+            writeDurably(dir.resolve(t.id() + ".done"), done);
+            Files.deleteIfExists(dir.resolve(t.id() + ".body"));
+        } catch (IOException e) {
+            System.err.println("cannot record intake result for " + t.id() + ": " + e);
+        }
+    }
+
+    /* ===================== util ===================== */
+
+    // запись во временный файл, fsync и атомарный rename: файл либо целый, либо его нет
+    private static void writeDurably(Path target, Properties props) throws IOException {
+        StringWriter text = new StringWriter();
+        props.store(text, null);
+        Path tmp = Storage.newTempFile(".props");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer b = StandardCharsets.UTF_8.encode(text.toString());
+            while (b.hasRemaining()) ch.write(b);
+            ch.force(true);
+        }
+        Storage.moveAtomically(tmp, target);
+    }
+
+    private static Properties read(Path file) throws IOException {
+        if (Files.notExists(file)) return null;
+        Properties p = new Properties();
+        try (Reader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            p.load(r);
+        }
+        return p;
+    }
+}
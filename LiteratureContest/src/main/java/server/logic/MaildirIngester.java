@@ -0,0 +1,252 @@
+package server.logic;
+
+import server.MailReader;
+import server.MultipartReader;
+import server.storage.Storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Приём рассказов по почте из локального Maildir (CONTEST_MAILDIR): почтовый сервер доставляет письма
+ * в new/, отсюда они попадают в {@link ContestService#ingestMails}. Автор — адрес из From.
+ *
+ * Конвейер: сканер забирает письмо атомарным переносом new/ → cur/ (суффикс ":2,"), пул разборщиков
+ * потоково разбирает MIME ({@link MailReader}) и пишет вложения во временные файлы, поток записи отдаёт
+ * готовые письма в реестр пачками ({@link BatchQueue}, одна запись реестра на пачку). Писем в работе
+ * не больше {@value #IN_FLIGHT}: сканер ждёт, пока запись не догонит, поэтому тысячи писем в new/
+ * не поднимаются в память и во временные файлы разом.
+ *
+ * Итог пишется в registry/maildir.log, письмо помечается флагом S (принято к рассмотрению, в том числе
+ * с отказом по теме или сроку) или F (не разобрано или не записано). Письма в cur/ без флагов —
+ * взятые, но не дообработанные до перезапуска — разбираются заново: id историй выводятся из имени
+ * письма и пишутся в реестр той же записью, поэтому уже принятые вложения второй раз не добавляются.
+ */
+public final class MaildirIngester {
+    static final int IN_FLIGHT = 4 * BatchQueue.BATCH;
+    static final int MAX_ATTACHMENTS = 100;
+    static final long MAX_MESSAGE_BYTES = 64L * 1024 * 1024;
+    static final long POLL_MS = 2_000;
+
+    private record Parsed(Path message, ContestService.Mail mail, String error) {}
+
+    private final ContestService contest;
+    private final Path fresh;
+    private final Path cur;
+    private final Path log = Storage.ROOT.resolve("registry/maildir.log");
+    private final ExecutorService parsers;
+    private final Semaphore inFlight = new Semaphore(IN_FLIGHT);
+    private final BatchQueue<Parsed> ready = new BatchQueue<>("maildir-commit", this::commit);
+    private boolean started;
+
+    public MaildirIngester(ContestService contest, Path maildir, int workers) {
+        this.contest = contest;
+        this.fresh = maildir.resolve("new");
+        this.cur = maildir.resolve("cur");
+        AtomicInteger n = new AtomicInteger();
+        this.parsers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "maildir-parse-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public synchronized void start() throws IOException {
+        if (started) return;
+        started = true;
+        Files.createDirectories(fresh);
+        Files.createDirectories(cur);
+        Files.createDirectories(fresh.resolveSibling("tmp"));
+        Thread scanner = new Thread(this::scan, "maildir-scan");
+        scanner.setDaemon(true);
+        scanner.start();
+    }
+
+    /* ===================== сканер ===================== */
+
+    private void scan() {
+        WatchService watch = null;
+        try {
+            watch = FileSystems.getDefault().newWatchService();
+            fresh.register(watch, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | UnsupportedOperationException e) {
+            watch = null; // остаётся опрос раз в POLL_MS
+        }
+        try {
+            resume();
+            while (true) {
+                drainNew();
+                if (watch == null) {
+                    Thread.sleep(POLL_MS);
+                } else {
+                    WatchKey key = watch.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                    if (key != null) {
+                        key.pollEvents();
+                        key.reset();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // взятые до перезапуска, но не помеченные письма
+    private void resume() throws InterruptedException {
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(cur, p -> p.getFileName().toString().endsWith(":2,"))) {
+            for (Path message : dir) submit(message);
+        } catch (IOException e) {
+            System.err.println("maildir resume failed: " + e);
+        }
+    }
+
+    private void drainNew() throws InterruptedException {
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(fresh)) {
+            for (Path message : dir) {
+                String name = message.getFileName().toString();
+                if (name.startsWith(".") || !Files.isRegularFile(message)) continue;
+                inFlight.acquire(); // back-pressure: ждём, пока запись не освободит место
+                int colon = name.indexOf(':');
+                Path claimed = cur.resolve((colon < 0 ? name : name.substring(0, colon)) + ":2,");
+                try {
+                    Files.move(message, claimed, StandardCopyOption.ATOMIC_MOVE);
+                } catch (NoSuchFileException e) {
+                    inFlight.release(); // письмо уже забрал кто-то другой
+                    continue;
+                } catch (IOException e) {
+                    inFlight.release();
+                    System.err.println("cannot claim " + name + ": " + e);
+                    continue;
+                }
+                parsers.execute(() -> parse(claimed));
+            }
+        } catch (IOException e) {
+            System.err.println("maildir scan failed: " + e);
+        }
+    }
+
+    private void submit(Path message) throws InterruptedException {
+        inFlight.acquire();
+        parsers.execute(() -> parse(message));
+    }
+
+    /* ===================== разбор ===================== */
+
+    private void parse(Path message) {
+        List<ContestService.Attachment> attachments = new ArrayList<>();
+        try {
+            if (Files.size(message) > MAX_MESSAGE_BYTES) {
+                ready.add(new Parsed(message, null, "message exceeds " + MAX_MESSAGE_BYTES + " bytes"));
+                return;
+            }
+            // время доставки: rename в cur/ время изменения не трогает
+            Instant receivedAt = Files.getLastModifiedTime(message).toInstant();
+            Map<String, String> headers;
+            try (InputStream in = Files.newInputStream(message)) {
+                headers = MailReader.read(in, (fileName, contentType, body) -> {
+                    if (attachments.size() >= MAX_ATTACHMENTS) {
+                        throw new MultipartReader.MalformedMultipartException("more than " + MAX_ATTACHMENTS + " attachments");
+                    }
+                    Path file = Storage.newTempFile(".part");
+                    attachments.add(new ContestService.Attachment(fileName, contentType, file));
+                    try (OutputStream out = Files.newOutputStream(file)) {
+                        body.transferTo(out);
+                    }
+                });
+            }
+            String from = MailReader.address(headers.get("from"));
+            if (from == null) {
+                deleteAll(attachments);
+                ready.add(new Parsed(message, null, "no sender address"));
+                return;
+            }
+            ready.add(new Parsed(message, new ContestService.Mail(uniqueName(message), from, headers.get("subject"),
+                    receivedAt, attachments), null));
+        } catch (IOException | RuntimeException e) {
+            deleteAll(attachments);
+            ready.add(new Parsed(message, null, "unreadable message: " + e.getMessage()));
+        }
+    }
+
+    /* ===================== запись ===================== */
+
+    private void commit(List<Parsed> batch) {
+        try {
+            record(batch, BatchQueue.commitEach("maildir",
+                    batch.stream().map(Parsed::mail).filter(m -> m != null).toList(), contest::ingestMails));
+        } finally {
+            inFlight.release(batch.size());
+        }
+    }
+
+    private void record(List<Parsed> batch, List<ContestService.MailIngestResult> results) {
+        List<String> lines = new ArrayList<>(batch.size());
+        String now = Instant.now().toString();
+        int next = 0;
+        for (Parsed p : batch) {
+            ContestService.MailIngestResult r = p.mail() == null ? null : results.get(next++);
+            String file = p.message().getFileName().toString();
+            if (r == null) {
+                String error = p.error() != null ? p.error() : "internal error";
+                lines.add(String.join("|", now, file, p.mail() == null ? "" : p.mail().clientId(), "failed", "", error));
+                mark(p.message(), "F");
+            } else {
+                List<String> ids = r.accepted().stream().map(ContestService.Submission::submissionId).toList();
+                lines.add(String.join("|", now, file, p.mail().clientId(), "processed",
+                        String.join(",", ids), String.join("; ", r.errors())));
+                mark(p.message(), "S");
+            }
+            if (p.mail() != null) deleteAll(p.mail().attachments()); // принятые уже перенесены в submissions
+        }
+        try {
+            Files.createDirectories(log.getParent());
+            Files.write(log, lines, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.err.println("cannot write maildir log: " + e);
+        }
+    }
+
+    // уникальная часть имени в Maildir: без ":2,флаги"
+    private static String uniqueName(Path message) {
+        String name = message.getFileName().toString();
+        int colon = name.indexOf(':');
+        return colon < 0 ? name : name.substring(0, colon);
+    }
+
+    private static void mark(Path message, String flag) {
+        try {
+            Files.move(message, message.resolveSibling(message.getFileName() + flag), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("cannot flag " + message.getFileName() + ": " + e);
+        }
+    }
+
+    private static void deleteAll(List<ContestService.Attachment> attachments) {
+        for (var a : attachments) {
+            try { Files.deleteIfExists(a.file()); } catch (IOException ignore) {}
+        }
+    }
+
+}
@@ -0,0 +1,144 @@
+package server.logic;
+
+import server.logic.ContestService.ResultItem;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Снимок рейтинга поверх списка ResultItem в порядке регистрации.
+ * Порядок: по убыванию значения метрики (ResultItem.score), при равенстве — по порядку регистрации (как прежняя стабильная сортировка).
+ *
+ * Полный массив рангов строится лениво и один раз на снимок; до этого top(k) обходится
+ * ограниченной кучей за O(S log k), а после — срезом за O(k).
+ */
+public final class Ranking {
+    private final List<ResultItem> items;
+    private final double[] scores;
+    private final long generatedAtUtc;
+
+    private int[] order;   // order[rank] = индекс в items
+    private int[] rankOf;  // rankOf[индекс] = rank (0-based)
+    private Map<String, Integer> indexById;
+
+    Ranking(List<ResultItem> items, long generatedAtUtc) {
+        this.items = List.copyOf(items);
+        this.generatedAtUtc = generatedAtUtc;
+        this.scores = new double[this.items.size()];
+        for (int i = 0; i < scores.length; i++) scores[i] = this.items.get(i).score();
+    }
+
+    public int size() { return items.size(); }
+
+    public long generatedAtUtc() { return generatedAtUtc; }
+
+    /** Лучшие k историй в порядке рейтинга. */
+    public synchronized List<ResultItem> top(int k) {
+        k = Math.max(0, Math.min(k, items.size()));
+        if (order != null) return page(0, k);
+
+        // min-куча из k лучших: на вершине — худший из отобранных
+        int[] heap = new int[k];
+        int n = 0;
+        for (int i = 0; i < items.size() && k > 0; i++) {
+            if (n < k) {
+                heap[n] = i;
+                siftUp(heap, n++);
+            } else if (better(i, heap[0])) {
+                heap[0] = i;
+                siftDown(heap, n);
+            }
+        }
+        ResultItem[] res = new ResultItem[n];
+        while (n > 0) {
+            res[--n] = items.get(heap[0]);
+            heap[0] = heap[n];
+            siftDown(heap, n);
+        }
+        return Arrays.asList(res);
+    }
+
+    /** Страница рейтинга: [offset, offset+limit). */
+    public synchronized List<ResultItem> page(int offset, int limit) {
+        int[] ord = order();
+        int from = Math.max(0, Math.min(offset, ord.length));
+        int to = (int) Math.min((long) from + Math.max(0, limit), ord.length);
+        List<ResultItem> res = new ArrayList<>(to - from);
+        for (int r = from; r < to; r++) res.add(items.get(ord[r]));
+        return res;
+    }
+
+    /** Место истории в рейтинге (1-based) или -1, если её нет в рейтинге. */
+    public synchronized int rankOf(String storyId) {
+        order();
+        Integer idx = indexById.get(storyId);
+        return idx == null ? -1 : rankOf[idx] + 1;
+    }
+
+    public synchronized ResultItem item(String storyId) {
+        order();
+        Integer idx = indexById.get(storyId);
+        return idx == null ? null : items.get(idx);
+    }
+
+    /** Полный рейтинг как представление поверх массива рангов (без копирования элементов). */
+    public List<ResultItem> ranked() {
+        int[] ord;
+        synchronized (this) { ord = order(); }
+        return new AbstractList<>() {
+            @Override public ResultItem get(int rank) { return items.get(ord[rank]); }
+            @Override public int size() { return ord.length; }
+        };
+    }
+
+    private int[] order() {
+        if (order != null) return order;
+        int n = items.size();
+        Integer[] boxed = new Integer[n];
+        for (int i = 0; i < n; i++) boxed[i] = i;
+        Arrays.sort(boxed, (a, b) -> better(a, b) ? -1 : (better(b, a) ? 1 : 0));
+        int[] ord = new int[n];
+        int[] ranks = new int[n];
+        Map<String, Integer> byId = new HashMap<>(n * 2);
+        for (int r = 0; r < n; r++) {
+            ord[r] = boxed[r];
+            ranks[ord[r]] = r;
+        }
+        for (int i = 0; i < n; i++) byId.putIfAbsent(items.get(i).storyId(), i);
+        this.rankOf = ranks;
+        this.indexById = byId;
+        this.order = ord;
+        return ord;
+    }
+
+    // a выше b в рейтинге
+    private boolean better(int a, int b) {
+        int cmp = Double.compare(scores[a], scores[b]);
+        return cmp > 0 || (cmp == 0 && a < b);
+    }
+
+    private void siftUp(int[] heap, int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!better(heap[parent], heap[i])) break;
+            int t = heap[parent]; heap[parent] = heap[i]; heap[i] = t;
+            i = parent;
+        }
+    }
+
+    private void siftDown(int[] heap, int n) {
+        int i = 0;
+        while (true) {
+            int l = 2 * i + 1, r = l + 1, worst = i;
+            if (l < n && better(heap[worst], heap[l])) worst = l;
+            if (r < n && better(heap[worst], heap[r])) worst = r;
+            if (worst == i) return;
+            int t = heap[worst]; heap[worst] = heap[i]; heap[i] = t;
+            i = worst;
+        }
+    }
+}
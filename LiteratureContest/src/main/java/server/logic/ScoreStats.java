@@ -0,0 +1,198 @@
+package server.logic;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Сводка оценок для метрик рейтинга. Оценки — целые 1..{@value #MAX}, поэтому гистограмма по истории
+ * и по рецензенту — точный и компактный «эскиз»: медиана, усечённое среднее и моменты считаются по
+ * 10 счётчикам, без обхода самих оценок. Для нормализации по рецензенту у истории хранится ещё и
+ * небольшая карта рецензент → оценка (рецензий у истории единицы).
+ *
+ * Сводка обновляется по одной оценке ({@link #put}, {@link #remove}) вместе с журналом оценок,
+ * поэтому рейтинг по любой метрике стоит O(S + R), а не перечитывания всех оценок.
+ * Не потокобезопасна: используется под блокировкой {@link ContestService}.
+ */
+public final class ScoreStats {
+    static final int MAX = 10;
+    /** Доля оценок, отбрасываемых с каждого края в {@link Metric#TRIMMED}. */
+    static final double TRIM = 0.2;
+
+    public enum Metric {
+        /** Среднее арифметическое. */
+        MEAN,
+        /** Медиана (для чётного числа оценок — среднее двух средних). */
+        MEDIAN,
+        /** Среднее без крайних оценок: с каждого края ceil(n·0.2), но так, чтобы осталась хотя бы одна. */
+        TRIMMED,
+        /** Байесовское среднее: (C·m + Σs) / (C + n), m — среднее по всем оценкам, C — нужное число рецензий. */
+        BAYES,
+        /** Среднее z-оценок (s − μ рецензента) / σ рецензента, возвращённое в шкалу оценок: m + σ·z̄. */
+        ZSCORE;
+
+        public String id() { return name().toLowerCase(Locale.ROOT); }
+
+        /** "median" → MEDIAN; null — неизвестная метрика. */
+        public static Metric parse(String s) {
+            if (s == null) return null;
+            for (Metric m : values()) if (m.id().equalsIgnoreCase(s.trim())) return m;
+            return null;
+        }
+    }
+
+    private static final class Story {
+        final int[] hist = new int[MAX + 1];
+        final Map<String, Integer> byReviewer = new HashMap<>(4);
+    }
+
+    private final Map<String, Story> stories = new HashMap<>();
+    private final Map<String, int[]> reviewers = new HashMap<>();
+    private final int[] global = new int[MAX + 1];
+
+    /** Ставит или заменяет оценку рецензента истории. */
+    void put(String reviewerId, String storyId, int score) {
+        if (score < 1 || score > MAX) return;
+        remove(reviewerId, storyId);
+        String r = key(reviewerId);
+        Story s = stories.computeIfAbsent(key(storyId), k -> new Story());
+        s.byReviewer.put(r, score);
+        s.hist[score]++;
+        reviewers.computeIfAbsent(r, k -> new int[MAX + 1])[score]++;
+        global[score]++;
+    }
+
+    void remove(String reviewerId, String storyId) {
+        String r = key(reviewerId);
+        Story s = stories.get(key(storyId));
+        if (s == null) return;
+        Integer old = s.byReviewer.remove(r);
+        if (old == null) return;
+        s.hist[old]--;
+        reviewers.get(r)[old]--;
+        global[old]--;
+        if (s.byReviewer.isEmpty()) stories.remove(key(storyId));
+    }
+
+    public int count(String storyId) {
+        Story s = stories.get(key(storyId));
+        return s == null ? 0 : s.byReviewer.size();
+    }
+
+    public int reviewerCount(String reviewerId) {
+        int[] h = reviewers.get(key(reviewerId));
+        return h == null ? 0 : count(h);
+    }
+
+    public int total() {
+        return count(global);
+    }
+
+    public double mean(String storyId) {
+        Story s = stories.get(key(storyId));
+        return s == null ? 0.0 : mean(s.hist);
+    }
+
+    /** Функция «история → значение метрики»; общие величины (m, σ, μ и σ рецензентов) считаются один раз. */
+    public Scorer scorer(Metric metric, int priorWeight) {
+        double m = mean(global);
+        double sigma = sd(global);
+        return switch (metric) {
+            case MEAN -> this::mean;
+            case MEDIAN -> id -> withHist(id, ScoreStats::median);
+            case TRIMMED -> id -> withHist(id, ScoreStats::trimmedMean);
+            case BAYES -> id -> {
+                Story s = stories.get(key(id));
+                int n = s == null ? 0 : count(s.hist);
+                double sum = s == null ? 0 : sum(s.hist);
+                return n + priorWeight == 0 ? 0.0 : (priorWeight * m + sum) / (priorWeight + n);
+            };
+            case ZSCORE -> {
+                Map<String, double[]> norm = new HashMap<>(reviewers.size() * 2);
+                for (var e : reviewers.entrySet()) {
+                    int[] h = e.getValue();
+                    double sd = count(h) >= 2 ? sd(h) : 0;
+                    // у рецензента, ставящего всем одно и то же, разброс неизвестен — берём общий
+                    norm.put(e.getKey(), new double[]{mean(h), sd > 0 ? sd : sigma});
+                }
+                yield id -> {
+                    Story s = stories.get(key(id));
+                    if (s == null) return 0.0;
+                    if (sigma == 0) return mean(s.hist);
+                    double z = 0;
+                    for (var e : s.byReviewer.entrySet()) {
+                        double[] ms = norm.get(e.getKey());
+                        z += (e.getValue() - ms[0]) / ms[1];
+                    }
+                    return m + sigma * z / s.byReviewer.size();
+                };
+            }
+        };
+    }
+
+    @FunctionalInterface
+    public interface Scorer {
+        double score(String storyId);
+    }
+
+    /* ===================== гистограммы ===================== */
+
+    private double withHist(String storyId, ToDoubleFunction<int[]> f) {
+        Story s = stories.get(key(storyId));
+        return s == null ? 0.0 : f.applyAsDouble(s.hist);
+    }
+
+    private static int count(int[] h) {
+        int n = 0;
+        for (int v = 1; v <= MAX; v++) n += h[v];
+        return n;
+    }
+
+    private static long sum(int[] h) {
+        long s = 0;
+        for (int v = 1; v <= MAX; v++) s += (long) v * h[v];
+        return s;
+    }
+
+    static double mean(int[] h) {
+        int n = count(h);
+        return n == 0 ? 0.0 : (double) sum(h) / n;
+    }
+
+    static double sd(int[] h) {
+        int n = count(h);
+        if (n == 0) return 0.0;
+        double m = mean(h), ss = 0;
+        for (int v = 1; v <= MAX; v++) ss += h[v] * (v - m) * (v - m);
+        return Math.sqrt(ss / n);
+    }
+
+    // k-я по порядку оценка (с 0)
+    private static int nth(int[] h, int k) {
+        for (int v = 1; v <= MAX; v++) {
+            k -= h[v];
+            if (k < 0) return v;
+        }
+        return MAX;
+    }
+
+    static double median(int[] h) {
+        int n = count(h);
+        if (n == 0) return 0.0;
+        return (nth(h, (n - 1) / 2) + nth(h, n / 2)) / 2.0;
+    }
+
+    static double trimmedMean(int[] h) {
+        int n = count(h);
+        if (n == 0) return 0.0;
+        int k = Math.min((int) Math.ceil(n * TRIM), (n - 1) / 2);
+        long s = 0;
+        for (int i = k; i < n - k; i++) s += nth(h, i); // n — число рецензий истории, единицы
+        return (double) s / (n - 2 * k);
+    }
+
+    private static String key(String id) {
+        return id.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,448 @@
+package server.logic;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Инвертированный индекс по текстам рассказов (поиск для жюри).
+ *
+ * Истории нумеруются порядковыми номерами (ordinal) в порядке добавления. Для каждого слова хранится
+ * сжатый список: разность номеров историй, число вхождений и разности позиций — всё varint в одном byte[].
+ * Позиции нужны для фразового поиска.
+ *
+ * Запросы: слова через пробел — И; "фраза в кавычках"; OR между частями; -слово или NOT — исключение;
+ * скобки для группировки. Например: {@code "стара хата" (ліс OR поле) -місто}.
+ */
+public final class SearchIndex {
+    private static final int MAX_QUERY_LEAVES = 32;
+    /** Вложенность скобок и NOT: разбор и вычисление рекурсивны, а запрос длиной до 8 КБ дал бы переполнение стека. */
+    private static final int MAX_QUERY_DEPTH = 32;
+
+    /** Запрос не разбирается. */
+    public static final class QueryException extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        public QueryException(String message) { super(message); }
+    }
+
+    private final Map<String, Postings> terms = new HashMap<>();
+    private final List<String> storyIds = new ArrayList<>();
+
+    public int size() { return storyIds.size(); }
+
+    public String storyId(int ordinal) { return storyIds.get(ordinal); }
+
+    /** Добавляет историю (название и текст) и возвращает её ordinal. Фраза не склеивается через границу частей. */
+    public int add(String storyId, String title, String body) {
+        int doc = storyIds.size();
+        storyIds.add(storyId);
+        Map<String, IntList> positions = new HashMap<>();
+        Tokenizer t = new Tokenizer((term, pos) -> positions.computeIfAbsent(term, k -> new IntList()).add(pos));
+        t.feed(nfc(title));
+        t.gap();
+        t.feed(nfc(body));
+        t.finish();
+        for (Map.Entry<String, IntList> e : positions.entrySet()) {
+            terms.computeIfAbsent(e.getKey(), k -> new Postings()).add(doc, e.getValue());
+        }
+        return doc;
+    }
+
+    /** Номера подходящих историй по возрастанию. */
+    public int[] search(String query) {
+        Node root = new Parser(nfc(query)).parse();
+        return eval(root);
+    }
+
+    /* ===================== токенизация ===================== */
+
+    /**
+     * Слова — последовательности букв и цифр (кириллица, латиница) в нижнем регистре.
+     * Апострофы внутри слова (м'ята, п’ять, зʼїзд) приводятся к ' и сохраняются,
+     * комбинируемые знаки (ударения) пропускаются, остальное — разделители.
+     */
+    static final class Tokenizer {
+        interface TermSink { void term(String term, int position); }
+
+        private final TermSink sink;
+        private char[] word = new char[32];
+        private int len;
+        private int position;
+
+        Tokenizer(TermSink sink) { this.sink = sink; }
+
+        void feed(CharSequence s) {
+            for (int i = 0; i < s.length(); i++) accept(s.charAt(i));
+        }
+
+        /** Разрыв между частями текста: фраза через него не находится. */
+        void gap() {
+            flush();
+            position++;
+        }
+
+        void finish() { flush(); }
+
+        private void accept(char c) {
+            char lower;
+            if (c < 0x80) {
+                // ASCII без обращения к таблицам Character
+                if (c >= 'a' && c <= 'z' || c >= '0' && c <= '9') lower = c;
+                else if (c >= 'A' && c <= 'Z') lower = (char) (c + ('a' - 'A'));
+                else if (c == '\'' || c == '`') { if (len > 0) put('\''); return; }
+                else { flush(); return; }
+            } else if (c >= '\u0410' && c <= '\u044F') {
+                lower = c <= '\u042F' ? (char) (c + 0x20) : c; // основная кириллица А..я
+            } else if (Character.isLetterOrDigit(c)) {
+                lower = Character.toLowerCase(c);
+            } else if (c == '\u2019' || c == '\u02BC') {
+                if (len > 0) put('\'');
+                return;
+            } else {
+                if (Character.getType(c) != Character.NON_SPACING_MARK) flush();
+                return;
+            }
+            put(lower);
+        }
+
+        private void put(char c) {
+            if (len == word.length) word = Arrays.copyOf(word, len * 2);
+            word[len++] = c;
+        }
+
+        private void flush() {
+            int n = len;
+            while (n > 0 && word[n - 1] == '\'') n--;
+            if (n > 0) sink.term(new String(word, 0, n), position++);
+            len = 0;
+        }
+    }
+
+    static List<String> tokens(String s) {
+        List<String> res = new ArrayList<>();
+        Tokenizer t = new Tokenizer((term, pos) -> res.add(term));
+        t.feed(s);
+        t.finish();
+        return res;
+    }
+
+    private static String nfc(String s) {
+        if (s == null) return "";
+        return Normalizer.isNormalized(s, Normalizer.Form.NFC) ? s : Normalizer.normalize(s, Normalizer.Form.NFC);
+    }
+
+    /* ===================== списки вхождений ===================== */
+
+    private static final class IntList {
+        int[] a = new int[4];
+        int n;
+        void add(int v) {
+            if (n == a.length) a = Arrays.copyOf(a, n * 2);
+            a[n++] = v;
+        }
+        int[] toArray() { return Arrays.copyOf(a, n); }
+    }
+
+    // doc-delta, freq, pos-delta × freq — varint подряд
+    private static final class Postings {
+        byte[] data = new byte[8];
+        int length;
+        int lastDoc = -1;
+        int docCount;
+
+        void add(int doc, IntList positions) {
+            writeVarInt(doc - lastDoc);
+            writeVarInt(positions.n);
+            int prev = 0;
+            for (int i = 0; i < positions.n; i++) {
+                writeVarInt(positions.a[i] - prev);
+                prev = positions.a[i];
+            }
+            lastDoc = doc;
+            docCount++;
+        }
+
+        private void writeVarInt(int v) {
+            if (length + 5 > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, length + 5));
+            while ((v & ~0x7F) != 0) {
+                data[length++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            data[length++] = (byte) v;
+        }
+    }
+
+    private static final class Cursor {
+        private final Postings p;
+        private int off;
+        private int remaining;
+        int doc = -1;
+        private int freq;
+        private int posOff;
+
+        Cursor(Postings p) {
+            this.p = p;
+            this.remaining = p.docCount;
+        }
+
+        boolean next() {
+            if (remaining == 0) { doc = Integer.MAX_VALUE; return false; }
+            remaining--;
+            doc += readVarInt();
+            freq = readVarInt();
+            posOff = off;
+            for (int i = 0; i < freq; i++) readVarInt();
+            return true;
+        }
+
+        boolean advanceTo(int target) {
+            while (doc < target) {
+                if (!next()) return false;
+            }
+            return true;
+        }
+
+        int[] positions() {
+            int save = off;
+            off = posOff;
+            int[] res = new int[freq];
+            int prev = 0;
+            for (int i = 0; i < freq; i++) res[i] = prev += readVarInt();
+            off = save;
+            return res;
+        }
+
+        private int readVarInt() {
+            int v = 0, shift = 0;
+            byte b;
+            do {
+                b = p.data[off++];
+                v |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return v;
+        }
+    }
+
+    /* ===================== запрос ===================== */
+
+    private sealed interface Node permits Leaf, Not, And, Or {}
+    private record Leaf(List<String> terms) implements Node {}
+    private record Not(Node child) implements Node {}
+    private record And(List<Node> children) implements Node {}
+    private record Or(List<Node> children) implements Node {}
+
+    private static final class Parser {
+        private final String q;
+        private int i;
+        private int leaves;
+        private int depth;
+
+        Parser(String q) { this.q = q; }
+
+        Node parse() {
+            Node n = or();
+            skipSpaces();
+            if (i < q.length()) throw new QueryException("unexpected '" + q.charAt(i) + "' at " + i);
+            if (n == null) throw new QueryException("empty query");
+            return n;
+        }
+
+        private Node or() {
+            List<Node> parts = new ArrayList<>();
+            Node first = and();
+            if (first != null) parts.add(first);
+            while (keyword("OR")) {
+                Node next = and();
+                if (next == null) throw new QueryException("OR without right operand");
+                parts.add(next);
+            }
+            if (parts.isEmpty()) return null;
+            return parts.size() == 1 ? parts.get(0) : new Or(parts);
+        }
+
+        private Node and() {
+            List<Node> parts = new ArrayList<>();
+            while (true) {
+                skipSpaces();
+                if (i >= q.length() || q.charAt(i) == ')' || peekKeyword("OR")) break;
+                keyword("AND");
+                Node n = unary();
+                if (n != null) parts.add(n);
+            }
+            if (parts.isEmpty()) return null;
+            return parts.size() == 1 ? parts.get(0) : new And(parts);
+        }
+
+        private Node unary() {
+            skipSpaces();
+            boolean minus = i < q.length() && q.charAt(i) == '-';
+            if (minus) i++;
+            if (minus || keyword("NOT")) {
+                enter();
+                Node child = unary();
+                depth--;
+                if (child == null) throw new QueryException("NOT without operand");
+                return new Not(child);
+            }
+            if (i >= q.length()) return null;
+            char c = q.charAt(i);
+            if (c == '(') {
+                i++;
+                enter();
+                Node inner = or();
+                depth--;
+                skipSpaces();
+                if (i >= q.length() || q.charAt(i) != ')') throw new QueryException("missing ')'");
+                i++;
+                return inner;
+            }
+            String text;
+            if (c == '"') {
+                int end = q.indexOf('"', i + 1);
+                if (end < 0) end = q.length();
+                text = q.substring(i + 1, end);
+                i = Math.min(end + 1, q.length());
+            } else {
+                int start = i;
+                while (i < q.length() && !Character.isWhitespace(q.charAt(i)) && "()\"".indexOf(q.charAt(i)) < 0) i++;
+                text = q.substring(start, i);
+            }
+            List<String> words = tokens(text);
+            if (words.isEmpty()) return null;
+            if (++leaves > MAX_QUERY_LEAVES) throw new QueryException("query is too complex");
+            return new Leaf(words);
+        }
+
+        private void enter() {
+            if (++depth > MAX_QUERY_DEPTH) throw new QueryException("query is nested too deep");
+        }
+
+        private boolean peekKeyword(String kw) {
+            skipSpaces();
+            int end = i + kw.length();
+            return q.startsWith(kw, i) && (end == q.length() || Character.isWhitespace(q.charAt(end)) || q.charAt(end) == '(');
+        }
+
+        private boolean keyword(String kw) {
+            if (!peekKeyword(kw)) return false;
+            i += kw.length();
+            return true;
+        }
+
+        private void skipSpaces() {
+            while (i < q.length() && Character.isWhitespace(q.charAt(i))) i++;
+        }
+    }
+
+    private int[] eval(Node n) {
+        if (n instanceof Leaf l) return phrase(l.terms());
+        if (n instanceof Not not) return difference(all(), eval(not.child()));
+        if (n instanceof Or or) {
+            int[] res = new int[0];
+            for (Node c : or.children()) res = union(res, eval(c));
+            return res;
+        }
+        // And: сначала пересечение положительных частей, потом вычитание исключённых
+        int[] res = null;
+        List<int[]> excluded = new ArrayList<>();
+        for (Node c : ((And) n).children()) {
+            if (c instanceof Not not) excluded.add(eval(not.child()));
+            else res = res == null ? eval(c) : intersect(res, eval(c));
+        }
+        if (res == null) res = all();
+        for (int[] ex : excluded) res = difference(res, ex);
+        return res;
+    }
+
+    // истории, где слова идут подряд; для одного слова — просто его список
+    private int[] phrase(List<String> words) {
+        Cursor[] cs = new Cursor[words.size()];
+        for (int k = 0; k < cs.length; k++) {
+            Postings p = terms.get(words.get(k));
+            if (p == null) return new int[0];
+            cs[k] = new Cursor(p);
+        }
+        IntList res = new IntList();
+        if (cs.length == 1) {
+            while (cs[0].next()) res.add(cs[0].doc);
+            return res.toArray();
+        }
+        if (!cs[0].next()) return new int[0];
+        outer:
+        while (true) {
+            int target = cs[0].doc;
+            for (Cursor c : cs) {
+                if (!c.advanceTo(target)) break outer;
+                target = Math.max(target, c.doc);
+            }
+            boolean aligned = true;
+            for (Cursor c : cs) {
+                if (c.doc != target) { aligned = false; break; }
+            }
+            if (!aligned) {
+                if (!cs[0].advanceTo(target)) break;
+                continue;
+            }
+            if (matchesPhrase(cs)) res.add(target);
+            if (!cs[0].next()) break;
+        }
+        return res.toArray();
+    }
+
+    private static boolean matchesPhrase(Cursor[] cs) {
+        int[][] pos = new int[cs.length][];
+        for (int k = 0; k < cs.length; k++) pos[k] = cs[k].positions();
+        next:
+        for (int p : pos[0]) {
+            for (int k = 1; k < cs.length; k++) {
+                if (Arrays.binarySearch(pos[k], p + k) < 0) continue next;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private int[] all() {
+        int[] res = new int[storyIds.size()];
+        for (int d = 0; d < res.length; d++) res[d] = d;
+        return res;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] res = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) i++;
+            else if (a[i] > b[j]) j++;
+            else { res[n++] = a[i]; i++; j++; }
+        }
+        return Arrays.copyOf(res, n);
+    }
+
+    private static int[] union(int[] a, int[] b) {
+        int[] res = new int[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || (i < a.length && a[i] < b[j])) res[n++] = a[i++];
+            else if (i == a.length || b[j] < a[i]) res[n++] = b[j++];
+            else { res[n++] = a[i]; i++; j++; }
+        }
+        return Arrays.copyOf(res, n);
+    }
+
+    private static int[] difference(int[] a, int[] b) {
+        int[] res = new int[a.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length) {
+            while (j < b.length && b[j] < a[i]) j++;
+            if (j < b.length && b[j] == a[i]) i++;
+            else res[n++] = a[i++];
+        }
+        return Arrays.copyOf(res, n);
+    }
+}
@@ -18,6 +18,23 @@ public final class Storage {
                 "{\"status\":\"empty\",\"generatedAt\":0,\"items\":[]}\n");
     }
 
+    /** Временный файл в storage/tmp — та же файловая система, что и у хранилища, поэтому перенос атомарен. */
+    public static Path newTempFile(String suffix) throws IOException {
+        Path dir = ROOT.resolve("tmp");
+        Files.createDirectories(dir);
+        return Files.createTempFile(dir, "upload-", suffix);
+    }
+
+    /** Атомарно переносит готовый файл на место (rename); если ФС не умеет — обычный перенос. */
+    public static void moveAtomically(Path from, Path to) throws IOException {
+        Files.createDirectories(to.getParent());
+        try {
+            Files.move(from, to, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
     private static void createDirs(String... names) throws IOException {
         for (String n : names) Files.createDirectories(ROOT.resolve(n));
     }
@@ -23,6 +23,39 @@ public final class ConfigService {
     public static int maxChars() { return 30000; }
     public static int requiredReviewsPerClient() { return 3; }
 
+    /** Токен для служебных выгрузок (заголовок X-Admin-Token); не задан — служебные эндпоинты выключены. */
+    public static String adminToken() { return System.getenv("CONTEST_ADMIN_TOKEN"); }
+
+    /**
+     * Режим очереди приёма (CONTEST_SPOOL_INTAKE=true): /submit и PUT /submission сохраняют тело и сразу
+     * отвечают 202 с билетом, а рассказ регистрируется в фоне — включается на пик перед дедлайном.
+     */
+    public static boolean spoolIntake() { return Boolean.parseBoolean(System.getenv("CONTEST_SPOOL_INTAKE")); }
+
+    /**
+     * Метрика рейтинга (CONTEST_RANKING_METRIC): mean (по умолчанию), median, trimmed, bayes, zscore —
+     * см. ScoreStats.Metric. Другие метрики можно запросить и разово: GET /results?metric=.
+     */
+    public static String rankingMetric() { return System.getenv("CONTEST_RANKING_METRIC"); }
+
+    /**
+     * Каталог Maildir, из которого принимаются рассказы по почте (CONTEST_MAILDIR); не задан — приём
+     * по почте выключен. CONTEST_MAILDIR_WORKERS — число потоков разбора писем.
+     */
+    public static String maildir() { return System.getenv("CONTEST_MAILDIR"); }
+
+    public static int maildirWorkers() {
+        String v = System.getenv("CONTEST_MAILDIR_WORKERS");
+        try {
+            return v == null ? Runtime.getRuntime().availableProcessors() : Math.max(1, Integer.parseInt(v.trim()));
+        } catch (NumberFormatException e) {
+            return Runtime.getRuntime().availableProcessors();
+        }
+    }
+
+    /** Добавлять ли в protocol.txt раздел о подозрительно похожих историях (CONTEST_PROTOCOL_DUPLICATES=true). */
+    public static boolean protocolDuplicates() { return Boolean.parseBoolean(System.getenv("CONTEST_PROTOCOL_DUPLICATES")); }
+
     public static boolean isSubmitOpenNow() {
         var now = Instant.now();
         return !now.isBefore(submitFrom()) && !now.isAfter(submitTo());
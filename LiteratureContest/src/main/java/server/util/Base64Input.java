@@ -0,0 +1,83 @@
+package server.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Base64;
+
+/**
+ * Потоковое декодирование base64. Декодер JDK сообщает о битом base64 тем же IOException, что и об ошибке
+ * чтения; здесь они разделены: битый base64 — {@link MalformedBase64Exception}, ошибки источника
+ * пробрасываются как есть.
+ */
+public final class Base64Input extends FilterInputStream {
+
+    /** Вход не является корректным base64. */
+    public static final class MalformedBase64Exception extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public MalformedBase64Exception(String message) { super(message); }
+    }
+
+    private final Source source;
+
+    public Base64Input(InputStream encoded) {
+        this(new Source(encoded));
+    }
+
+    private Base64Input(Source source) {
+        super(Base64.getDecoder().wrap(source));
+        this.source = source;
+    }
+
+    @Override
+    public int read() throws IOException {
+        try {
+            return in.read();
+        } catch (IOException e) {
+            throw classify(e);
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        try {
+            return in.read(b, off, len);
+        } catch (IOException e) {
+            throw classify(e);
+        }
+    }
+
+    private IOException classify(IOException e) {
+        return source.failed ? e : new MalformedBase64Exception(e.getMessage());
+    }
+
+    // запоминает, что ошибка пришла из самого источника
+    private static final class Source extends FilterInputStream {
+        boolean failed;
+
+        Source(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return in.read();
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                return in.read(b, off, len);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package server.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Потоковое чтение CSV по байтам (UTF-8), строка за строкой.
+ * Память — один буфер чтения и один буфер текущей строки, независимо от размера файла.
+ * Понимает кавычки по RFC 4180 ("a,b", "" внутри кавычек), переводы строк \n, \r\n и \r, BOM в начале.
+ *
+ * <pre>
+ *   while (csv.nextRow()) {
+ *       if (csv.isBlank()) continue;
+ *       String id = csv.field(0); int score = csv.intField(1);
+ *   }
+ * </pre>
+ */
+public final class CsvReader {
+
+    /** Строка не разбирается как CSV или длиннее допустимого. */
+    public static final class MalformedCsvException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public MalformedCsvException(String message) { super(message); }
+    }
+
+    private final InputStream in;
+    private final byte separator;
+    private final int maxRowBytes;
+
+    private final byte[] buf = new byte[8192];
+    private int pos, limit;
+    private boolean eof;
+    private boolean started;
+
+    private byte[] row = new byte[256];
+    private int rowLen;
+    private int[] starts = new int[8];
+    private int[] ends = new int[8];
+    private int fields;
+    private int line;       // номер физической строки, на которой начинается текущая запись
+    private int nextLine = 1;
+
+    public CsvReader(InputStream in) {
+        this(in, ',', 64 * 1024);
+    }
+
+    public CsvReader(InputStream in, char separator, int maxRowBytes) {
+        this.in = in;
+        this.separator = (byte) separator;
+        this.maxRowBytes = maxRowBytes;
+    }
+
+    /** Читает следующую запись; false — данные закончились. */
+    public boolean nextRow() throws IOException {
+        if (!started) { started = true; skipBom(); }
+        if (pos == limit && !fill()) return false;
+
+        line = nextLine;
+        rowLen = 0;
+        fields = 0;
+        boolean quoted = false;
+        int fieldStart = 0;
+        while (true) {
+            if (pos == limit && !fill()) {
+                if (quoted) throw new MalformedCsvException("line " + line + ": unterminated quoted field");
+                break;
+            }
+            byte b = buf[pos++];
+            if (quoted) {
+                if (b == '"') {
+                    if (pos == limit && !fill()) { quoted = false; continue; }
+                    if (buf[pos] == '"') { pos++; append(b); }
+                    else quoted = false;
+                } else {
+                    if (b == '\n') nextLine++;
+                    append(b);
+                }
+                continue;
+            }
+            if (b == separator) {
+                endField(fieldStart);
+                fieldStart = rowLen;
+            } else if (b == '\n') {
+                nextLine++;
+                break;
+            } else if (b == '\r') {
+                nextLine++;
+                if ((pos < limit || fill()) && buf[pos] == '\n') pos++;
+                break;
+            } else if (b == '"' && isBlankRange(fieldStart, rowLen)) {
+                rowLen = fieldStart; // пробелы перед открывающей кавычкой не считаются
+                quoted = true;
+            } else {
+                append(b);
+            }
+        }
+        endField(fieldStart);
+        return true;
+    }
+
+    /** Номер строки исходного файла (с 1), с которой началась текущая запись. */
+    public int lineNumber() { return line; }
+
+    public int fieldCount() { return fields; }
+
+    /** true, если запись пустая или состоит только из пробелов. */
+    public boolean isBlank() {
+        return fields == 1 && isBlankRange(starts[0], ends[0]);
+    }
+
+    /** Значение поля без окружающих пробелов. */
+    public String field(int i) {
+        checkIndex(i);
+        int s = starts[i], e = ends[i];
+        while (s < e && isSpace(row[s])) s++;
+        while (e > s && isSpace(row[e - 1])) e--;
+        return new String(row, s, e - s, StandardCharsets.UTF_8);
+    }
+
+    /** Целое из поля без создания строки; NumberFormatException, если это не целое число. */
+    public int intField(int i) {
+        checkIndex(i);
+        int s = starts[i], e = ends[i];
+        while (s < e && isSpace(row[s])) s++;
+        while (e > s && isSpace(row[e - 1])) e--;
+        if (s == e) throw new NumberFormatException("empty field");
+        boolean neg = row[s] == '-';
+        if (neg || row[s] == '+') s++;
+        if (s == e) throw new NumberFormatException("no digits");
+        long v = 0;
+        for (int k = s; k < e; k++) {
+            int d = row[k] - '0';
+            if (d < 0 || d > 9) throw new NumberFormatException("not a digit");
+            v = v * 10 + d;
+            if (v > Integer.MAX_VALUE + 1L) throw new NumberFormatException("int overflow");
+        }
+        v = neg ? -v : v;
+        if (v > Integer.MAX_VALUE) throw new NumberFormatException("int overflow");
+        return (int) v;
+    }
+
+    /* ===================== internals ===================== */
+
+    private void endField(int fieldStart) {
+        if (fields == starts.length) {
+            starts = Arrays.copyOf(starts, fields * 2);
+            ends = Arrays.copyOf(ends, fields * 2);
+        }
+        starts[fields] = fieldStart;
+        ends[fields] = rowLen;
+        fields++;
+    }
+
+    private void append(byte b) throws MalformedCsvException {
+        if (rowLen == row.length) {
+            if (rowLen >= maxRowBytes) throw new MalformedCsvException("line " + line + ": row is too long");
+            row = Arrays.copyOf(row, Math.min(rowLen * 2, maxRowBytes));
+        }
+        row[rowLen++] = b;
+    }
+
+    private boolean isBlankRange(int from, int to) {
+        for (int k = from; k < to; k++) if (!isSpace(row[k])) return false;
+        return true;
+    }
+
+    private static boolean isSpace(byte b) { return b == ' ' || b == '\t'; }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= fields) throw new IndexOutOfBoundsException("field " + i + " of " + fields);
+    }
+
+    private void skipBom() throws IOException {
+        while (limit - pos < 3 && !eof) {
+            if (pos > 0) { System.arraycopy(buf, pos, buf, 0, limit - pos); limit -= pos; pos = 0; }
+            int r = in.read(buf, limit, buf.length - limit);
+            if (r < 0) eof = true; else limit += r;
+        }
+        if (limit - pos >= 3 && (buf[pos] & 0xFF) == 0xEF && (buf[pos + 1] & 0xFF) == 0xBB && (buf[pos + 2] & 0xFF) == 0xBF) {
+            pos += 3;
+        }
+    }
+
+    private boolean fill() throws IOException {
+        if (eof) return false;
+        pos = limit = 0;
+        int r = in.read(buf, 0, buf.length);
+        if (r < 0) { eof = true; return false; }
+        limit = r;
+        return true;
+    }
+}
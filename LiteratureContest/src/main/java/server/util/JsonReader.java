@@ -0,0 +1,430 @@
+package server.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Потоковый pull-парсер JSON, работающий прямо по байтам UTF-8.
+ * Не строит дерево и не упаковывает числа: вызывающий код запрашивает токены через {@link #next()}
+ * и сам решает, что делать со значением. Имена полей сравниваются без аллокаций ({@link #nameEquals}),
+ * а большое строковое значение можно прочитать потоком через {@link #stringStream()}.
+ *
+ * Пример:
+ * <pre>
+ *   r.next();                              // BEGIN_OBJECT
+ *   while (r.next() == Token.NAME) {
+ *       if (r.nameEquals("title")) title = r.nextString();
+ *       else r.skipValue();
+ *   }
+ * </pre>
+ */
+public final class JsonReader implements Closeable {
+
+    public enum Token { BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, TRUE, FALSE, NULL, END_DOCUMENT }
+
+    /** Синтаксическая ошибка во входном JSON (в отличие от ошибок ввода-вывода). */
+    public static final class MalformedJsonException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public MalformedJsonException(String message) { super(message); }
+    }
+
+    // контексты стека
+    private static final int EMPTY_DOC = 0, NONEMPTY_DOC = 1, OBJ_EMPTY = 2, OBJ_NONEMPTY = 3, OBJ_VALUE = 4,
+            ARR_EMPTY = 5, ARR_NONEMPTY = 6;
+
+    private final InputStream in;
+    private final byte[] buf = new byte[8192];
+    private int pos, limit;
+    private long consumed; // байт до начала buf — для сообщений об ошибках
+
+    private int[] stack = new int[32];
+    private int depth = 1;
+    private Token current;
+
+    // имя поля или число (сырые байты)
+    private byte[] scratch = new byte[64];
+    private int scratchLen;
+
+    // состояние текущей строки
+    private boolean stringPending;
+    private boolean stringDone;
+    private final byte[] pend = new byte[4];
+    private int pendPos, pendLen;
+    private byte[] strBuf;
+
+    public JsonReader(InputStream in) {
+        this.in = in;
+        stack[0] = EMPTY_DOC;
+    }
+
+    public Token current() { return current; }
+
+    public Token next() throws IOException {
+        if (stringPending) skipString();
+        int c;
+        switch (stack[depth - 1]) {
+            case EMPTY_DOC -> {
+                c = nextNonWs();
+                if (c < 0) throw syntax("empty document");
+                stack[depth - 1] = NONEMPTY_DOC;
+                return current = readValue(c);
+            }
+            case NONEMPTY_DOC -> {
+                c = nextNonWs();
+                if (c < 0) return current = Token.END_DOCUMENT;
+                throw syntax("trailing characters after JSON value");
+            }
+            case OBJ_EMPTY -> {
+                c = nextNonWs();
+                if (c == '}') { depth--; return current = Token.END_OBJECT; }
+                return readName(c);
+            }
+            case OBJ_NONEMPTY -> {
+                c = nextNonWs();
+                if (c == '}') { depth--; return current = Token.END_OBJECT; }
+                if (c != ',') throw syntax("expected ',' or '}' in object");
+                return readName(nextNonWs());
+            }
+            case OBJ_VALUE -> {
+                stack[depth - 1] = OBJ_NONEMPTY;
+                return current = readValue(nextNonWs());
+            }
+            case ARR_EMPTY -> {
+                c = nextNonWs();
+                if (c == ']') { depth--; return current = Token.END_ARRAY; }
+                stack[depth - 1] = ARR_NONEMPTY;
+                return current = readValue(c);
+            }
+            case ARR_NONEMPTY -> {
+                c = nextNonWs();
+                if (c == ']') { depth--; return current = Token.END_ARRAY; }
+                if (c != ',') throw syntax("expected ',' or ']' in array");
+                return current = readValue(nextNonWs());
+            }
+            default -> throw new IllegalStateException("bad reader state");
+        }
+    }
+
+    /* ===================== names ===================== */
+
+    /** Сравнивает имя текущего поля (токен NAME) без создания строки. */
+    public boolean nameEquals(String name) {
+        requireToken(Token.NAME);
+        int n = name.length();
+        if (n > scratchLen) return false;
+        for (int i = 0; i < n; i++) {
+            char c = name.charAt(i);
+            if (c >= 0x80) return name().equals(name);
+            if (scratch[i] != (byte) c) return false;
+        }
+        return n == scratchLen;
+    }
+
+    public String name() {
+        requireToken(Token.NAME);
+        return new String(scratch, 0, scratchLen, StandardCharsets.UTF_8);
+    }
+
+    /* ===================== values ===================== */
+
+    /** Следующее значение как строка; null для JSON null. */
+    public String nextString() throws IOException {
+        Token t = next();
+        if (t == Token.NULL) return null;
+        if (t != Token.STRING) throw syntax("expected string, got " + t);
+        return stringValue();
+    }
+
+    /** Значение текущего токена STRING целиком. */
+    public String stringValue() throws IOException {
+        requireString();
+        if (strBuf == null) strBuf = new byte[256];
+        int len = 0, r;
+        while (true) {
+            if (len == strBuf.length) strBuf = Arrays.copyOf(strBuf, len * 2);
+            r = readStringChunk(strBuf, len, strBuf.length - len);
+            if (r < 0) break;
+            len += r;
+        }
+        stringPending = false;
+        return new String(strBuf, 0, len, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Значение текущего токена STRING как поток декодированных байтов UTF-8.
+     * Поток действителен до следующего вызова {@link #next()}; недочитанный остаток строки будет пропущен.
+     */
+    public InputStream stringStream() {
+        requireString();
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (!stringPending) return -1;
+                int r = readStringChunk(b, off, len);
+                if (r < 0) stringPending = false;
+                return r;
+            }
+        };
+    }
+
+    public long longValue() {
+        requireToken(Token.NUMBER);
+        int i = 0;
+        boolean neg = scratch[0] == '-';
+        if (neg) i++;
+        long v = 0;
+        for (; i < scratchLen; i++) {
+            int d = scratch[i] - '0';
+            if (d < 0 || d > 9) return (long) doubleValue();
+            if (v < (Long.MIN_VALUE + d) / 10) throw new NumberFormatException("number out of long range");
+            v = v * 10 - d;  // копим отрицательным, чтобы вместить Long.MIN_VALUE
+        }
+        if (!neg && v == Long.MIN_VALUE) throw new NumberFormatException("number out of long range");
+        return neg ? v : -v;
+    }
+
+    public double doubleValue() {
+        requireToken(Token.NUMBER);
+        return Double.parseDouble(new String(scratch, 0, scratchLen, StandardCharsets.ISO_8859_1));
+    }
+
+    /** true, если текущее число записано без дробной части и экспоненты. */
+    public boolean isIntegral() {
+        requireToken(Token.NUMBER);
+        for (int i = 0; i < scratchLen; i++) {
+            byte b = scratch[i];
+            if (b == '.' || b == 'e' || b == 'E') return false;
+        }
+        return true;
+    }
+
+    /** Пропускает следующее значение целиком (вызывать после NAME или внутри массива). */
+    public void skipValue() throws IOException {
+        int d = 0;
+        do {
+            switch (next()) {
+                case BEGIN_OBJECT, BEGIN_ARRAY -> d++;
+                case END_OBJECT, END_ARRAY -> d--;
+                case END_DOCUMENT -> throw syntax("unexpected end of document");
+                default -> { }
+            }
+        } while (d > 0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /* ===================== internals ===================== */
+
+    private Token readName(int c) throws IOException {
+        if (c != '"') throw syntax("expected field name");
+        startString();
+        scratchLen = 0;
+        int r;
+        while (true) {
+            if (scratchLen == scratch.length) scratch = Arrays.copyOf(scratch, scratchLen * 2);
+            r = readStringChunk(scratch, scratchLen, scratch.length - scratchLen);
+            if (r < 0) break;
+            scratchLen += r;
+        }
+        if (nextNonWs() != ':') throw syntax("expected ':' after field name");
+        stack[depth - 1] = OBJ_VALUE;
+        return current = Token.NAME;
+    }
+
+    private Token readValue(int c) throws IOException {
+        switch (c) {
+            case '{' -> { push(OBJ_EMPTY); return Token.BEGIN_OBJECT; }
+            case '[' -> { push(ARR_EMPTY); return Token.BEGIN_ARRAY; }
+            case '"' -> { startString(); stringPending = true; return Token.STRING; }
+            case 't' -> { expectLiteral("rue"); return Token.TRUE; }
+            case 'f' -> { expectLiteral("alse"); return Token.FALSE; }
+            case 'n' -> { expectLiteral("ull"); return Token.NULL; }
+            case -1 -> throw syntax("unexpected end of document");
+            default -> {
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    readNumber(c);
+                    return Token.NUMBER;
+                }
+                throw syntax("unexpected character '" + (char) c + "'");
+            }
+        }
+    }
+
+    private void readNumber(int first) throws IOException {
+        scratchLen = 0;
+        scratch[scratchLen++] = (byte) first;
+        while (true) {
+            if (pos == limit && !fill()) break;
+            byte b = buf[pos];
+            if ((b >= '0' && b <= '9') || b == '.' || b == 'e' || b == 'E' || b == '+' || b == '-') {
+                if (scratchLen == scratch.length) scratch = Arrays.copyOf(scratch, scratchLen * 2);
+                scratch[scratchLen++] = b;
+                pos++;
+            } else {
+                break;
+            }
+        }
+        if (scratchLen == 1 && first == '-') throw syntax("bad number");
+    }
+
+    private void expectLiteral(String rest) throws IOException {
+        for (int i = 0; i < rest.length(); i++) {
+            if (readByte() != rest.charAt(i)) throw syntax("bad literal");
+        }
+    }
+
+    private void startString() {
+        stringDone = false;
+        pendPos = pendLen = 0;
+    }
+
+    private void skipString() throws IOException {
+        if (strBuf == null) strBuf = new byte[256];
+        while (readStringChunk(strBuf, 0, strBuf.length) >= 0) {
+            // пропускаем остаток строкового значения
+        }
+        stringPending = false;
+    }
+
+    // Читает декодированные байты текущей строки; -1 — строка закончилась (закрывающая кавычка поглощена).
+    private int readStringChunk(byte[] dst, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        int n = 0;
+        while (n < len) {
+            if (pendPos < pendLen) { dst[off + n++] = pend[pendPos++]; continue; }
+            if (stringDone) break;
+            if (pos == limit && !fill()) throw syntax("unterminated string");
+            byte b = buf[pos];
+            if (b == '"') { pos++; stringDone = true; break; }
+            if (b == '\\') { pos++; decodeEscape(); continue; }
+            if (b >= 0 && b < 0x20) throw syntax("control character in string");
+            // быстрый путь: копируем подряд идущие обычные байты
+            int start = pos;
+            int max = Math.min(limit, pos + (len - n));
+            while (pos < max) {
+                byte x = buf[pos];
+                if (x == '"' || x == '\\' || (x >= 0 && x < 0x20)) break;
+                pos++;
+            }
+            System.arraycopy(buf, start, dst, off + n, pos - start);
+            n += pos - start;
+        }
+        return n == 0 && stringDone ? -1 : n;
+    }
+
+    private void decodeEscape() throws IOException {
+        int e = readByte();
+        pendPos = 0;
+        pendLen = 1;
+        switch (e) {
+            case '"' -> pend[0] = '"';
+            case '\\' -> pend[0] = '\\';
+            case '/' -> pend[0] = '/';
+            case 'b' -> pend[0] = '\b';
+            case 'f' -> pend[0] = '\f';
+            case 'n' -> pend[0] = '\n';
+            case 'r' -> pend[0] = '\r';
+            case 't' -> pend[0] = '\t';
+            case 'u' -> {
+                int cp = readHex4();
+                if (Character.isHighSurrogate((char) cp)) {
+                    if (readByte() != '\\' || readByte() != 'u') throw syntax("unpaired surrogate escape");
+                    int low = readHex4();
+                    if (!Character.isLowSurrogate((char) low)) throw syntax("unpaired surrogate escape");
+                    cp = Character.toCodePoint((char) cp, (char) low);
+                } else if (Character.isLowSurrogate((char) cp)) {
+                    cp = 0xFFFD;
+                }
+                encodeUtf8(cp);
+            }
+            case -1 -> throw syntax("incomplete escape");
+            default -> throw syntax("bad escape \\" + (char) e);
+        }
+    }
+
+    private int readHex4() throws IOException {
+        int v = 0;
+        for (int i = 0; i < 4; i++) {
+            int c = readByte();
+            int d = Character.digit(c, 16);
+            if (c < 0 || d < 0) throw syntax("bad unicode escape");
+            v = (v << 4) | d;
+        }
+        return v;
+    }
+
+    private void encodeUtf8(int cp) {
+        if (cp < 0x80) {
+            pend[0] = (byte) cp;
+            pendLen = 1;
+        } else if (cp < 0x800) {
+            pend[0] = (byte) (0xC0 | (cp >> 6));
+            pend[1] = (byte) (0x80 | (cp & 0x3F));
+            pendLen = 2;
+        } else if (cp < 0x10000) {
+            pend[0] = (byte) (0xE0 | (cp >> 12));
+            pend[1] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            pend[2] = (byte) (0x80 | (cp & 0x3F));
+            pendLen = 3;
+        } else {
+            pend[0] = (byte) (0xF0 | (cp >> 18));
+            pend[1] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+            pend[2] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            pend[3] = (byte) (0x80 | (cp & 0x3F));
+            pendLen = 4;
+        }
+    }
+
+    private void push(int ctx) {
+        if (depth == stack.length) stack = Arrays.copyOf(stack, depth * 2);
+        stack[depth++] = ctx;
+    }
+
+    private int nextNonWs() throws IOException {
+        while (true) {
+            if (pos == limit && !fill()) return -1;
+            byte b = buf[pos++];
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') return b & 0xFF;
+        }
+    }
+
+    private int readByte() throws IOException {
+        if (pos == limit && !fill()) return -1;
+        return buf[pos++] & 0xFF;
+    }
+
+    private boolean fill() throws IOException {
+        consumed += limit;
+        pos = limit = 0;
+        int r = in.read(buf, 0, buf.length);
+        if (r <= 0) return false;
+        limit = r;
+        return true;
+    }
+
+    private void requireToken(Token t) {
+        if (current != t) throw new IllegalStateException("current token is " + current + ", not " + t);
+    }
+
+    private void requireString() {
+        requireToken(Token.STRING);
+        if (!stringPending) throw new IllegalStateException("string value already consumed");
+    }
+
+    private MalformedJsonException syntax(String message) {
+        return new MalformedJsonException(message + " at byte " + (consumed + pos));
+    }
+}
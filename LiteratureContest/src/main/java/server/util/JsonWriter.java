@@ -0,0 +1,251 @@
+package server.util;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Потоковый JSON-генератор без внешних зависимостей.
+ * Пишет UTF-8 напрямую в OutputStream через собственный буфер, поэтому большие ответы
+ * (например, рейтинг на 100k историй) не собираются в одну огромную String.
+ * Экранирует кавычки, обратный слэш, все управляющие символы (&lt; 0x20), U+2028/U+2029
+ * и одиночные суррогаты. Числа форматируются без аллокаций.
+ */
+public final class JsonWriter implements Closeable, Flushable {
+    private static final byte[] HEX = {'0','1','2','3','4','5','6','7','8','9','a','b','c','d','e','f'};
+    private static final long[] POW10 = {1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L,
+            10_000_000L, 100_000_000L, 1_000_000_000L};
+
+    private final OutputStream out;
+    private final byte[] buf = new byte[8192];
+    private int len;
+    private final byte[] digits = new byte[20];
+
+    // стек контекстов: true, если в текущем объекте/массиве уже есть элемент (нужна запятая)
+    private boolean[] hasElement = new boolean[16];
+    private int depth;
+    private boolean afterName;
+
+    public JsonWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    public JsonWriter beginObject() throws IOException {
+        beforeValue();
+        push();
+        put('{');
+        return this;
+    }
+
+    public JsonWriter endObject() throws IOException {
+        pop();
+        put('}');
+        return this;
+    }
+
+    public JsonWriter beginArray() throws IOException {
+        beforeValue();
+        push();
+        put('[');
+        return this;
+    }
+
+    public JsonWriter endArray() throws IOException {
+        pop();
+        put(']');
+        return this;
+    }
+
+    public JsonWriter name(String name) throws IOException {
+        if (depth == 0 || afterName) throw new IllegalStateException("name() outside of object");
+        comma();
+        writeString(name);
+        put(':');
+        afterName = true;
+        return this;
+    }
+
+    public JsonWriter value(String s) throws IOException {
+        if (s == null) return nullValue();
+        beforeValue();
+        writeString(s);
+        return this;
+    }
+
+    public JsonWriter value(long v) throws IOException {
+        beforeValue();
+        writeLong(v);
+        return this;
+    }
+
+    public JsonWriter value(boolean v) throws IOException {
+        beforeValue();
+        if (v) putAscii("true"); else putAscii("false");
+        return this;
+    }
+
+    /** Число с фиксированным количеством знаков после точки (аналог "%.2f" с Locale.US). */
+    public JsonWriter value(double v, int fractionDigits) throws IOException {
+        if (fractionDigits < 0 || fractionDigits >= POW10.length) {
+            throw new IllegalArgumentException("fractionDigits must be 0.." + (POW10.length - 1));
+        }
+        if (Double.isNaN(v) || Double.isInfinite(v)) return nullValue();
+        beforeValue();
+        long scale = POW10[fractionDigits];
+        long scaled = Math.round(Math.abs(v) * scale);
+        if (v < 0 && scaled != 0) put('-');
+        writeLong(scaled / scale);
+        if (fractionDigits > 0) {
+            put('.');
+            long frac = scaled % scale;
+            for (int i = fractionDigits - 1; i >= 0; i--) {
+                put((char) ('0' + (frac / POW10[i]) % 10));
+            }
+        }
+        return this;
+    }
+
+    public JsonWriter nullValue() throws IOException {
+        beforeValue();
+        putAscii("null");
+        return this;
+    }
+
+    public JsonWriter stringArray(Iterable<String> values) throws IOException {
+        beginArray();
+        for (String v : values) value(v);
+        return endArray();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        out.close();
+    }
+
+    /* ===================== internals ===================== */
+
+    private void beforeValue() throws IOException {
+        if (afterName) { afterName = false; return; }
+        if (depth > 0) comma();
+    }
+
+    private void comma() throws IOException {
+        if (hasElement[depth - 1]) {
+            ensure(1);
+            buf[len++] = ',';
+        } else {
+            hasElement[depth - 1] = true;
+        }
+    }
+
+    private void push() {
+        if (depth == hasElement.length) {
+            hasElement = Arrays.copyOf(hasElement, depth * 2);
+        }
+        hasElement[depth++] = false;
+    }
+
+    private void pop() {
+        if (depth == 0 || afterName) throw new IllegalStateException("unbalanced JSON structure");
+        depth--;
+    }
+
+    private void writeString(String s) throws IOException {
+        put('"');
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (len + 12 > buf.length) flushBuffer();
+            if (c < 0x80) {
+                if (c == '"' || c == '\\') {
+                    buf[len++] = '\\';
+                    buf[len++] = (byte) c;
+                } else if (c < 0x20) {
+                    writeControl(c);
+                } else {
+                    buf[len++] = (byte) c;
+                }
+            } else if (c < 0x800) {
+                buf[len++] = (byte) (0xC0 | (c >> 6));
+                buf[len++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[len++] = (byte) (0xF0 | (cp >> 18));
+                buf[len++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buf[len++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buf[len++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c) || c == '\u2028' || c == '\u2029') {
+                writeUnicodeEscape(c);
+            } else {
+                buf[len++] = (byte) (0xE0 | (c >> 12));
+                buf[len++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[len++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        put('"');
+    }
+
+    private void writeControl(char c) {
+        switch (c) {
+            case '\n' -> { buf[len++] = '\\'; buf[len++] = 'n'; }
+            case '\r' -> { buf[len++] = '\\'; buf[len++] = 'r'; }
+            case '\t' -> { buf[len++] = '\\'; buf[len++] = 't'; }
+            case '\b' -> { buf[len++] = '\\'; buf[len++] = 'b'; }
+            case '\f' -> { buf[len++] = '\\'; buf[len++] = 'f'; }
+            default -> writeUnicodeEscape(c);
+        }
+    }
+
+    private void writeUnicodeEscape(char c) {
+        buf[len++] = '\\';
+        buf[len++] = 'u';
+        buf[len++] = HEX[(c >> 12) & 0xF];
+        buf[len++] = HEX[(c >> 8) & 0xF];
+        buf[len++] = HEX[(c >> 4) & 0xF];
+        buf[len++] = HEX[c & 0xF];
+    }
+
+    private void writeLong(long v) throws IOException {
+        if (v == Long.MIN_VALUE) { putAscii("-9223372036854775808"); return; }
+        ensure(20);
+        if (v < 0) { buf[len++] = '-'; v = -v; }
+        int i = digits.length;
+        do {
+            digits[--i] = (byte) ('0' + (v % 10));
+            v /= 10;
+        } while (v != 0);
+        int n = digits.length - i;
+        System.arraycopy(digits, i, buf, len, n);
+        len += n;
+    }
+
+    private void put(char c) throws IOException {
+        if (len == buf.length) flushBuffer();
+        buf[len++] = (byte) c;
+    }
+
+    private void putAscii(String s) throws IOException {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) buf[len++] = (byte) s.charAt(i);
+    }
+
+    private void ensure(int n) throws IOException {
+        if (len + n > buf.length) flushBuffer();
+    }
+
+    private void flushBuffer() throws IOException {
+        if (len > 0) {
+            out.write(buf, 0, len);
+            len = 0;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package server.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/** Поток-«тройник»: всё прочитанное из источника параллельно пишется в копию (например, во временный файл). */
+public final class TeeInputStream extends FilterInputStream {
+    private final OutputStream copy;
+
+    public TeeInputStream(InputStream in, OutputStream copy) {
+        super(in);
+        this.copy = copy;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) copy.write(b);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int r = in.read(b, off, len);
+        if (r > 0) copy.write(b, off, r);
+        return r;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // пропуск тоже должен попасть в копию
+        byte[] tmp = new byte[(int) Math.min(n, 8192)];
+        long done = 0;
+        while (done < n) {
+            int r = read(tmp, 0, (int) Math.min(tmp.length, n - done));
+            if (r < 0) break;
+            done += r;
+        }
+        return done;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /** Дочитывает источник до конца, чтобы копия была полной. */
+    public void drain() throws IOException {
+        byte[] tmp = new byte[8192];
+        while (read(tmp, 0, tmp.length) >= 0) {
+            // всё уходит в копию
+        }
+    }
+}